@@ -0,0 +1,75 @@
+package com.insparx.mongo.util.service;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * A mongo stand-in for the benchmarks, so they need no server: a client whose lock collection
+ * answers the acquire upsert and the release update from an in-process map of held keys.
+ * Lease expiry, renewals and lock ids are not modelled: the service only releases keys it holds.
+ * The mocks are stub-only, so they don't record the invocations.
+ */
+final class InProcessMongo {
+
+  private static final int DUPLICATE_KEY_ERROR = 11000;
+
+  private final ConcurrentHashMap<Object, Object> heldLocks = new ConcurrentHashMap<>();
+  private final AtomicLong fencingTokens = new AtomicLong();
+
+  private InProcessMongo() {
+  }
+
+  /**
+   * Returns a client backed by a new, empty stand-in.
+   */
+  @SuppressWarnings("unchecked")
+  static MongoClient newClient() {
+    final InProcessMongo inProcessMongo = new InProcessMongo();
+    final MongoClient mongoClient = mock(MongoClient.class, withSettings().stubOnly());
+    final MongoDatabase database = mock(MongoDatabase.class, withSettings().stubOnly());
+    final MongoCollection<Document> collection = mock(MongoCollection.class, withSettings().stubOnly());
+
+    when(mongoClient.getDatabase(anyString())).thenReturn(database);
+    when(database.runCommand(any(Bson.class))).thenAnswer(invocation -> new Document("localTime", new Date()));
+    when(database.getCollection(anyString())).thenReturn(collection);
+
+    when(collection.withCodecRegistry(any())).thenReturn(collection);
+    when(collection.withWriteConcern(any(WriteConcern.class))).thenReturn(collection);
+    when(collection.findOneAndUpdate(any(Bson.class), any(Bson.class), any(FindOneAndUpdateOptions.class)))
+            .thenAnswer(invocation -> inProcessMongo.acquire(invocation.getArgument(0)));
+    when(collection.updateOne(any(Bson.class), any(Bson.class)))
+            .thenAnswer(invocation -> inProcessMongo.release(invocation.getArgument(0)));
+
+    return mongoClient;
+  }
+
+  private Document acquire(final BasicDBObject query) {
+    if (heldLocks.putIfAbsent(query.get("_id"), Boolean.TRUE) != null) {
+      throw new MongoException(DUPLICATE_KEY_ERROR, "E11000 duplicate key error");
+    }
+    return new Document("fencingToken", fencingTokens.incrementAndGet());
+  }
+
+  private UpdateResult release(final BasicDBObject query) {
+    final boolean released = heldLocks.remove(query.get("_id")) != null;
+    return UpdateResult.acknowledged(released ? 1 : 0, released ? 1L : 0L, null);
+  }
+}
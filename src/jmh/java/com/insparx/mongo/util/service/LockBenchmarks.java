@@ -0,0 +1,39 @@
+package com.insparx.mongo.util.service;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the benchmarks once per thread count, writing the JMH results of each run as JSON.
+ * <p>
+ * Arguments: the comma separated thread counts and the results directory.
+ */
+public final class LockBenchmarks {
+
+  private LockBenchmarks() {
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    final String[] threadCounts = args[0].split(",");
+    final File resultsDir = new File(args[1]);
+    if (!resultsDir.isDirectory() && !resultsDir.mkdirs()) {
+      throw new IllegalStateException("Cannot create " + resultsDir);
+    }
+
+    for (final String threadCount : threadCounts) {
+      final int threads = Integer.parseInt(threadCount.trim());
+      final Options options = new OptionsBuilder()
+              .include(TryLockBenchmark.class.getSimpleName())
+              .threads(threads)
+              .resultFormat(ResultFormatType.JSON)
+              .result(new File(resultsDir, "tryLock-" + threads + "-threads.json").getPath())
+              .build();
+      new Runner(options).run();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.insparx.mongo.util.service;
+
+import com.insparx.mongo.util.dao.InMemoryLockStore;
+import com.insparx.mongo.util.dao.LockDao;
+import com.insparx.mongo.util.dao.LockStore;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.mongodb.MongoClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures tryLock/releaseLock round trips of the service. Each operation goes to the single hot
+ * key with probability contention, and otherwise to one of the keys, picked at random. The store
+ * is either the in-memory lock store or the mongo dao on an in-process collection.
+ * The thread count is set by the runner, see {@link LockBenchmarks}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TryLockBenchmark {
+
+  private static final String HOT_KEY = "hot";
+
+  @Param({"1", "1000", "1000000"})
+  public int keys;
+
+  @Param({"0.0", "0.1", "0.5"})
+  public double contention;
+
+  @Param({"memory", "mongo"})
+  public String store;
+
+  private String[] keyNames;
+  private DistributedLockServiceImpl distributedLockService;
+
+  @Setup
+  public void setUp() {
+    keyNames = new String[keys];
+    for (int idx = 0; idx < keys; idx++) keyNames[idx] = "key-" + idx;
+
+    final MongoClient mongoClient = InProcessMongo.newClient();
+    final DistributedLockServiceConfig distributedLockServiceConfig = new DistributedLockServiceConfig(mongoClient);
+    // Renewals are not part of the measured paths.
+    distributedLockServiceConfig.setHeartbeatFrequency(TimeUnit.HOURS.toMillis(1));
+
+    final LockStore lockStore = "memory".equals(store)
+            ? new InMemoryLockStore(distributedLockServiceConfig)
+            : new LockDao(mongoClient, distributedLockServiceConfig);
+    distributedLockService
+            = new DistributedLockServiceImpl(lockStore, new DistributedLockTimeOutOptions(), distributedLockServiceConfig);
+  }
+
+  @TearDown
+  public void tearDown() {
+    distributedLockService.close();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public boolean throughput() {
+    return tryLockAndRelease();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public boolean latency() {
+    return tryLockAndRelease();
+  }
+
+  private boolean tryLockAndRelease() {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final String key = random.nextDouble() < contention ? HOT_KEY : keyNames[random.nextInt(keys)];
+
+    if (!distributedLockService.tryLock(key)) return false;
+    return distributedLockService.releaseLock(key);
+  }
+}
@@ -0,0 +1,195 @@
+package com.insparx.mongo.util.dao;
+
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * The distributed lock dao on the asynchronous driver. It issues the same queries and updates
+ * as {@link LockDao}, but never blocks the calling thread on a round trip: results are
+ * completed from the driver's callbacks, and the first read of the server clock is chained on its
+ * first sample.
+ */
+public final class AsyncLockDao {
+
+  private final DistributedLockServiceConfig distributedLockServiceConfig;
+  private final MongoCollection<Document> lockCollection;
+  private final MongoCollection<Document> unacknowledgedLockCollection;
+  private final LockAttemptCounter lockAttemptCounter;
+  // Looked up once: the lookup goes through the JVM wide map of clocks.
+  private final ServerClock serverClock;
+  private final ObjectId ownerId = ObjectId.get();
+
+  public AsyncLockDao(final MongoClient mongoClient, final DistributedLockServiceConfig distributedLockServiceConfig) {
+    this.distributedLockServiceConfig = distributedLockServiceConfig;
+
+    final MongoCollection<Document> collection = mongoClient.getDatabase(distributedLockServiceConfig.getDbName())
+            .getCollection(distributedLockServiceConfig.getCollectionName());
+    this.lockCollection = collection.withCodecRegistry(LockRecordCodec.withLockRecords(collection.getCodecRegistry()));
+    this.unacknowledgedLockCollection = lockCollection.withWriteConcern(WriteConcern.UNACKNOWLEDGED);
+    // Not waited for either, so counts of a failed flush are lost rather than retried.
+    this.lockAttemptCounter = new LockAttemptCounter(distributedLockServiceConfig,
+            updates -> unacknowledgedLockCollection.bulkWrite(updates, LockDocuments.UNORDERED, ignoreResult()));
+    this.serverClock = ServerClock.forClient(mongoClient, distributedLockServiceConfig.getClockSyncFrequency());
+
+    // The same indexes as LockDao#provisionIndexes, without waiting for them.
+    if (distributedLockServiceConfig.isProvisionIndexes()) {
+      lockCollection.createIndex(LockDocuments.REAP_AT_INDEX, LockDocuments.REAP_AT_INDEX_OPTIONS, ignoreResult());
+    }
+  }
+
+  /**
+   * Try and get the lock, see {@link LockDao#lock}. Completes with an empty optional if unable to do so.
+   */
+  public CompletableFuture<Optional<DistributedLock>> lock(final String key,
+                                                           final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    return getServerClock().thenCompose(serverClock -> lock(key, serverClock, distributedLockTimeOutOptions));
+  }
+
+  private CompletableFuture<Optional<DistributedLock>> lock(final String key,
+                                                            final ServerClock serverClock,
+                                                            final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final long serverTime = serverClock.currentTimeMillis();
+    final ObjectId lockId = ObjectId.get();
+
+    final BasicDBObject query = LockDocuments.acquireQuery(key, new Date(serverTime - serverClock.getErrorBound()));
+    final BasicDBObject update
+            = LockDocuments.acquireUpdate(ownerId, lockId, serverTime, distributedLockServiceConfig, distributedLockTimeOutOptions);
+
+    final CompletableFuture<Optional<DistributedLock>> lock = new CompletableFuture<>();
+    lockCollection.findOneAndUpdate(query, update, LockDocuments.ACQUIRE_OPTIONS, (lockDoc, failure) -> {
+      if (failure == null && lockDoc != null) {
+        lock.complete(Optional.of(new DistributedLock(lockId, new AtomicBoolean(true), LockDocuments.fencingToken(lockDoc))));
+      } else if (failure == null || isDuplicateKey(failure)) {
+        incrementLockAttemptCount(key, serverTime);
+        lock.complete(Optional.empty());
+      } else {
+        lock.completeExceptionally(failure);
+      }
+    });
+    return lock;
+  }
+
+  /**
+   * Unlock the lock. Completes with an empty optional if the lock was not held with the lock id, and
+   * exceptionally if the driver failed, in which case the lock may still be held.
+   */
+  public CompletableFuture<Optional<ObjectId>> unlock(final String key, final ObjectId lockId) {
+    return getServerClock().thenCompose(serverClock -> unlock(key, lockId, serverClock));
+  }
+
+  private CompletableFuture<Optional<ObjectId>> unlock(final String key, final ObjectId lockId, final ServerClock serverClock) {
+    final CompletableFuture<Optional<ObjectId>> unlocked = new CompletableFuture<>();
+    final BasicDBObject update = LockDocuments.releaseUpdate(serverClock.currentTimeMillis(), distributedLockServiceConfig);
+    lockCollection.updateOne(LockDocuments.heldQuery(key, lockId), update, (result, failure) -> {
+      if (failure != null) unlocked.completeExceptionally(failure);
+      else unlocked.complete(result.getMatchedCount() > 0 ? Optional.of(lockId) : Optional.empty());
+    });
+    return unlocked;
+  }
+
+  /**
+   * Renew the leases of the provided locks with one unordered bulk write, see {@link LockDao#renew}.
+   * Completes with the keys of the locks that are no longer held by us.
+   */
+  public CompletableFuture<Set<String>> renew(final Map<String, DistributedLock> locks,
+                                              final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    if (locks.isEmpty()) return CompletableFuture.completedFuture(Collections.emptySet());
+    return getServerClock().thenCompose(serverClock -> renew(locks, serverClock, distributedLockTimeOutOptions));
+  }
+
+  private CompletableFuture<Set<String>> renew(final Map<String, DistributedLock> locks,
+                                               final ServerClock serverClock,
+                                               final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final BasicDBObject update
+            = LockDocuments.renewUpdate(serverClock.currentTimeMillis(), distributedLockServiceConfig, distributedLockTimeOutOptions);
+
+    final List<UpdateOneModel<Document>> renewals = new ArrayList<>(locks.size());
+    final List<ObjectId> lockIds = new ArrayList<>(locks.size());
+    for (final Map.Entry<String, DistributedLock> lock : locks.entrySet()) {
+      renewals.add(new UpdateOneModel<>(LockDocuments.heldQuery(lock.getKey(), lock.getValue().getLockedId()), update));
+      lockIds.add(lock.getValue().getLockedId());
+    }
+
+    final CompletableFuture<Set<String>> lostKeys = new CompletableFuture<>();
+    lockCollection.bulkWrite(renewals, LockDocuments.UNORDERED, (result, failure) -> {
+      if (failure != null) {
+        lostKeys.completeExceptionally(failure);
+      } else if (result.getMatchedCount() == renewals.size()) {
+        lostKeys.complete(Collections.emptySet());
+      } else {
+        // Some leases were not renewed, find out which ones are still ours.
+        lockCollection.find(LockDocuments.heldQuery(locks.keySet(), lockIds)).projection(LockDocuments.ID_PROJECTION)
+                .into(new ArrayList<>(), (held, findFailure) -> {
+                  if (findFailure != null) {
+                    lostKeys.completeExceptionally(findFailure);
+                    return;
+                  }
+                  final Set<String> lost = new HashSet<>(locks.keySet());
+                  for (final Document lockDoc : held) lost.remove(lockDoc.getString(LockDef.ID.lockField));
+                  lostKeys.complete(lost);
+                });
+      }
+    });
+    return lostKeys;
+  }
+
+  /**
+   * Stops the periodic flush of the attempt counts, writing the pending ones.
+   */
+  public void close() {
+    lockAttemptCounter.close();
+  }
+
+  /**
+   * Increment the waiting request count of the lock and hold new readers back, without waiting for
+   * an acknowledgement. As in {@link LockDao}, the counts are written in bulk and the window is only
+   * pushed about twice per window.
+   */
+  private void incrementLockAttemptCount(final String pLockName, final long serverTime) {
+    final long waitingUntil = serverTime + distributedLockServiceConfig.getWriterPreferenceWindow();
+    if (!lockAttemptCounter.claimWriterPreference(pLockName, waitingUntil)) {
+      lockAttemptCounter.record(pLockName);
+      return;
+    }
+    unacknowledgedLockCollection.updateOne(LockDocuments.idQuery(pLockName),
+            LockDocuments.writerAttemptUpdate(waitingUntil), ignoreResult());
+  }
+
+  private static boolean isDuplicateKey(final Throwable failure) {
+    return failure instanceof MongoException && ((MongoException) failure).getCode() == BaseDao.DUPLICATE_KEY_ERROR;
+  }
+
+  private static <T> SingleResultCallback<T> ignoreResult() {
+    return (result, failure) -> {
+    };
+  }
+
+  /**
+   * Completes with the clock of the client once it has a sample, right away after the first one.
+   */
+  private CompletableFuture<ServerClock> getServerClock() {
+    return serverClock.whenSampled();
+  }
+}
@@ -2,12 +2,8 @@ package com.insparx.mongo.util.dao;
 
 
 import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
-import com.mongodb.BasicDBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.client.MongoDatabase;
-import org.bson.Document;
-
-import java.util.Date;
 
 /**
  * The base dao.
@@ -15,52 +11,54 @@ import java.util.Date;
 abstract class BaseDao {
 
   static final String INC = "$inc";
-
-  private static final String LOCAL_TIME_FIELD = "localTime";
-  private static final int SERVER_TIME_TRIES = 3;
-
-  private static final BasicDBObject SERVER_STATUS_CMD = new BasicDBObject("serverStatus", 1);
+  static final String SET = "$set";
+  static final String SET_ON_INSERT = "$setOnInsert";
+  static final String UNSET = "$unset";
+  static final String OR = "$or";
+  static final String LT = "$lt";
+  static final String IN = "$in";
+  static final String GTE = "$gte";
+  static final String LTE = "$lte";
+  static final String EXPR = "$expr";
+  static final String NOT = "$not";
+  static final String MAX = "$max";
+  static final String PUSH = "$push";
+  static final String PULL = "$pull";
+  static final String EXISTS = "$exists";
+  static final String ELEM_MATCH = "$elemMatch";
+
+  static final int DUPLICATE_KEY_ERROR = 11000;
+
+  final MongoClient mongoClient;
+  final DistributedLockServiceConfig distributedLockServiceConfig;
+  // Looked up once: the lookup goes through the JVM wide map of clocks.
+  private final ServerClock serverClock;
+
+  BaseDao(final MongoClient mongoClient, final DistributedLockServiceConfig distributedLockServiceConfig) {
+    this.mongoClient = mongoClient;
+    this.distributedLockServiceConfig = distributedLockServiceConfig;
+    this.serverClock = ServerClock.forClient(mongoClient, distributedLockServiceConfig.getClockSyncFrequency());
+  }
 
   /**
    * Returns the db.
    */
-  static MongoDatabase getDb(final MongoClient mongoClient,
-                                   final DistributedLockServiceConfig distributedLockServiceConfig) {
+  MongoDatabase getDb() {
     return mongoClient.getDatabase(distributedLockServiceConfig.getDbName());
   }
 
   /**
-   * Returns the current server time. This makes a few requests to the server to try and adjust for
-   * network latency.
+   * Returns the current server time. This reads the cached offset of the client's {@link ServerClock},
+   * so no request is made to the server.
    */
-  static long getServerTime(final MongoClient mongoClient,
-                                  final DistributedLockServiceConfig distributedLockServiceConfig) {
-
-    final long[] localTimes = new long[SERVER_TIME_TRIES];
-    final int[] latency = new int[SERVER_TIME_TRIES];
-
-    long startTime;
-
-    for (int idx = 0; idx < SERVER_TIME_TRIES; idx++) {
-      startTime = System.currentTimeMillis();
-      Document serverStatus = getDb(mongoClient, distributedLockServiceConfig).runCommand(SERVER_STATUS_CMD);
-      latency[idx] = (int) (System.currentTimeMillis() - startTime);
-      localTimes[idx] = ((Date) serverStatus.get(LOCAL_TIME_FIELD)).getTime();
-    }
-
-    final long serverTime = localTimes[(SERVER_TIME_TRIES - 1)];
-
-    // Adjust based on latency.
-    return (serverTime + getHalfRoundedAvg(latency));
+  long getServerTime() {
+    return getServerClock().currentTimeMillis();
   }
 
   /**
-   * assume that latency is 50% each way.
+   * Returns the clock of the client.
    */
-  private static int getHalfRoundedAvg(final int[] pV) {
-    int total = 0;
-    for (int aPV : pV) total += aPV;
-    return Math.round((((float) total / (float) pV.length) / (float) 2));
+  ServerClock getServerClock() {
+    return serverClock;
   }
 }
-
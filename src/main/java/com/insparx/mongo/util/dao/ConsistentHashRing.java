@@ -0,0 +1,109 @@
+package com.insparx.mongo.util.dao;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * An immutable consistent hash ring. Every node owns virtualNodes points of the ring and a key
+ * belongs to the node owning the first point at or after the key's hash, wrapping around. Adding a
+ * node only moves the keys that land on its points, about 1/n of them.
+ * <p>
+ * Points only depend on the node names, so every JVM builds the same ring from the same nodes.
+ */
+final class ConsistentHashRing<T> {
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final Map<String, T> nodes;
+  private final int virtualNodes;
+  private final long[] points;
+  private final Object[] owners;
+
+  /**
+   * Builds the ring of the provided nodes (by name).
+   */
+  ConsistentHashRing(final Map<String, T> nodes, final int virtualNodes) {
+    if (nodes.isEmpty()) throw new IllegalArgumentException("A hash ring needs at least one node");
+    if (virtualNodes <= 0) throw new IllegalArgumentException("virtualNodes must be positive, got " + virtualNodes);
+
+    this.nodes = new TreeMap<>(nodes);
+    this.virtualNodes = virtualNodes;
+
+    // Nodes are placed in name order, so on the rare colliding point the same node wins everywhere.
+    final TreeMap<Long, T> ring = new TreeMap<>();
+    for (final Map.Entry<String, T> node : this.nodes.entrySet()) {
+      for (int idx = 0; idx < virtualNodes; idx++) ring.putIfAbsent(hash(node.getKey() + "#" + idx), node.getValue());
+    }
+
+    points = new long[ring.size()];
+    owners = new Object[ring.size()];
+    int idx = 0;
+    for (final Map.Entry<Long, T> point : ring.entrySet()) {
+      points[idx] = point.getKey();
+      owners[idx++] = point.getValue();
+    }
+  }
+
+  /**
+   * Returns the node the key belongs to.
+   */
+  @SuppressWarnings("unchecked")
+  T get(final String key) {
+    int idx = binarySearch(hash(key));
+    if (idx == points.length) idx = 0;
+    return (T) owners[idx];
+  }
+
+  /**
+   * Returns a new ring with the provided node added.
+   */
+  ConsistentHashRing<T> with(final String name, final T node) {
+    if (nodes.containsKey(name)) throw new IllegalArgumentException("The hash ring already has a node named " + name);
+
+    final Map<String, T> newNodes = new TreeMap<>(nodes);
+    newNodes.put(name, node);
+    return new ConsistentHashRing<>(newNodes, virtualNodes);
+  }
+
+  /**
+   * Returns the nodes by name.
+   */
+  Map<String, T> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Returns the index of the first point at or after the hash, or the number of points if there is none.
+   */
+  private int binarySearch(final long hash) {
+    int low = 0;
+    int high = points.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (points[mid] < hash) low = mid + 1;
+      else high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * FNV-1a over the chars of the value, finished with the murmur3 mix so that close keys such as
+   * "order-1" and "order-2" land far apart.
+   */
+  static long hash(final String value) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int idx = 0; idx < value.length(); idx++) {
+      hash ^= value.charAt(idx);
+      hash *= FNV_PRIME;
+    }
+
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
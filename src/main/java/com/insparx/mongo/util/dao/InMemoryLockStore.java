@@ -0,0 +1,476 @@
+package com.insparx.mongo.util.dao;
+
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.insparx.mongo.util.metrics.LockMetrics;
+import com.insparx.mongo.util.metrics.LockOperation;
+import org.bson.types.ObjectId;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A lock store in the heap of the JVM, for single node deployments and tests. Every lock is an
+ * immutable entry in a ConcurrentHashMap and every transition a compare-and-set of the entry,
+ * retried if another thread changed it in between, so no thread ever blocks.
+ * <p>
+ * Fencing tokens come from one counter shared by all keys, which keeps them increasing per key
+ * while entries of released or expired locks are dropped. Renewals, and every SWEEP_INTERVAL new
+ * entries, also sweep the entries whose leases all expired, so keys abandoned by their holders
+ * don't stay in the map.
+ */
+public final class InMemoryLockStore implements LockStore {
+
+  private static final int SWEEP_INTERVAL = 1024;
+
+  private final ConcurrentHashMap<String, LockEntry> locks = new ConcurrentHashMap<>();
+  private final AtomicLong fencingTokens = new AtomicLong();
+  private final AtomicLong newEntries = new AtomicLong();
+  private final DistributedLockServiceConfig distributedLockServiceConfig;
+  private final LockReleaseWatcher releaseWatcher;
+  private final LockMetrics lockMetrics;
+
+  public InMemoryLockStore(final DistributedLockServiceConfig distributedLockServiceConfig) {
+    this(distributedLockServiceConfig, new LockMetrics());
+  }
+
+  public InMemoryLockStore(final DistributedLockServiceConfig distributedLockServiceConfig, final LockMetrics lockMetrics) {
+    this.distributedLockServiceConfig = distributedLockServiceConfig;
+    this.releaseWatcher = LockReleaseWatcher.inProcess(distributedLockServiceConfig);
+    this.lockMetrics = lockMetrics;
+  }
+
+  @Override
+  public Optional<DistributedLock> lock(final String key, final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final long start = System.nanoTime();
+    try {
+      return tryLock(key, ObjectId.get(), distributedLockTimeOutOptions);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.ACQUIRE, System.nanoTime() - start, 0);
+    }
+  }
+
+  @Override
+  public Optional<Map<String, DistributedLock>> lockAll(final Collection<String> keys,
+                                                        final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final long start = System.nanoTime();
+    try {
+      // Same order and lock id for all keys as the mongo store.
+      final ObjectId lockId = ObjectId.get();
+      final Map<String, DistributedLock> acquired = new HashMap<>();
+      for (final String key : new TreeSet<>(keys)) {
+        final Optional<DistributedLock> distributedLock = tryLock(key, lockId, distributedLockTimeOutOptions);
+        if (!distributedLock.isPresent()) {
+          for (final String acquiredKey : acquired.keySet()) release(acquiredKey, lockId);
+          return Optional.empty();
+        }
+        acquired.put(key, distributedLock.get());
+      }
+      return Optional.of(acquired);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.ACQUIRE, System.nanoTime() - start, 0);
+    }
+  }
+
+  @Override
+  public Optional<ObjectId> unlock(final String key, final ObjectId lockId) {
+    final long start = System.nanoTime();
+    try {
+      return release(key, lockId) ? Optional.of(lockId) : Optional.empty();
+    } finally {
+      lockMetrics.recordOperation(LockOperation.RELEASE, System.nanoTime() - start, 0);
+    }
+  }
+
+  @Override
+  public long unlockAll(final Map<String, ObjectId> locks) {
+    final long start = System.nanoTime();
+    try {
+      long released = 0;
+      for (final Map.Entry<String, ObjectId> lock : locks.entrySet()) {
+        if (release(lock.getKey(), lock.getValue())) released++;
+      }
+      return released;
+    } finally {
+      lockMetrics.recordOperation(LockOperation.RELEASE, System.nanoTime() - start, 0);
+    }
+  }
+
+  @Override
+  public long takeTicket(final String key, final ObjectId ticketId, final long ticketTimeout) {
+    final long[] ticket = new long[1];
+    update(key, current -> {
+      final LockEntry next = (current == null ? LockEntry.EMPTY : current).withTicket(ticketId, now() + ticketTimeout, now());
+      ticket[0] = next.nextTicket;
+      return next;
+    });
+    return ticket[0];
+  }
+
+  @Override
+  public Optional<DistributedLock> lockInTurn(final String key,
+                                              final ObjectId ticketId,
+                                              final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final long start = System.nanoTime();
+    try {
+      final long[] fencingToken = new long[1];
+
+      final boolean acquired = update(key, current -> {
+        final long now = now();
+        if (current == null || !current.isTurnOf(ticketId, now)) return null;
+        if (current.hasLiveWriter(now) || current.hasLiveReaders(now)) return null;
+
+        fencingToken[0] = fencingTokens.incrementAndGet();
+        return current.withoutTicket(ticketId, now)
+                .withWriter(ticketId, now + distributedLockTimeOutOptions.getInactiveLockTimeout(), fencingToken[0]);
+      });
+
+      if (!acquired) {
+        lockMetrics.recordContention(LockOperation.ACQUIRE);
+        return Optional.empty();
+      }
+      return Optional.of(new DistributedLock(ticketId, new AtomicBoolean(true), fencingToken[0]));
+    } finally {
+      lockMetrics.recordOperation(LockOperation.ACQUIRE, System.nanoTime() - start, 0);
+    }
+  }
+
+  @Override
+  public boolean renewTicket(final String key, final ObjectId ticketId, final long ticketTimeout) {
+    return update(key, current -> {
+      if (current == null || !current.tickets.containsKey(ticketId)) return null;
+      return current.withRenewedTicket(ticketId, now() + ticketTimeout);
+    });
+  }
+
+  @Override
+  public void returnTicket(final String key, final ObjectId ticketId) {
+    update(key, current -> {
+      if (current == null || !current.tickets.containsKey(ticketId)) return null;
+      return current.withoutTicket(ticketId, now());
+    });
+  }
+
+  @Override
+  public Set<String> renew(final Map<String, DistributedLock> heldLocks,
+                           final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final long start = System.nanoTime();
+    try {
+      final Set<String> lostKeys = new HashSet<>();
+      for (final Map.Entry<String, DistributedLock> heldLock : heldLocks.entrySet()) {
+        final ObjectId lockId = heldLock.getValue().getLockedId();
+        final boolean renewed = update(heldLock.getKey(), current -> {
+          if (current == null || !lockId.equals(current.writerId)) return null;
+          return current.withWriter(lockId, now() + distributedLockTimeOutOptions.getInactiveLockTimeout(), current.fencingToken);
+        });
+        if (!renewed) lostKeys.add(heldLock.getKey());
+      }
+      removeIdleEntries();
+      return lostKeys;
+    } finally {
+      lockMetrics.recordOperation(LockOperation.RENEW, System.nanoTime() - start, 0);
+    }
+  }
+
+  @Override
+  public Optional<DistributedLock> readLock(final String key, final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final long start = System.nanoTime();
+    try {
+      final ObjectId lockId = ObjectId.get();
+      final long[] fencingToken = new long[1];
+
+      final boolean acquired = update(key, current -> {
+        final long now = now();
+        if (current != null && (current.hasLiveWriter(now) || current.writerWaitingUntil >= now)) return null;
+
+        final LockEntry released = current == null ? LockEntry.EMPTY : current.withoutWriter();
+        fencingToken[0] = released.fencingToken;
+        return released.withReader(lockId, now + distributedLockTimeOutOptions.getInactiveLockTimeout(), now);
+      });
+
+      if (!acquired) {
+        lockMetrics.recordContention(LockOperation.ACQUIRE);
+        return Optional.empty();
+      }
+      return Optional.of(new DistributedLock(lockId, new AtomicBoolean(true), fencingToken[0]));
+    } finally {
+      lockMetrics.recordOperation(LockOperation.ACQUIRE, System.nanoTime() - start, 0);
+    }
+  }
+
+  @Override
+  public Optional<ObjectId> readUnlock(final String key, final ObjectId lockId) {
+    final long start = System.nanoTime();
+    try {
+      final boolean released = update(key, current -> {
+        if (current == null || !current.readers.containsKey(lockId)) return null;
+        return current.withoutReader(lockId, now());
+      });
+      return released ? Optional.of(lockId) : Optional.empty();
+    } finally {
+      lockMetrics.recordOperation(LockOperation.RELEASE, System.nanoTime() - start, 0);
+    }
+  }
+
+  @Override
+  public Set<String> readRenew(final Map<String, DistributedLock> heldLocks,
+                               final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final long start = System.nanoTime();
+    try {
+      final Set<String> lostKeys = new HashSet<>();
+      for (final Map.Entry<String, DistributedLock> heldLock : heldLocks.entrySet()) {
+        final ObjectId lockId = heldLock.getValue().getLockedId();
+        final boolean renewed = update(heldLock.getKey(), current -> {
+          if (current == null || !current.readers.containsKey(lockId)) return null;
+          final long now = now();
+          return current.withoutReader(lockId, now).withReader(lockId, now + distributedLockTimeOutOptions.getInactiveLockTimeout(), now);
+        });
+        if (!renewed) lostKeys.add(heldLock.getKey());
+      }
+      removeIdleEntries();
+      return lostKeys;
+    } finally {
+      lockMetrics.recordOperation(LockOperation.RENEW, System.nanoTime() - start, 0);
+    }
+  }
+
+  @Override
+  public LockReleaseWatcher getReleaseWatcher(final String key) {
+    return releaseWatcher;
+  }
+
+  @Override
+  public LockMetrics getMetrics() {
+    return lockMetrics;
+  }
+
+  private Optional<DistributedLock> tryLock(final String key,
+                                            final ObjectId lockId,
+                                            final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final long[] fencingToken = new long[1];
+    final boolean[] acquired = new boolean[1];
+
+    update(key, current -> {
+      final long now = now();
+      acquired[0] = false;
+      if (current != null && (current.hasLiveWriter(now) || current.hasLiveReaders(now))) {
+        // Keep new readers out for a while so the writer gets a chance, like the mongo store.
+        return current.withWriterWaitingUntil(now + distributedLockServiceConfig.getWriterPreferenceWindow());
+      }
+      // Fair waiters go first.
+      if (current != null && current.hasLiveTickets(now)) return null;
+
+      acquired[0] = true;
+      fencingToken[0] = fencingTokens.incrementAndGet();
+      return (current == null ? LockEntry.EMPTY : current)
+              .withWriter(lockId, now + distributedLockTimeOutOptions.getInactiveLockTimeout(), fencingToken[0]);
+    });
+
+    if (!acquired[0]) {
+      lockMetrics.recordContention(LockOperation.ACQUIRE);
+      return Optional.empty();
+    }
+    return Optional.of(new DistributedLock(lockId, new AtomicBoolean(true), fencingToken[0]));
+  }
+
+  private boolean release(final String key, final ObjectId lockId) {
+    return update(key, current -> {
+      if (current == null || !lockId.equals(current.writerId)) return null;
+      return current.withoutWriter();
+    });
+  }
+
+  /**
+   * Replaces the entry of the key with the transition of the current one (null if there is none),
+   * retrying on concurrent changes. Returns false, without changing anything, if the transition
+   * returns null. Entries without a live writer, reader, ticket or waiting writer are dropped.
+   */
+  private boolean update(final String key, final Transition transition) {
+    while (true) {
+      final LockEntry current = locks.get(key);
+      final LockEntry next = transition.apply(current);
+      if (next == null) return false;
+
+      final boolean replaced;
+      if (next.isIdle(now())) {
+        replaced = current == null || locks.remove(key, current);
+      } else if (current == null) {
+        replaced = locks.putIfAbsent(key, next) == null;
+        if (replaced && newEntries.incrementAndGet() % SWEEP_INTERVAL == 0) removeIdleEntries();
+      } else {
+        replaced = locks.replace(key, current, next);
+      }
+      if (replaced) return true;
+    }
+  }
+
+  /**
+   * Drops the entries whose leases all expired.
+   */
+  private void removeIdleEntries() {
+    final long now = now();
+    locks.forEach((key, entry) -> {
+      if (entry.isIdle(now)) locks.remove(key, entry);
+    });
+  }
+
+  /**
+   * Returns the number of keys with an entry.
+   */
+  int size() {
+    return locks.size();
+  }
+
+  private static long now() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+  }
+
+  @FunctionalInterface
+  private interface Transition {
+    LockEntry apply(LockEntry current);
+  }
+
+  /**
+   * The immutable state of a lock. Equality is identity, which is what the compare-and-set needs.
+   */
+  private static final class LockEntry {
+
+    private static final LockEntry EMPTY = new LockEntry(null, 0, 0, Collections.emptyMap(), 0, Collections.emptyMap(), 0);
+
+    private final ObjectId writerId;
+    private final long writerTimeoutTime;
+    private final long fencingToken;
+    private final Map<ObjectId, Long> readers;
+    private final long writerWaitingUntil;
+    private final Map<ObjectId, Long> tickets; // In the order they were taken
+    private final long nextTicket;
+
+    private LockEntry(final ObjectId writerId,
+                      final long writerTimeoutTime,
+                      final long fencingToken,
+                      final Map<ObjectId, Long> readers,
+                      final long writerWaitingUntil,
+                      final Map<ObjectId, Long> tickets,
+                      final long nextTicket) {
+      this.writerId = writerId;
+      this.writerTimeoutTime = writerTimeoutTime;
+      this.fencingToken = fencingToken;
+      this.readers = readers;
+      this.writerWaitingUntil = writerWaitingUntil;
+      this.tickets = tickets;
+      this.nextTicket = nextTicket;
+    }
+
+    private boolean hasLiveWriter(final long now) {
+      return writerId != null && writerTimeoutTime >= now;
+    }
+
+    private boolean hasLiveReaders(final long now) {
+      for (final long readerTimeoutTime : readers.values()) if (readerTimeoutTime >= now) return true;
+      return false;
+    }
+
+    private boolean hasLiveTickets(final long now) {
+      for (final long ticketTimeoutTime : tickets.values()) if (ticketTimeoutTime >= now) return true;
+      return false;
+    }
+
+    /**
+     * Returns true if the ticket is the oldest live one.
+     */
+    private boolean isTurnOf(final ObjectId ticketId, final long now) {
+      for (final Map.Entry<ObjectId, Long> ticket : tickets.entrySet()) {
+        if (ticket.getValue() >= now) return ticket.getKey().equals(ticketId);
+      }
+      return false;
+    }
+
+    /**
+     * Returns true if the entry has no live writer, reader, ticket or waiting writer left. The fencing
+     * token doesn't need to be kept, the counter is shared by all keys.
+     */
+    private boolean isIdle(final long now) {
+      return !hasLiveWriter(now) && !hasLiveReaders(now) && writerWaitingUntil < now && !hasLiveTickets(now);
+    }
+
+    private LockEntry withWriter(final ObjectId lockId, final long timeoutTime, final long token) {
+      return new LockEntry(lockId, timeoutTime, token, Collections.emptyMap(), 0, tickets, nextTicket);
+    }
+
+    private LockEntry withoutWriter() {
+      return new LockEntry(null, 0, fencingToken, readers, writerWaitingUntil, tickets, nextTicket);
+    }
+
+    private LockEntry withWriterWaitingUntil(final long waitingUntil) {
+      return new LockEntry(writerId, writerTimeoutTime, fencingToken, readers, Math.max(writerWaitingUntil, waitingUntil),
+              tickets, nextTicket);
+    }
+
+    /**
+     * Adds the reader, dropping the readers that expired before now.
+     */
+    private LockEntry withReader(final ObjectId lockId, final long timeoutTime, final long now) {
+      final Map<ObjectId, Long> liveReaders = live(readers, now);
+      liveReaders.put(lockId, timeoutTime);
+      return new LockEntry(writerId, writerTimeoutTime, fencingToken, liveReaders, writerWaitingUntil, tickets, nextTicket);
+    }
+
+    /**
+     * Removes the reader, along with the readers that expired before now.
+     */
+    private LockEntry withoutReader(final ObjectId lockId, final long now) {
+      final Map<ObjectId, Long> liveReaders = live(readers, now);
+      liveReaders.remove(lockId);
+      return new LockEntry(writerId, writerTimeoutTime, fencingToken, liveReaders, writerWaitingUntil, tickets, nextTicket);
+    }
+
+    /**
+     * Appends the ticket (or moves it to the back of the queue), dropping the tickets that expired before now.
+     */
+    private LockEntry withTicket(final ObjectId ticketId, final long timeoutTime, final long now) {
+      final Map<ObjectId, Long> liveTickets = live(tickets, now);
+      liveTickets.remove(ticketId);
+      liveTickets.put(ticketId, timeoutTime);
+      return new LockEntry(writerId, writerTimeoutTime, fencingToken, readers, writerWaitingUntil, liveTickets, nextTicket + 1);
+    }
+
+    /**
+     * Extends the ticket in place.
+     */
+    private LockEntry withRenewedTicket(final ObjectId ticketId, final long timeoutTime) {
+      final Map<ObjectId, Long> renewedTickets = new LinkedHashMap<>(tickets);
+      renewedTickets.put(ticketId, timeoutTime);
+      return new LockEntry(writerId, writerTimeoutTime, fencingToken, readers, writerWaitingUntil, renewedTickets, nextTicket);
+    }
+
+    /**
+     * Removes the ticket, along with the tickets that expired before now.
+     */
+    private LockEntry withoutTicket(final ObjectId ticketId, final long now) {
+      final Map<ObjectId, Long> liveTickets = live(tickets, now);
+      liveTickets.remove(ticketId);
+      return new LockEntry(writerId, writerTimeoutTime, fencingToken, readers, writerWaitingUntil, liveTickets, nextTicket);
+    }
+
+    private static Map<ObjectId, Long> live(final Map<ObjectId, Long> leases, final long now) {
+      final Map<ObjectId, Long> liveLeases = new LinkedHashMap<>();
+      for (final Map.Entry<ObjectId, Long> lease : leases.entrySet()) {
+        if (lease.getValue() >= now) liveLeases.put(lease.getKey(), lease.getValue());
+      }
+      return liveLeases;
+    }
+  }
+}
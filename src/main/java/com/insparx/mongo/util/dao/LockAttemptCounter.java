@@ -0,0 +1,165 @@
+package com.insparx.mongo.util.dao;
+
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+
+/**
+ * Counts the failed attempts on each lock locally and flushes them every attemptCountFlushFrequency
+ * ms with one bulk write, instead of an update of the contended document per failed attempt.
+ * Counts are LongAdders, so contending threads don't serialize on the count of a hot key either.
+ * <p>
+ * A flush that fails is retried with the next one, until its counts are attemptCountMaxStaleness ms
+ * old: they are then dropped rather than counted against what may be a later holder. The counts are
+ * diagnostics, so an attempt racing the removal of an idle key may go uncounted.
+ */
+final class LockAttemptCounter {
+
+  private final ConcurrentHashMap<String, PendingAttempts> pending = new ConcurrentHashMap<>();
+  private final DistributedLockServiceConfig distributedLockServiceConfig;
+  private final Consumer<List<UpdateOneModel<Document>>> flush;
+  private final ScheduledExecutorService flusher;
+
+  /**
+   * Construct the counter writing its updates with the provided flush, which throws if they were not written.
+   */
+  LockAttemptCounter(final DistributedLockServiceConfig distributedLockServiceConfig,
+                     final Consumer<List<UpdateOneModel<Document>>> flush) {
+    this.distributedLockServiceConfig = distributedLockServiceConfig;
+    this.flush = flush;
+
+    final long flushFrequency = distributedLockServiceConfig.getAttemptCountFlushFrequency();
+    if (flushFrequency <= 0) {
+      flusher = null;
+      return;
+    }
+
+    flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "mongo-lock-attempt-counter");
+      thread.setDaemon(true);
+      return thread;
+    });
+    flusher.scheduleWithFixedDelay(this::flushQuietly, flushFrequency, flushFrequency, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Counts a failed attempt on the lock. Without a flush frequency, it is written right away.
+   */
+  void record(final String key) {
+    if (distributedLockServiceConfig.getAttemptCountFlushFrequency() <= 0) {
+      flush.accept(Collections.singletonList(update(key, 1)));
+      return;
+    }
+    pending.computeIfAbsent(key, k -> new PendingAttempts()).record(System.currentTimeMillis());
+  }
+
+  /**
+   * Returns true if a failed writer should push the writer preference window of the lock to the
+   * provided server time, i.e. if this counter hasn't pushed it past the middle of that window yet.
+   * Writers then keep new readers out with about two updates per window instead of one per attempt.
+   */
+  boolean claimWriterPreference(final String key, final long waitingUntil) {
+    final long halfWindow = distributedLockServiceConfig.getWriterPreferenceWindow() / 2;
+    final AtomicLong pushedUntil = pending.computeIfAbsent(key, k -> new PendingAttempts()).writerWaitingUntil;
+    for (;;) {
+      final long current = pushedUntil.get();
+      if (waitingUntil - current < halfWindow) return false;
+      if (pushedUntil.compareAndSet(current, waitingUntil)) return true;
+    }
+  }
+
+  /**
+   * Writes the pending counts with one bulk write.
+   */
+  void flush() {
+    final long now = System.currentTimeMillis();
+    final Map<String, Long> counts = new HashMap<>();
+    final Map<String, Long> countedSince = new HashMap<>();
+    for (final Map.Entry<String, PendingAttempts> entry : pending.entrySet()) {
+      final PendingAttempts attempts = entry.getValue();
+      final long since = attempts.since == 0 ? now : attempts.since;
+      final long count = attempts.drain();
+      if (count > 0) {
+        counts.put(entry.getKey(), count);
+        countedSince.put(entry.getKey(), since);
+      } else if (attempts.writerWaitingUntil.get() < now) {
+        pending.remove(entry.getKey(), attempts);
+      }
+    }
+    if (counts.isEmpty()) return;
+
+    final List<UpdateOneModel<Document>> updates = new ArrayList<>(counts.size());
+    counts.forEach((key, count) -> updates.add(update(key, count)));
+    try {
+      flush.accept(updates);
+    } catch (final RuntimeException e) {
+      final long maxStaleness = distributedLockServiceConfig.getAttemptCountMaxStaleness();
+      counts.forEach((key, count) -> {
+        if (now - countedSince.get(key) < maxStaleness) {
+          pending.computeIfAbsent(key, k -> new PendingAttempts()).restore(count, countedSince.get(key));
+        }
+      });
+      throw e;
+    }
+  }
+
+  /**
+   * Stops the periodic flush and writes the pending counts one last time.
+   */
+  void close() {
+    if (flusher == null) return;
+    flusher.shutdown();
+    flushQuietly();
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (final RuntimeException ignored) {
+      // Kept for the next flush.
+    }
+  }
+
+  private static UpdateOneModel<Document> update(final String key, final long count) {
+    return new UpdateOneModel<>(LockDocuments.idQuery(key), LockDocuments.attemptUpdate(count));
+  }
+
+  /**
+   * The attempts on one lock since the last flush.
+   */
+  private static final class PendingAttempts {
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong writerWaitingUntil = new AtomicLong();
+    // When the oldest attempt not flushed yet was made, 0 if there is none.
+    private volatile long since;
+
+    private void record(final long now) {
+      if (since == 0) since = now;
+      count.increment();
+    }
+
+    private void restore(final long attempts, final long attemptsSince) {
+      if (since == 0 || attemptsSince < since) since = attemptsSince;
+      count.add(attempts);
+    }
+
+    private long drain() {
+      since = 0;
+      return count.sumThenReset();
+    }
+  }
+}
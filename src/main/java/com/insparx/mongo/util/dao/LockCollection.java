@@ -0,0 +1,141 @@
+package com.insparx.mongo.util.dao;
+
+import com.insparx.mongo.util.domain.DurabilityProfile;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.MongoClient;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.session.ClientSession;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+
+/**
+ * The lock collection as one durability profile sees it: the collection handle with the profile's
+ * concerns and, for causally consistent profiles, a session per operation. A session must not be
+ * used by two threads at once, so each operation starts its own (the driver pools the server
+ * sessions, starting one is no round trip) from the latest operation and cluster times seen by the
+ * collection. Every operation of the dao thus reads the writes before it, whichever thread made them,
+ * e.g. the heartbeat renewing a lock another thread just acquired.
+ */
+final class LockCollection {
+
+  private static final ClientSessionOptions CAUSALLY_CONSISTENT
+          = ClientSessionOptions.builder().causallyConsistent(true).build();
+
+  private final MongoCollection<Document> collection;
+  // Null unless the profile is causally consistent.
+  private final MongoClient mongoClient;
+  private final AtomicReference<SessionTimes> latestTimes = new AtomicReference<>();
+
+  LockCollection(final MongoClient mongoClient,
+                 final MongoCollection<Document> collection,
+                 final DurabilityProfile durabilityProfile) {
+    MongoCollection<Document> profiledCollection = collection;
+    if (durabilityProfile.getWriteConcern() != null) {
+      profiledCollection = profiledCollection.withWriteConcern(durabilityProfile.getWriteConcern());
+    }
+    if (durabilityProfile.getReadConcern() != null) {
+      profiledCollection = profiledCollection.withReadConcern(durabilityProfile.getReadConcern());
+    }
+    if (durabilityProfile.getReadPreference() != null) {
+      profiledCollection = profiledCollection.withReadPreference(durabilityProfile.getReadPreference());
+    }
+    this.collection = profiledCollection;
+    this.mongoClient = durabilityProfile.isCausallyConsistent() ? mongoClient : null;
+  }
+
+  Document findOneAndUpdate(final Bson filter, final Bson update, final FindOneAndUpdateOptions options) {
+    if (mongoClient == null) return collection.findOneAndUpdate(filter, update, options);
+    return inSession(session -> collection.findOneAndUpdate(session, filter, update, options));
+  }
+
+  UpdateResult updateOne(final Bson filter, final Bson update) {
+    if (mongoClient == null) return collection.updateOne(filter, update);
+    return inSession(session -> collection.updateOne(session, filter, update));
+  }
+
+  UpdateResult updateOne(final Bson filter, final Bson update, final UpdateOptions options) {
+    if (mongoClient == null) return collection.updateOne(filter, update, options);
+    return inSession(session -> collection.updateOne(session, filter, update, options));
+  }
+
+  UpdateResult updateMany(final Bson filter, final Bson update) {
+    if (mongoClient == null) return collection.updateMany(filter, update);
+    return inSession(session -> collection.updateMany(session, filter, update));
+  }
+
+  BulkWriteResult bulkWrite(final List<? extends WriteModel<? extends Document>> requests, final BulkWriteOptions options) {
+    if (mongoClient == null) return collection.bulkWrite(requests, options);
+    return inSession(session -> collection.bulkWrite(session, requests, options));
+  }
+
+  /**
+   * Returns the projected documents matching the filter. They are all read before the session ends.
+   */
+  List<Document> find(final Bson filter, final Bson projection) {
+    if (mongoClient == null) return collection.find(filter).projection(projection).into(new ArrayList<>());
+    return inSession(session -> collection.find(session, filter).projection(projection).into(new ArrayList<>()));
+  }
+
+  /**
+   * Returns the first projected document matching the filter, decoded as resultClass, or null.
+   */
+  <T> T findFirst(final Bson filter, final Class<T> resultClass, final Bson projection) {
+    if (mongoClient == null) return collection.find(filter, resultClass).projection(projection).first();
+    return inSession(session -> collection.find(session, filter, resultClass).projection(projection).first());
+  }
+
+  /**
+   * Runs the operation in a new session starting from the latest times seen, then records the times
+   * of the session, even if the operation failed.
+   */
+  private <T> T inSession(final Function<ClientSession, T> operation) {
+    try (ClientSession session = mongoClient.startSession(CAUSALLY_CONSISTENT)) {
+      final SessionTimes times = latestTimes.get();
+      if (times != null) {
+        if (times.clusterTime != null) session.advanceClusterTime(times.clusterTime);
+        session.advanceOperationTime(times.operationTime);
+      }
+      try {
+        return operation.apply(session);
+      } finally {
+        advance(session);
+      }
+    }
+  }
+
+  private void advance(final ClientSession session) {
+    final BsonTimestamp operationTime = session.getOperationTime();
+    if (operationTime == null) return;
+
+    final SessionTimes times = new SessionTimes(operationTime, session.getClusterTime());
+    latestTimes.accumulateAndGet(times, (latest, next) ->
+            latest == null || next.operationTime.compareTo(latest.operationTime) > 0 ? next : latest);
+  }
+
+  /**
+   * The operation and cluster times of a session.
+   */
+  private static final class SessionTimes {
+    private final BsonTimestamp operationTime;
+    private final BsonDocument clusterTime;
+
+    private SessionTimes(final BsonTimestamp operationTime, final BsonDocument clusterTime) {
+      this.operationTime = operationTime;
+      this.clusterTime = clusterTime;
+    }
+  }
+}
@@ -1,237 +1,755 @@
 package com.insparx.mongo.util.dao;
 
+import com.insparx.mongo.util.domain.DistributedLock;
 import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
 import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.insparx.mongo.util.domain.DurabilityProfile;
+import com.insparx.mongo.util.metrics.LockMetrics;
+import com.insparx.mongo.util.metrics.LockOperation;
 import com.mongodb.BasicDBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.result.UpdateResult;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
- * The distributed lock dao. These are a set of static methods
- * that are responsible for data access.
+ * The distributed lock dao. It is responsible for data access and is safe to share
+ * between threads: mutual exclusion relies on the atomic upsert and conditional
+ * update of the lock document, not on local monitors.
+ * <p>
+ * Every operation on a lock runs with the {@link DurabilityProfile} of its key, see {@link LockCollection}.
  */
-public final class LockDao extends BaseDao {
+public final class LockDao extends BaseDao implements LockStore {
+
+  private final LockMetrics lockMetrics;
+  private final MongoCollection<Document> lockCollection;
+  private final MongoCollection<Document> unacknowledgedLockCollection;
+  // Created on the first use of each profile, so unused profiles don't touch the client.
+  private final ConcurrentHashMap<DurabilityProfile, LockCollection> lockCollections = new ConcurrentHashMap<>();
+  private final LockAttemptCounter lockAttemptCounter;
+  // Shared with the other daos of the collection, released on close.
+  private final LockReleaseWatcher releaseWatcher;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  // Tags the locks granted by this dao.
+  private final ObjectId ownerId = ObjectId.get();
+
+  public LockDao(final MongoClient mongoClient, final DistributedLockServiceConfig distributedLockServiceConfig) {
+    this(mongoClient, distributedLockServiceConfig, new LockMetrics());
+  }
 
+  /**
+   * Construct the dao recording into the provided metrics, which may be shared between daos.
+   */
+  public LockDao(final MongoClient mongoClient,
+                 final DistributedLockServiceConfig distributedLockServiceConfig,
+                 final LockMetrics lockMetrics) {
+    super(mongoClient, distributedLockServiceConfig);
+    this.lockMetrics = lockMetrics;
+
+    // Collections are immutable and thread safe, so the handles are resolved once per dao.
+    final MongoCollection<Document> collection = getDb().getCollection(distributedLockServiceConfig.getCollectionName());
+    this.lockCollection = collection.withCodecRegistry(LockRecordCodec.withLockRecords(collection.getCodecRegistry()));
+    this.unacknowledgedLockCollection = lockCollection.withWriteConcern(WriteConcern.UNACKNOWLEDGED);
+    this.lockAttemptCounter = new LockAttemptCounter(distributedLockServiceConfig,
+            updates -> lockCollection.bulkWrite(updates, LockDocuments.UNORDERED));
+    this.releaseWatcher = LockReleaseWatcher.forCollection(mongoClient, distributedLockServiceConfig);
+
+    if (distributedLockServiceConfig.isProvisionIndexes()) provisionIndexes();
+  }
 
   /**
-   * Try and get the lock. If unable to do so, this returns false.
+   * Creates the indexes of the lock collection if they are missing. The TTL index removes lock
+   * documents once their reapAt has passed, i.e. lockIdlePeriod ms after they were released or
+   * their last lease expired. Every acquire or renewal pushes reapAt past its lease first, so a
+   * held lock is never removed, and an acquire racing the removal just inserts the document again.
+   * The fencing token survives the removal: the document inserted again starts from a fencing
+   * epoch derived from the server time, past every token of the removed one.
    */
-  public static synchronized Optional<ObjectId> lock(final MongoClient mongoClient,
-                                                     final String key,
-                                                     final DistributedLockServiceConfig distributedLockServiceConfig,
-                                                     final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
-    // Lookup the lock object.
-    Optional<Document> lockDoc = findById(mongoClient, key, distributedLockServiceConfig);
+  public void provisionIndexes() {
+    lockCollection.createIndex(LockDocuments.REAP_AT_INDEX, LockDocuments.REAP_AT_INDEX_OPTIONS);
+  }
 
-    final long serverTime = getServerTime(mongoClient, distributedLockServiceConfig);
-    final long startTime = System.currentTimeMillis();
+  /**
+   * Try and get the lock. If unable to do so, this returns an empty optional.
+   * <p>
+   * This is a single round trip: one upsert conditioned on the lock being unlocked or its lease
+   * having expired, which bumps the fencing token. If the document exists but is held, the upsert
+   * collides with it on the _id index and the duplicate key error means the lock is not acquired.
+   */
+  @Override
+  public Optional<DistributedLock> lock(final String key, final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final ServerClock serverClock = getServerClock();
+    final long serverTime = serverClock.currentTimeMillis();
+    final ObjectId lockId = ObjectId.get();
 
-    // The doc was not there so we are going to try and insert a new doc.
-    if (!lockDoc.isPresent()) {
-      final Optional<ObjectId> lockId
-              = tryInsertNew(mongoClient, key, distributedLockServiceConfig, distributedLockTimeOutOptions, serverTime, startTime);
-      if (lockId.isPresent()) return lockId;
-    }
+    // Only take over a lease that has expired even if our clock estimate is off by the whole error bound.
+    final Date expiredBefore = new Date(serverTime - serverClock.getErrorBound());
 
-    // retry to make sure the locdoc present in DB
-    if (!lockDoc.isPresent()) lockDoc = findById(mongoClient, key, distributedLockServiceConfig);
+    final BasicDBObject query = LockDocuments.acquireQuery(key, expiredBefore);
+    final BasicDBObject update
+            = LockDocuments.acquireUpdate(ownerId, lockId, serverTime, distributedLockServiceConfig, distributedLockTimeOutOptions);
 
-    if (lockDoc.isPresent()) {
+    final long start = System.nanoTime();
+    try {
+      final Document lockDoc = collection(key).findOneAndUpdate(query, update, LockDocuments.ACQUIRE_OPTIONS);
+      // Yay... we have the lock.
+      if (lockDoc != null) {
+        return Optional.of(new DistributedLock(lockId, new AtomicBoolean(true), LockDocuments.fencingToken(lockDoc)));
+      }
+    } catch (final MongoException e) {
+      if (e.getCode() != DUPLICATE_KEY_ERROR) throw failed(LockOperation.ACQUIRE, e);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.ACQUIRE, System.nanoTime() - start, 1);
+    }
 
-      // Get the state.
-      final LockState lockState = LockState.findByCode(lockDoc.get().getString(LockDef.STATE.lockField));
+    // Could not get the lock.
+    lockMetrics.recordContention(LockOperation.ACQUIRE);
+    incrementLockAttemptCount(key, serverTime);
+    return Optional.empty();
+  }
 
-      final ObjectId currentLockId = lockDoc.get().getObjectId(LockDef.LOCK_ID.lockField);
+  /**
+   * Take a ticket in the queue of the lock, see {@link LockStore#takeTicket}. This is one upsert,
+   * which appends the ticket and numbers it with the document's ticket counter.
+   */
+  @Override
+  public long takeTicket(final String key, final ObjectId ticketId, final long ticketTimeout) {
+    final BasicDBObject update = LockDocuments.ticketUpdate(ticketId, getServerTime(), ticketTimeout, distributedLockServiceConfig);
 
-      // If it is unlocked, then try and lock.
-      if (lockState.isUnlocked()) {
-        final Optional<ObjectId> lockId
-                = tryLockingExisting(mongoClient, key, currentLockId, distributedLockServiceConfig, distributedLockTimeOutOptions, serverTime, startTime);
-        if (lockId.isPresent()) return lockId;
+    final long start = System.nanoTime();
+    int roundTrips = 0;
+    try {
+      while (true) {
+        roundTrips++;
+        try {
+          return collection(key).findOneAndUpdate(LockDocuments.idQuery(key), update, LockDocuments.TICKET_OPTIONS)
+                  .getLong(LockDef.NEXT_TICKET.lockField);
+        } catch (final MongoException e) {
+          // Another first ticket of the key inserted the document, this one is then an update.
+          if (e.getCode() != DUPLICATE_KEY_ERROR || roundTrips > 1) throw failed(LockOperation.ACQUIRE, e);
+        }
       }
+    } finally {
+      lockMetrics.recordOperation(LockOperation.ACQUIRE, System.nanoTime() - start, roundTrips);
+    }
+  }
 
-      final ObjectId lockId = (ObjectId) lockDoc.get().get(LockDef.LOCK_ID.lockField);
-
-      // Could not get the lock.
-      incrementLockAttemptCount(mongoClient, key, lockId, distributedLockServiceConfig);
+  /**
+   * Try and get the lock in the turn of the ticket. Like lock, a single conditional update: its $expr
+   * matches if the ticket is the first live one of the queue, and it pulls the ticket along with the
+   * expired ones.
+   */
+  @Override
+  public Optional<DistributedLock> lockInTurn(final String key,
+                                              final ObjectId ticketId,
+                                              final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final ServerClock serverClock = getServerClock();
+    final long serverTime = serverClock.currentTimeMillis();
+    final Date expiredBefore = new Date(serverTime - serverClock.getErrorBound());
+
+    final BasicDBObject query = LockDocuments.acquireInTurnQuery(key, ticketId, expiredBefore);
+    final BasicDBObject update = LockDocuments.acquireInTurnUpdate(ownerId, ticketId, expiredBefore, serverTime,
+            distributedLockServiceConfig, distributedLockTimeOutOptions);
+
+    final long start = System.nanoTime();
+    try {
+      final Document lockDoc = collection(key).findOneAndUpdate(query, update, LockDocuments.ACQUIRE_IN_TURN_OPTIONS);
+      if (lockDoc != null) {
+        return Optional.of(new DistributedLock(ticketId, new AtomicBoolean(true), LockDocuments.fencingToken(lockDoc)));
+      }
+    } catch (final MongoException e) {
+      throw failed(LockOperation.ACQUIRE, e);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.ACQUIRE, System.nanoTime() - start, 1);
     }
 
+    lockMetrics.recordContention(LockOperation.ACQUIRE);
+    incrementLockAttemptCount(key);
     return Optional.empty();
-
   }
 
-  private static Optional<ObjectId> tryLockingExisting(final MongoClient mongoClient,
-                                                       final String key,
-                                                       final ObjectId currentLockId,
-                                                       final DistributedLockServiceConfig distributedLockServiceConfig,
-                                                       final DistributedLockTimeOutOptions distributedLockTimeOutOptions,
-                                                       final long pServerTime,
-                                                       final long pStartTime) {
-    final long adjustTime = System.currentTimeMillis() - pStartTime;
+  @Override
+  public boolean renewTicket(final String key, final ObjectId ticketId, final long ticketTimeout) {
+    final long start = System.nanoTime();
+    try {
+      return collection(key).updateOne(LockDocuments.leaseHeldQuery(LockDef.QUEUE, key, ticketId),
+              LockDocuments.ticketRenewUpdate(getServerTime(), ticketTimeout, distributedLockServiceConfig)).getMatchedCount() > 0;
+    } catch (final MongoException e) {
+      throw failed(LockOperation.RENEW, e);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.RENEW, System.nanoTime() - start, 1);
+    }
+  }
 
-    final long serverTime = pServerTime + adjustTime;
-    final Date now = new Date(serverTime);
+  @Override
+  public void returnTicket(final String key, final ObjectId ticketId) {
+    releaseLease(LockDef.QUEUE, key, ticketId);
+  }
 
+  /**
+   * Try and get a read lease on the lock, shared with other readers. If unable to do so (the lock is
+   * held by a writer or a writer is waiting for it), this returns an empty optional.
+   * <p>
+   * Like lock, this is a single conditional upsert. The fencing token is the one of the last writer
+   * and is not bumped.
+   */
+  @Override
+  public Optional<DistributedLock> readLock(final String key, final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final ServerClock serverClock = getServerClock();
+    final long serverTime = serverClock.currentTimeMillis();
     final ObjectId lockId = ObjectId.get();
 
-    final BasicDBObject query = new BasicDBObject(LockDef.ID.lockField, key);
-    query.put(LockDef.LOCK_ID.lockField, currentLockId);
-    query.put(LockDef.STATE.lockField, LockState.UNLOCKED.code());
-
-    final BasicDBObject toSet = new BasicDBObject();
-    toSet.put(LockDef.UPDATED.lockField, now);
-    toSet.put(LockDef.LAST_HEARTBEAT.lockField, now);
-    toSet.put(LockDef.LOCK_ACQUIRED_TIME.lockField, now);
-    toSet.put(LockDef.LOCK_TIMEOUT_TIME.lockField, new Date((serverTime + distributedLockTimeOutOptions.getInactiveLockTimeout())));
-    toSet.put(LockDef.LOCK_ID.lockField, lockId);
-    toSet.put(LockDef.STATE.lockField, LockState.LOCKED.code());
-    toSet.put(LockDef.OWNER_APP_NAME.lockField, distributedLockServiceConfig.getAppName());
-    toSet.put(LockDef.OWNER_ADDRESS.lockField, distributedLockServiceConfig.getHostAddress());
-    toSet.put(LockDef.OWNER_HOSTNAME.lockField, distributedLockServiceConfig.getHostname());
-    toSet.put(LockDef.OWNER_THREAD_ID.lockField, Thread.currentThread().getId());
-    toSet.put(LockDef.OWNER_THREAD_NAME.lockField, Thread.currentThread().getName());
-    toSet.put(LockDef.OWNER_THREAD_GROUP_NAME.lockField, Thread.currentThread().getThreadGroup().getName());
-    toSet.put(LockDef.LOCK_ATTEMPT_COUNT.lockField, 0);
-    toSet.put(LockDef.INACTIVE_LOCK_TIMEOUT.lockField, distributedLockTimeOutOptions.getInactiveLockTimeout());
-
-    // Try and modify the existing lock.
-    final Document lockDoc
-            = getDbCollection(mongoClient, distributedLockServiceConfig).findOneAndUpdate(query, toSet);
-
-    if (lockDoc == null) return Optional.empty();
-    if (!lockDoc.containsKey(LockDef.LOCK_ID.lockField)) return Optional.empty();
-
-    final ObjectId returnedLockId = lockDoc.getObjectId(LockDef.LOCK_ID.lockField);
-    if (returnedLockId == null) return Optional.empty();
-    if (!returnedLockId.equals(lockId)) Optional.empty();
-
-    // Yay... we have the lock.
-    return Optional.of(lockId);
+    final BasicDBObject query
+            = LockDocuments.readQuery(key, new Date(serverTime - serverClock.getErrorBound()), serverTime);
+    final BasicDBObject update
+            = LockDocuments.readUpdate(lockId, serverTime, distributedLockServiceConfig, distributedLockTimeOutOptions);
+
+    final long start = System.nanoTime();
+    try {
+      final Document lockDoc = collection(key).findOneAndUpdate(query, update, LockDocuments.ACQUIRE_OPTIONS);
+      if (lockDoc != null) {
+        return Optional.of(new DistributedLock(lockId, new AtomicBoolean(true), LockDocuments.fencingToken(lockDoc)));
+      }
+    } catch (final MongoException e) {
+      if (e.getCode() != DUPLICATE_KEY_ERROR) throw failed(LockOperation.ACQUIRE, e);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.ACQUIRE, System.nanoTime() - start, 1);
+    }
+
+    lockMetrics.recordContention(LockOperation.ACQUIRE);
+    incrementLockAttemptCount(key);
+    return Optional.empty();
   }
 
   /**
-   * This will try and create the object. If successful, it will return the lock id.
-   * Otherwise, it will return null (i.e., no lock).
+   * Try and get all the locks, or none of them. The keys are claimed in their natural order with
+   * ordered bulk writes (one round trip per batch the driver splits them into), which stop at the
+   * first held key. Partial claims are then rolled back with a single update, so two callers with
+   * overlapping keys can't deadlock or both end up with a subset.
    */
-  private static Optional<ObjectId> tryInsertNew(final MongoClient pMongo,
-                                                 final String key,
-                                                 final DistributedLockServiceConfig distributedLockServiceConfig,
-                                                 final DistributedLockTimeOutOptions distributedLockTimeOutOptions,
-                                                 final long pServerTime,
-                                                 final long pStartTime) {
-    final long adjustTime = System.currentTimeMillis() - pStartTime;
+  @Override
+  public Optional<Map<String, DistributedLock>> lockAll(final Collection<String> keys,
+                                                        final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final List<String> orderedKeys = new ArrayList<>(new TreeSet<>(keys));
+    if (orderedKeys.isEmpty()) return Optional.of(Collections.emptyMap());
 
-    final long serverTime = pServerTime + adjustTime;
-    final Date now = new Date(serverTime);
+    final ServerClock serverClock = getServerClock();
+    final long serverTime = serverClock.currentTimeMillis();
+    final Date expiredBefore = new Date(serverTime - serverClock.getErrorBound());
+
+    // All keys share one lock id, which lets the rollback and the token lookup match them at once.
     final ObjectId lockId = ObjectId.get();
+    final BasicDBObject update
+            = LockDocuments.acquireUpdate(ownerId, lockId, serverTime, distributedLockServiceConfig, distributedLockTimeOutOptions);
+
+    // The keys are claimed in one bulk write, with the safest profile among them.
+    final LockCollection collection = collection(orderedKeys);
+    final List<UpdateOneModel<Document>> claims = new ArrayList<>(orderedKeys.size());
+    for (final String key : orderedKeys) {
+      claims.add(new UpdateOneModel<>(LockDocuments.acquireQuery(key, expiredBefore), update, LockDocuments.UPSERT));
+    }
 
-    final Thread currentThread = Thread.currentThread();
-
-    // final BasicDBObject lockDoc = new BasicDBObject(LockDef.ID.lockField, key);
-    final Document lockDoc = new Document(LockDef.ID.lockField, key);
-    lockDoc.put(LockDef.UPDATED.lockField, now);
-    lockDoc.put(LockDef.LAST_HEARTBEAT.lockField, now);
-    lockDoc.put(LockDef.LOCK_ACQUIRED_TIME.lockField, now);
-    lockDoc.put(LockDef.LOCK_ID.lockField, lockId);
-    lockDoc.put(LockDef.STATE.lockField, LockState.LOCKED.code());
-    lockDoc.put(LockDef.LOCK_TIMEOUT_TIME.lockField, new Date((serverTime + distributedLockTimeOutOptions.getInactiveLockTimeout())));
-    lockDoc.put(LockDef.OWNER_APP_NAME.lockField, distributedLockServiceConfig.getAppName());
-    lockDoc.put(LockDef.OWNER_ADDRESS.lockField, distributedLockServiceConfig.getHostAddress());
-    lockDoc.put(LockDef.OWNER_HOSTNAME.lockField, distributedLockServiceConfig.getHostname());
-    lockDoc.put(LockDef.OWNER_THREAD_ID.lockField, currentThread.getId());
-    lockDoc.put(LockDef.OWNER_THREAD_NAME.lockField, currentThread.getName());
-    lockDoc.put(LockDef.OWNER_THREAD_GROUP_NAME.lockField, currentThread.getThreadGroup().getName());
-    lockDoc.put(LockDef.LOCK_ATTEMPT_COUNT.lockField, 0);
-    lockDoc.put(LockDef.INACTIVE_LOCK_TIMEOUT.lockField, distributedLockTimeOutOptions.getInactiveLockTimeout());
-
-    // Insert, if successful then get out of here.
-    try {
-      getDbCollection(pMongo, distributedLockServiceConfig).insertOne(lockDoc);
+    final long start = System.nanoTime();
+    int roundTrips = 1;
+    try {
+      try {
+        collection.bulkWrite(claims, LockDocuments.ORDERED);
+      } catch (final MongoBulkWriteException e) {
+        roundTrips++;
+        rollback(collection, orderedKeys, lockId);
+        for (final BulkWriteError error : e.getWriteErrors()) {
+          if (error.getCode() != DUPLICATE_KEY_ERROR) throw failed(LockOperation.ACQUIRE, e);
+        }
+        lockMetrics.recordContention(LockOperation.ACQUIRE);
+        return Optional.empty();
+      } catch (final MongoException e) {
+        roundTrips++;
+        rollback(collection, orderedKeys, lockId);
+        throw failed(LockOperation.ACQUIRE, e);
+      }
+
+      roundTrips++;
+      final Map<String, DistributedLock> locks = new HashMap<>();
+      for (final Document lockDoc : collection.find(LockDocuments.heldQuery(orderedKeys, Collections.singletonList(lockId)),
+              LockDocuments.FENCING_TOKEN_PROJECTION)) {
+        locks.put(lockDoc.getString(LockDef.ID.lockField),
+                new DistributedLock(lockId, new AtomicBoolean(true), LockDocuments.fencingToken(lockDoc)));
+      }
+      return Optional.of(locks);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.ACQUIRE, System.nanoTime() - start, roundTrips);
+    }
+  }
+
+  /**
+   * Release whatever subset of the keys was claimed with the lock id.
+   */
+  private void rollback(final LockCollection collection, final List<String> keys, final ObjectId lockId) {
+    collection.updateMany(LockDocuments.heldQuery(keys, Collections.singletonList(lockId)),
+            LockDocuments.releaseUpdate(getServerTime(), distributedLockServiceConfig));
+  }
+
+  /**
+   * Increment the waiting request count of the lock. This can be used by application developers to
+   * diagnose problems with their applications. The counts are written in bulk, see {@link LockAttemptCounter}.
+   */
+  private void incrementLockAttemptCount(final String pLockName) {
+    lockAttemptCounter.record(pLockName);
+  }
+
+  /**
+   * Increment the waiting request count of the lock for a failed writer, and hold new readers back
+   * for writerPreferenceWindow ms so the writer can't be starved by overlapping readers. The window
+   * is pushed right away, but only about twice per window.
+   */
+  private void incrementLockAttemptCount(final String pLockName, final long serverTime) {
+    final long waitingUntil = serverTime + distributedLockServiceConfig.getWriterPreferenceWindow();
+    if (!lockAttemptCounter.claimWriterPreference(pLockName, waitingUntil)) {
+      lockAttemptCounter.record(pLockName);
+      return;
+    }
+    // Fire and forget, so a failed attempt does not pay a second round trip.
+    unacknowledgedLockCollection.updateOne(LockDocuments.idQuery(pLockName), LockDocuments.writerAttemptUpdate(waitingUntil));
+  }
+
+  /**
+   * Unlock the lock.
+   */
+  @Override
+  public Optional<ObjectId> unlock(final String key, final ObjectId lockId) {
+    final BasicDBObject query = LockDocuments.heldQuery(key, lockId);
+    final BasicDBObject update = LockDocuments.releaseUpdate(getServerTime(), distributedLockServiceConfig);
+
+    final long start = System.nanoTime();
+    try {
+      if (collection(key).updateOne(query, update).getMatchedCount() == 0) return Optional.empty();
     } catch (MongoException e) {
+      lockMetrics.recordFailure(LockOperation.RELEASE);
       return Optional.empty();
+    } finally {
+      lockMetrics.recordOperation(LockOperation.RELEASE, System.nanoTime() - start, 1);
     }
 
     return Optional.of(lockId);
   }
 
+
   /**
-   * Find by lock key/id.
+   * Release the provided locks with one update, matched by key and lock id like renew. Read leases
+   * are left to expire.
    */
-  private static Optional<Document> findById(final MongoClient pMongo,
-                                             final String key,
-                                             final DistributedLockServiceConfig distributedLockServiceConfig) {
-    MongoCursor<Document> documentMongoCursor = getDbCollection(pMongo, distributedLockServiceConfig)
-            .find(new BasicDBObject(LockDef.ID.lockField, key)).iterator();
+  @Override
+  public long unlockAll(final Map<String, ObjectId> locks) {
+    if (locks.isEmpty()) return 0;
 
-    return documentMongoCursor.hasNext() ? Optional.of(documentMongoCursor.next()) : Optional.empty();
+    final long start = System.nanoTime();
+    try {
+      return lockCollection(safestProfile()).updateMany(LockDocuments.heldQuery(locks.keySet(), locks.values()),
+              LockDocuments.releaseUpdate(getServerTime(), distributedLockServiceConfig)).getModifiedCount();
+    } catch (final MongoException e) {
+      throw failed(LockOperation.RELEASE, e);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.RELEASE, System.nanoTime() - start, 1);
+    }
   }
 
   /**
-   * Increment the waiting request count. This can be used by application developers
-   * to diagnose problems with their applications.
+   * Release a read lease. Returns an empty optional if the lease was not held.
    */
-  private static void incrementLockAttemptCount(final MongoClient pMongo,
-                                                final String pLockName,
-                                                final ObjectId pLockId,
-                                                final DistributedLockServiceConfig pSvcOptions) {
+  @Override
+  public Optional<ObjectId> readUnlock(final String key, final ObjectId lockId) {
+    return releaseLease(LockDef.READERS, key, lockId);
+  }
 
-    final BasicDBObject query = new BasicDBObject(LockDef.ID.lockField, pLockName);
-    query.put(LockDef.LOCK_ID.lockField, pLockId);
+  /**
+   * Renew the provided read leases (by key) with one unordered bulk write.
+   * Returns the keys of the read leases that are no longer held by us.
+   */
+  @Override
+  public Set<String> readRenew(final Map<String, DistributedLock> locks,
+                               final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    return renewLeases(LockDef.READERS, locks, distributedLockTimeOutOptions);
+  }
+
+  /**
+   * Try and get permits of a semaphore, as a new holder with its own lease. If fewer than the
+   * permits are left out of maxPermits, this returns an empty optional.
+   * <p>
+   * The holder is added with one conditional update: the query sums the permits of the live holders
+   * with $expr, so holders whose lease expired (crashed nodes) don't count. Mongo rejects upserts on
+   * $expr queries, so when nothing matches the semaphore is created ($setOnInsert) and, only if it
+   * did not exist, the update is tried once more. A full semaphore doesn't match, and its expired
+   * holders are then pulled without waiting for an ack.
+   * Semaphore keys share the _id space of the locks, so they must not be used as lock keys.
+   */
+  public Optional<DistributedLock> acquirePermits(final String key,
+                                                  final int permits,
+                                                  final int maxPermits,
+                                                  final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final ServerClock serverClock = getServerClock();
+    final long serverTime = serverClock.currentTimeMillis();
+    final Date expiredBefore = new Date(serverTime - serverClock.getErrorBound());
+    final ObjectId lockId = ObjectId.get();
+
+    final long start = System.nanoTime();
+    int roundTrips = 1;
+    try {
+      Document semaphoreDoc = takePermits(key, lockId, permits, maxPermits, serverTime, expiredBefore, distributedLockTimeOutOptions);
+      if (semaphoreDoc == null) {
+        roundTrips++;
+        if (createSemaphore(key, serverTime, distributedLockTimeOutOptions)) {
+          roundTrips++;
+          semaphoreDoc = takePermits(key, lockId, permits, maxPermits, serverTime, expiredBefore, distributedLockTimeOutOptions);
+        }
+      }
+      if (semaphoreDoc != null) return Optional.of(new DistributedLock(lockId, new AtomicBoolean(true)));
+    } catch (final MongoException e) {
+      throw failed(LockOperation.ACQUIRE, e);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.ACQUIRE, System.nanoTime() - start, roundTrips);
+    }
 
-    getDbCollection(pMongo, pSvcOptions)
-            .updateOne(query, new BasicDBObject(INC, new BasicDBObject(LockDef.LOCK_ATTEMPT_COUNT.lockField, 1)));
+    lockMetrics.recordContention(LockOperation.ACQUIRE);
+    removeExpiredHolders(key, expiredBefore);
+    return Optional.empty();
   }
 
   /**
-   * Unlock the lock.
+   * Try and add permits to a live holder of a semaphore. Returns false if fewer than the permits
+   * are left, or if the holder's lease is gone.
+   */
+  public boolean addPermits(final String key,
+                            final ObjectId lockId,
+                            final int permits,
+                            final int maxPermits) {
+    final ServerClock serverClock = getServerClock();
+    final long serverTime = serverClock.currentTimeMillis();
+    final Date expiredBefore = new Date(serverTime - serverClock.getErrorBound());
+
+    final long start = System.nanoTime();
+    final UpdateResult result;
+    try {
+      result = collection(key).updateOne(
+              LockDocuments.heldPermitsQuery(key, lockId, expiredBefore, permits, maxPermits),
+              LockDocuments.heldPermitsUpdate(permits, serverTime));
+    } catch (final MongoException e) {
+      throw failed(LockOperation.ACQUIRE, e);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.ACQUIRE, System.nanoTime() - start, 1);
+    }
+    if (result.getMatchedCount() > 0) return true;
+
+    lockMetrics.recordContention(LockOperation.ACQUIRE);
+    removeExpiredHolders(key, expiredBefore);
+    return false;
+  }
+
+  /**
+   * Give back some of the permits of a holder, which keeps its lease. Returns false if the lease is gone.
+   */
+  public boolean returnPermits(final String key, final ObjectId lockId, final int permits) {
+    final long start = System.nanoTime();
+    try {
+      return collection(key).updateOne(LockDocuments.leaseHeldQuery(LockDef.HOLDERS, key, lockId),
+              LockDocuments.heldPermitsUpdate(-permits, getServerTime())).getMatchedCount() > 0;
+    } catch (MongoException e) {
+      lockMetrics.recordFailure(LockOperation.RELEASE);
+      return false;
+    } finally {
+      lockMetrics.recordOperation(LockOperation.RELEASE, System.nanoTime() - start, 1);
+    }
+  }
+
+  /**
+   * Release all the permits of a holder. Returns an empty optional if the lease was not held.
+   */
+  public Optional<ObjectId> releasePermits(final String key, final ObjectId lockId) {
+    return releaseLease(LockDef.HOLDERS, key, lockId);
+  }
+
+  /**
+   * Renew the leases of the provided semaphore holders (by key) with one unordered bulk write.
+   * Returns the keys of the semaphores whose permits are no longer held by us.
    */
-  public static synchronized Optional<ObjectId> unlock(final MongoClient mongoClient,
-                                                       final String key,
-                                                       final DistributedLockServiceConfig distributedLockServiceConfig,
-                                                       final ObjectId lockId) {
-    final BasicDBObject toSet = new BasicDBObject();
-    toSet.put(LockDef.UPDATED.lockField, new Date(getServerTime(mongoClient, distributedLockServiceConfig)));
-    toSet.put(LockDef.LOCK_ACQUIRED_TIME.lockField, null);
-    toSet.put(LockDef.LOCK_TIMEOUT_TIME.lockField, null);
-    toSet.put(LockDef.LOCK_ID.lockField, null);
-    toSet.put(LockDef.STATE.lockField, LockState.UNLOCKED.code());
-    toSet.put(LockDef.OWNER_APP_NAME.lockField, null);
-    toSet.put(LockDef.OWNER_ADDRESS.lockField, null);
-    toSet.put(LockDef.OWNER_HOSTNAME.lockField, null);
-    toSet.put(LockDef.OWNER_THREAD_ID.lockField, null);
-    toSet.put(LockDef.OWNER_THREAD_NAME.lockField, null);
-    toSet.put(LockDef.OWNER_THREAD_GROUP_NAME.lockField, null);
-    toSet.put(LockDef.LOCK_ATTEMPT_COUNT.lockField, 0);
-    toSet.put(LockDef.INACTIVE_LOCK_TIMEOUT.lockField, null);
-
-    final BasicDBObject query = new BasicDBObject(LockDef.ID.lockField, key);
-    query.put(LockDef.LOCK_ID.lockField, lockId);
-    query.put(LockDef.STATE.lockField, LockState.LOCKED.code());
-
-    try {
-      getDbCollection(mongoClient, distributedLockServiceConfig).findOneAndUpdate(query, toSet);
+  public Set<String> renewPermits(final Map<String, DistributedLock> holders,
+                                  final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    return renewLeases(LockDef.HOLDERS, holders, distributedLockTimeOutOptions);
+  }
+
+  private Document takePermits(final String key,
+                               final ObjectId lockId,
+                               final int permits,
+                               final int maxPermits,
+                               final long serverTime,
+                               final Date expiredBefore,
+                               final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    return collection(key).findOneAndUpdate(
+            LockDocuments.permitsQuery(key, expiredBefore, permits, maxPermits),
+            LockDocuments.permitsUpdate(lockId, permits, serverTime, distributedLockServiceConfig, distributedLockTimeOutOptions),
+            LockDocuments.PERMITS_OPTIONS);
+  }
+
+  /**
+   * Creates the semaphore if it doesn't exist. Returns false if it already existed, i.e. it was full.
+   */
+  private boolean createSemaphore(final String key,
+                                  final long serverTime,
+                                  final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    try {
+      return collection(key).updateOne(LockDocuments.idQuery(key),
+              LockDocuments.semaphoreInsertUpdate(serverTime, distributedLockServiceConfig, distributedLockTimeOutOptions),
+              LockDocuments.UPSERT).getUpsertedId() != null;
+    } catch (final MongoException e) {
+      // Another node created it at the same time, empty.
+      if (e.getCode() != DUPLICATE_KEY_ERROR) throw e;
+      return true;
+    }
+  }
+
+  private void removeExpiredHolders(final String key, final Date expiredBefore) {
+    unacknowledgedLockCollection.updateOne(LockDocuments.idQuery(key), LockDocuments.expiredHoldersUpdate(expiredBefore));
+  }
+
+  private Optional<ObjectId> releaseLease(final LockDef leases, final String key, final ObjectId lockId) {
+    final long start = System.nanoTime();
+    try {
+      final UpdateResult result = collection(key).updateOne(LockDocuments.leaseHeldQuery(leases, key, lockId),
+              LockDocuments.leaseReleaseUpdate(leases, lockId, getServerTime(), distributedLockServiceConfig));
+      if (result.getMatchedCount() == 0) return Optional.empty();
     } catch (MongoException e) {
+      lockMetrics.recordFailure(LockOperation.RELEASE);
       return Optional.empty();
+    } finally {
+      lockMetrics.recordOperation(LockOperation.RELEASE, System.nanoTime() - start, 1);
     }
 
     return Optional.of(lockId);
   }
 
+  private Set<String> renewLeases(final LockDef leases,
+                                  final Map<String, DistributedLock> locks,
+                                  final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    if (locks.isEmpty()) return Collections.emptySet();
+
+    final BasicDBObject update
+            = LockDocuments.leaseRenewUpdate(leases, getServerTime(), distributedLockServiceConfig, distributedLockTimeOutOptions);
+
+    final Set<String> lostKeys = new HashSet<>();
+    for (final Map.Entry<LockCollection, Map<String, DistributedLock>> profileLocks : byCollection(locks).entrySet()) {
+      lostKeys.addAll(renewLeases(leases, profileLocks.getKey(), profileLocks.getValue(), update));
+    }
+    return lostKeys;
+  }
+
+  private Set<String> renewLeases(final LockDef leases,
+                                  final LockCollection collection,
+                                  final Map<String, DistributedLock> locks,
+                                  final BasicDBObject update) {
+    final List<UpdateOneModel<Document>> renewals = new ArrayList<>(locks.size());
+    final List<ObjectId> lockIds = new ArrayList<>(locks.size());
+    for (final Map.Entry<String, DistributedLock> lock : locks.entrySet()) {
+      renewals.add(new UpdateOneModel<>(LockDocuments.leaseHeldQuery(leases, lock.getKey(), lock.getValue().getLockedId()), update));
+      lockIds.add(lock.getValue().getLockedId());
+    }
+
+    final long start = System.nanoTime();
+    int roundTrips = 1;
+    try {
+      final BulkWriteResult result = collection.bulkWrite(renewals, LockDocuments.UNORDERED);
+      if (result.getMatchedCount() == renewals.size()) return Collections.emptySet();
+
+      roundTrips++;
+      final Set<String> lostKeys = new HashSet<>(locks.keySet());
+      for (final Document lockDoc : collection
+              .find(LockDocuments.leaseHeldQuery(leases, locks.keySet(), lockIds), LockDocuments.ID_PROJECTION)) {
+        lostKeys.remove(lockDoc.getString(LockDef.ID.lockField));
+      }
+      return lostKeys;
+    } catch (final MongoException e) {
+      throw failed(LockOperation.RENEW, e);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.RENEW, System.nanoTime() - start, roundTrips);
+    }
+  }
 
   /**
-   * Returns the collection.
+   * Renew the leases of the provided locks (by key) with one unordered bulk write per durability
+   * profile among them. Returns the keys of the locks that are no longer held by us.
    */
-  private static MongoCollection<Document> getDbCollection(final MongoClient pMongo,
-                                                           final DistributedLockServiceConfig pSvcOptions) {
-    return getDb(pMongo, pSvcOptions).getCollection(pSvcOptions.getCollectionName());
+  @Override
+  public Set<String> renew(final Map<String, DistributedLock> locks,
+                           final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    if (locks.isEmpty()) return Collections.emptySet();
+
+    final BasicDBObject update
+            = LockDocuments.renewUpdate(getServerTime(), distributedLockServiceConfig, distributedLockTimeOutOptions);
+
+    final Set<String> lostKeys = new HashSet<>();
+    for (final Map.Entry<LockCollection, Map<String, DistributedLock>> profileLocks : byCollection(locks).entrySet()) {
+      lostKeys.addAll(renew(profileLocks.getKey(), profileLocks.getValue(), update));
+    }
+    return lostKeys;
   }
-}
 
+  private Set<String> renew(final LockCollection collection,
+                            final Map<String, DistributedLock> locks,
+                            final BasicDBObject update) {
+    final List<UpdateOneModel<Document>> renewals = new ArrayList<>(locks.size());
+    final List<ObjectId> lockIds = new ArrayList<>(locks.size());
+    for (final Map.Entry<String, DistributedLock> lock : locks.entrySet()) {
+      renewals.add(new UpdateOneModel<>(LockDocuments.heldQuery(lock.getKey(), lock.getValue().getLockedId()), update));
+      lockIds.add(lock.getValue().getLockedId());
+    }
+
+    final long start = System.nanoTime();
+    int roundTrips = 1;
+    try {
+      final BulkWriteResult result = collection.bulkWrite(renewals, LockDocuments.UNORDERED);
+      if (result.getMatchedCount() == renewals.size()) return Collections.emptySet();
+
+      // Some leases were not renewed, find out which ones are still ours.
+      roundTrips++;
+      final Set<String> lostKeys = new HashSet<>(locks.keySet());
+      for (final Document lockDoc : collection
+              .find(LockDocuments.heldQuery(locks.keySet(), lockIds), LockDocuments.ID_PROJECTION)) {
+        lostKeys.remove(lockDoc.getString(LockDef.ID.lockField));
+      }
+      return lostKeys;
+    } catch (final MongoException e) {
+      throw failed(LockOperation.RENEW, e);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.RENEW, System.nanoTime() - start, roundTrips);
+    }
+  }
+
+  /**
+   * Returns the lock collection with the durability profile of the key.
+   */
+  private LockCollection collection(final String key) {
+    return lockCollection(distributedLockServiceConfig.getDurabilityProfile(key));
+  }
+
+  /**
+   * Returns the lock collection with the safest durability profile of the keys.
+   */
+  private LockCollection collection(final Collection<String> keys) {
+    DurabilityProfile durabilityProfile = DurabilityProfile.values()[0];
+    for (final String key : keys) durabilityProfile = durabilityProfile.max(distributedLockServiceConfig.getDurabilityProfile(key));
+    return lockCollection(durabilityProfile);
+  }
+
+  private LockCollection lockCollection(final DurabilityProfile durabilityProfile) {
+    // A plain get first: computeIfAbsent locks the bin even when the collection is there.
+    final LockCollection profiledCollection = lockCollections.get(durabilityProfile);
+    if (profiledCollection != null) return profiledCollection;
+    return lockCollections.computeIfAbsent(durabilityProfile,
+            profile -> new LockCollection(mongoClient, lockCollection, profile));
+  }
+
+  /**
+   * Returns the safest durability profile any key may have.
+   */
+  private DurabilityProfile safestProfile() {
+    DurabilityProfile durabilityProfile = distributedLockServiceConfig.getDurabilityProfile();
+    for (final DurabilityProfile prefixProfile : distributedLockServiceConfig.getDurabilityProfiles().values()) {
+      durabilityProfile = durabilityProfile.max(prefixProfile);
+    }
+    return durabilityProfile;
+  }
+
+  /**
+   * Splits the locks (by key) by the lock collection of their durability profile.
+   */
+  private Map<LockCollection, Map<String, DistributedLock>> byCollection(final Map<String, DistributedLock> locks) {
+    final Map<LockCollection, Map<String, DistributedLock>> locksByCollection = new HashMap<>();
+    for (final Map.Entry<String, DistributedLock> lock : locks.entrySet()) {
+      locksByCollection.computeIfAbsent(collection(lock.getKey()), c -> new HashMap<>()).put(lock.getKey(), lock.getValue());
+    }
+    return locksByCollection;
+  }
+
+  /**
+   * Returns the metrics of this dao's operations.
+   */
+  @Override
+  public LockMetrics getMetrics() {
+    return lockMetrics;
+  }
+
+  /**
+   * Stops the periodic flush of the attempt counts, writing the pending ones, and releases the
+   * watcher of the collection.
+   */
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) return;
+    releaseWatcher.release();
+    lockAttemptCounter.close();
+  }
+
+  /**
+   * Counts the failure of the operation and returns the exception to rethrow.
+   */
+  private <E extends MongoException> E failed(final LockOperation operation, final E e) {
+    lockMetrics.recordFailure(operation);
+    return e;
+  }
+
+  /**
+   * Returns the watcher waking up waiters of this dao's lock collection, shared by all keys.
+   */
+  @Override
+  public LockReleaseWatcher getReleaseWatcher(final String key) {
+    return releaseWatcher;
+  }
+
+  /**
+   * Returns how many ms the lease of the writer holding the lock has left by the server clock.
+   * This is one read of the lock's state.
+   */
+  @Override
+  public Optional<Long> getRemainingLease(final String key) {
+    final long serverTime = getServerTime();
+
+    final long start = System.nanoTime();
+    try {
+      return find(key).filter(lockRecord -> lockRecord.isHeld(serverTime))
+              .map(lockRecord -> lockRecord.lockTimeoutTime - serverTime);
+    } catch (final MongoException e) {
+      throw failed(LockOperation.LOOKUP, e);
+    } finally {
+      lockMetrics.recordOperation(LockOperation.LOOKUP, System.nanoTime() - start, 1);
+    }
+  }
+
+  /**
+   * Reads the state of the lock, or an empty optional if it has no document. Only the state, lock id
+   * and lease deadline are fetched.
+   */
+  Optional<LockRecord> find(final String key) {
+    return Optional.ofNullable(collection(key).findFirst(LockDocuments.idQuery(key), LockRecord.class,
+            LockRecordCodec.READ_PROJECTION));
+  }
+}
@@ -20,11 +20,26 @@ enum LockDef {
   OWNER_THREAD_ID("ownerThreadId"),
   OWNER_THREAD_NAME("ownerThreadName"),
   OWNER_THREAD_GROUP_NAME("ownerThreadGroupName"),
+  OWNER_ID("ownerId"), // The store that granted the lock
 
   INACTIVE_LOCK_TIMEOUT("inactiveLockTimeout"), // The number of ms before timeout (since last heartbeat)
   LOCK_TIMEOUT_TIME("lockTimeoutTime"),
 
-  LOCK_ATTEMPT_COUNT("lockAttemptCount"); // The number of times another thread/process has requested this lock (since locked)
+  LOCK_ATTEMPT_COUNT("lockAttemptCount"), // The number of times another thread/process has requested this lock (since locked)
+
+  FENCING_TOKEN("fencingToken"), // Incremented on every acquire, lets downstream writers reject stale holders
+  FENCING_EPOCH("fencingEpoch"), // Added to the fencing token, set from the server time when the document is inserted
+
+  READERS("readers"), // The read leases ({lockId, lockTimeoutTime}) sharing the lock
+  WRITER_WAITING_UNTIL("writerWaitingUntil"), // New readers are turned away until then, so writers don't starve
+
+  QUEUE("queue"), // The tickets ({lockId, lockTimeoutTime}) of fair waiters, in the order they were taken
+  NEXT_TICKET("nextTicket"), // Incremented by every ticket taken
+
+  REAP_AT("reapAt"), // The TTL index removes the document after this time, which stays past every lease
+
+  HOLDERS("holders"), // The leases ({lockId, permits, lockTimeoutTime}) holding permits of a semaphore
+  PERMITS("permits");
 
   LockDef(final String lockField) {
     this.lockField = lockField;
@@ -0,0 +1,495 @@
+package com.insparx.mongo.util.dao;
+
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static com.insparx.mongo.util.dao.BaseDao.ELEM_MATCH;
+import static com.insparx.mongo.util.dao.BaseDao.EXPR;
+import static com.insparx.mongo.util.dao.BaseDao.GTE;
+import static com.insparx.mongo.util.dao.BaseDao.IN;
+import static com.insparx.mongo.util.dao.BaseDao.INC;
+import static com.insparx.mongo.util.dao.BaseDao.LT;
+import static com.insparx.mongo.util.dao.BaseDao.LTE;
+import static com.insparx.mongo.util.dao.BaseDao.MAX;
+import static com.insparx.mongo.util.dao.BaseDao.NOT;
+import static com.insparx.mongo.util.dao.BaseDao.OR;
+import static com.insparx.mongo.util.dao.BaseDao.PULL;
+import static com.insparx.mongo.util.dao.BaseDao.PUSH;
+import static com.insparx.mongo.util.dao.BaseDao.SET;
+import static com.insparx.mongo.util.dao.BaseDao.SET_ON_INSERT;
+import static com.insparx.mongo.util.dao.BaseDao.UNSET;
+
+/**
+ * The queries and updates on lock documents, shared by the sync and async daos.
+ */
+final class LockDocuments {
+
+  static final BasicDBObject ID_PROJECTION = new BasicDBObject(LockDef.ID.lockField, 1);
+  static final BasicDBObject FENCING_TOKEN_PROJECTION
+          = new BasicDBObject(LockDef.FENCING_TOKEN.lockField, 1).append(LockDef.FENCING_EPOCH.lockField, 1);
+
+  // Acquires only need the document to exist and its fencing token, not the whole lock sent back.
+  static final FindOneAndUpdateOptions ACQUIRE_OPTIONS = new FindOneAndUpdateOptions().upsert(true)
+          .returnDocument(ReturnDocument.AFTER).projection(FENCING_TOKEN_PROJECTION);
+  // A turn is only taken on the document the ticket is in, so it never upserts.
+  static final FindOneAndUpdateOptions ACQUIRE_IN_TURN_OPTIONS = new FindOneAndUpdateOptions()
+          .returnDocument(ReturnDocument.AFTER).projection(FENCING_TOKEN_PROJECTION);
+  static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+  // Mongo rejects upserts on $expr queries, so permits are only taken on a semaphore that exists.
+  static final FindOneAndUpdateOptions PERMITS_OPTIONS = new FindOneAndUpdateOptions().projection(ID_PROJECTION);
+  static final FindOneAndUpdateOptions TICKET_OPTIONS = new FindOneAndUpdateOptions().upsert(true)
+          .returnDocument(ReturnDocument.AFTER).projection(new BasicDBObject(LockDef.NEXT_TICKET.lockField, 1));
+  static final BulkWriteOptions ORDERED = new BulkWriteOptions().ordered(true);
+  static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+
+  // Locks are looked up by _id, and the TTL index reaps idle documents.
+  static final BasicDBObject REAP_AT_INDEX = new BasicDBObject(LockDef.REAP_AT.lockField, 1);
+  static final IndexOptions REAP_AT_INDEX_OPTIONS = new IndexOptions().expireAfter(0L, TimeUnit.SECONDS).background(true);
+
+  // Aggregation operators of the semaphore's and the ticket queue's $expr.
+  private static final String ADD = "$add";
+  private static final String SUM = "$sum";
+  private static final String MAP = "$map";
+  private static final String FILTER = "$filter";
+  private static final String EQ = "$eq";
+  private static final String ARRAY_ELEM_AT = "$arrayElemAt";
+  private static final String HOLDER = "holder";
+  private static final String TICKET = "ticket";
+
+  private static final BasicDBObject FENCING_TOKEN_INCREMENT = new BasicDBObject(LockDef.FENCING_TOKEN.lockField, 1L);
+  // The server time of an insert is shifted past any count of acquires a reaped document could have had.
+  private static final int FENCING_EPOCH_SHIFT = 20;
+
+  // The fields of a lock that only mean something while it is held.
+  private static final BasicDBObject OWNER_FIELDS = new BasicDBObject();
+  private static final BasicDBObject WRITER_LEASE_FIELDS
+          = new BasicDBObject(LockDef.LOCK_ID.lockField, "").append(LockDef.LOCK_TIMEOUT_TIME.lockField, "");
+
+  static {
+    for (final LockDef field : Arrays.asList(LockDef.LOCK_ACQUIRED_TIME, LockDef.LOCK_TIMEOUT_TIME, LockDef.LOCK_ID,
+            LockDef.OWNER_APP_NAME, LockDef.OWNER_ADDRESS, LockDef.OWNER_HOSTNAME, LockDef.OWNER_THREAD_ID,
+            LockDef.OWNER_THREAD_NAME, LockDef.OWNER_THREAD_GROUP_NAME, LockDef.OWNER_ID, LockDef.INACTIVE_LOCK_TIMEOUT)) {
+      OWNER_FIELDS.put(field.lockField, "");
+    }
+  }
+
+  private LockDocuments() {
+  }
+
+  /**
+   * Matches the lock if it is unlocked or its lease expired before the provided time, and no read
+   * lease or ticket is still live at that time: queued fair waiters go first.
+   */
+  static BasicDBObject acquireQuery(final String key, final Date expiredBefore) {
+    final BasicDBObject query = writerExpiredQuery(key, expiredBefore);
+    query.put(LockDef.READERS.lockField, noLiveLease(expiredBefore));
+    query.put(LockDef.QUEUE.lockField, noLiveLease(expiredBefore));
+    return query;
+  }
+
+  /**
+   * Narrows acquireQuery to the turn of the provided ticket: it must be the oldest live one.
+   */
+  static BasicDBObject acquireInTurnQuery(final String key, final ObjectId ticketId, final Date expiredBefore) {
+    final BasicDBObject liveTickets = new BasicDBObject(FILTER, new BasicDBObject("input", "$" + LockDef.QUEUE.lockField)
+            .append("as", TICKET)
+            .append("cond", new BasicDBObject(GTE, Arrays.asList("$$" + TICKET + "." + LockDef.LOCK_TIMEOUT_TIME.lockField, expiredBefore))));
+    final BasicDBObject firstTicketId = new BasicDBObject(ARRAY_ELEM_AT, Arrays.asList(new BasicDBObject(MAP,
+            new BasicDBObject("input", liveTickets).append("as", TICKET).append("in", "$$" + TICKET + "." + LockDef.LOCK_ID.lockField)), 0));
+
+    final BasicDBObject query = writerExpiredQuery(key, expiredBefore);
+    query.put(LockDef.READERS.lockField, noLiveLease(expiredBefore));
+    query.put(EXPR, new BasicDBObject(EQ, Arrays.asList(firstTicketId, ticketId)));
+    return query;
+  }
+
+  private static BasicDBObject noLiveLease(final Date expiredBefore) {
+    return new BasicDBObject(NOT, new BasicDBObject(ELEM_MATCH,
+            new BasicDBObject(LockDef.LOCK_TIMEOUT_TIME.lockField, new BasicDBObject(GTE, expiredBefore))));
+  }
+
+  /**
+   * Grants the lock like acquireUpdate, and gives the ticket back along with the expired ones.
+   */
+  static BasicDBObject acquireInTurnUpdate(final ObjectId ownerId,
+                                           final ObjectId ticketId,
+                                           final Date expiredBefore,
+                                           final long serverTime,
+                                           final DistributedLockServiceConfig distributedLockServiceConfig,
+                                           final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final BasicDBObject update
+            = acquireUpdate(ownerId, ticketId, serverTime, distributedLockServiceConfig, distributedLockTimeOutOptions);
+    update.put(PULL, new BasicDBObject(LockDef.QUEUE.lockField, new BasicDBObject(OR, Arrays.asList(
+            new BasicDBObject(LockDef.LOCK_ID.lockField, ticketId),
+            new BasicDBObject(LockDef.LOCK_TIMEOUT_TIME.lockField, new BasicDBObject(LT, expiredBefore))))));
+    return update;
+  }
+
+  /**
+   * Appends a ticket to the queue of the lock and numbers it, creating an unlocked document if needed.
+   */
+  static BasicDBObject ticketUpdate(final ObjectId ticketId,
+                                    final long serverTime,
+                                    final long ticketTimeout,
+                                    final DistributedLockServiceConfig distributedLockServiceConfig) {
+    final BasicDBObject ticket = new BasicDBObject(LockDef.LOCK_ID.lockField, ticketId);
+    ticket.put(LockDef.LOCK_TIMEOUT_TIME.lockField, new Date(serverTime + ticketTimeout));
+
+    final BasicDBObject update = new BasicDBObject(INC, new BasicDBObject(LockDef.NEXT_TICKET.lockField, 1L));
+    update.put(PUSH, new BasicDBObject(LockDef.QUEUE.lockField, ticket));
+    update.put(SET_ON_INSERT, fencingEpoch(serverTime).append(LockDef.STATE.lockField, LockState.UNLOCKED.code()));
+    update.put(MAX, reapAfter(serverTime + ticketTimeout, distributedLockServiceConfig));
+    return update;
+  }
+
+  /**
+   * Extends a ticket (matched with leaseHeldQuery) to ticketTimeout ms from the provided server time.
+   */
+  static BasicDBObject ticketRenewUpdate(final long serverTime,
+                                         final long ticketTimeout,
+                                         final DistributedLockServiceConfig distributedLockServiceConfig) {
+    final BasicDBObject update = new BasicDBObject(SET, new BasicDBObject(
+            LockDef.QUEUE.lockField + ".$." + LockDef.LOCK_TIMEOUT_TIME.lockField, new Date(serverTime + ticketTimeout)));
+    update.put(MAX, reapAfter(serverTime + ticketTimeout, distributedLockServiceConfig));
+    return update;
+  }
+
+  /**
+   * Matches the lock if it has no live writer (see acquireQuery) and no writer waiting for it at the
+   * provided server time. Live readers don't matter, that's the point of sharing.
+   */
+  static BasicDBObject readQuery(final String key, final Date expiredBefore, final long serverTime) {
+    final BasicDBObject query = writerExpiredQuery(key, expiredBefore);
+    query.put(LockDef.WRITER_WAITING_UNTIL.lockField, new BasicDBObject(NOT, new BasicDBObject(GTE, new Date(serverTime))));
+    return query;
+  }
+
+  private static BasicDBObject writerExpiredQuery(final String key, final Date expiredBefore) {
+    final BasicDBObject query = new BasicDBObject(LockDef.ID.lockField, key);
+    query.put(OR, Arrays.asList(
+            new BasicDBObject(LockDef.STATE.lockField, LockState.UNLOCKED.code()),
+            new BasicDBObject(LockDef.LOCK_TIMEOUT_TIME.lockField, new BasicDBObject(LT, expiredBefore))));
+    return query;
+  }
+
+  /**
+   * Grants the lock to the current thread and bumps the fencing token. The granted state is a
+   * {@link LockRecord}, so the update must go through a collection whose registry has the
+   * {@link LockRecordCodec}.
+   * <p>
+   * Every update granting or extending a lease also pushes reapAt past the lease's end (see
+   * reapAfter), so the TTL index can't remove a document while anyone holds it.
+   */
+  static BasicDBObject acquireUpdate(final ObjectId ownerId,
+                                     final ObjectId lockId,
+                                     final long serverTime,
+                                     final DistributedLockServiceConfig distributedLockServiceConfig,
+                                     final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final LockRecord lockRecord
+            = new LockRecord(ownerId, lockId, serverTime, distributedLockServiceConfig, distributedLockTimeOutOptions);
+
+    final BasicDBObject update = new BasicDBObject(SET, lockRecord);
+    update.put(INC, FENCING_TOKEN_INCREMENT);
+    update.put(SET_ON_INSERT, fencingEpoch(serverTime));
+    update.put(MAX, reapAfter(lockRecord.lockTimeoutTime, distributedLockServiceConfig));
+    return update;
+  }
+
+  /**
+   * Adds a read lease to the lock. An expired writer lease is dropped at the same time, so that its
+   * holder can't renew it while readers share the lock.
+   */
+  static BasicDBObject readUpdate(final ObjectId lockId,
+                                  final long serverTime,
+                                  final DistributedLockServiceConfig distributedLockServiceConfig,
+                                  final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final long lockTimeoutTime = serverTime + distributedLockTimeOutOptions.getInactiveLockTimeout();
+
+    final BasicDBObject toSet = new BasicDBObject();
+    toSet.put(LockDef.UPDATED.lockField, new Date(serverTime));
+    toSet.put(LockDef.STATE.lockField, LockState.UNLOCKED.code());
+
+    final BasicDBObject reader = new BasicDBObject(LockDef.LOCK_ID.lockField, lockId);
+    reader.put(LockDef.LOCK_TIMEOUT_TIME.lockField, new Date(lockTimeoutTime));
+
+    final BasicDBObject update = new BasicDBObject(SET, toSet);
+    update.put(UNSET, WRITER_LEASE_FIELDS);
+    update.put(PUSH, new BasicDBObject(LockDef.READERS.lockField, reader));
+    update.put(SET_ON_INSERT, fencingEpoch(serverTime));
+    update.put(MAX, reapAfter(lockTimeoutTime, distributedLockServiceConfig));
+    return update;
+  }
+
+  /**
+   * Matches the document if the lease array (readers or holders) has the provided lease.
+   */
+  static BasicDBObject leaseHeldQuery(final LockDef leases, final String key, final ObjectId lockId) {
+    final BasicDBObject query = new BasicDBObject(LockDef.ID.lockField, key);
+    query.put(leases.lockField + "." + LockDef.LOCK_ID.lockField, lockId);
+    return query;
+  }
+
+  /**
+   * Matches the documents (by key) whose lease array still has any of the provided leases.
+   */
+  static BasicDBObject leaseHeldQuery(final LockDef leases, final Collection<String> keys, final Collection<ObjectId> lockIds) {
+    final BasicDBObject query = new BasicDBObject(LockDef.ID.lockField, new BasicDBObject(IN, keys));
+    query.put(leases.lockField + "." + LockDef.LOCK_ID.lockField, new BasicDBObject(IN, lockIds));
+    return query;
+  }
+
+  /**
+   * Extends the lease matched by leaseHeldQuery.
+   */
+  static BasicDBObject leaseRenewUpdate(final LockDef leases,
+                                        final long serverTime,
+                                        final DistributedLockServiceConfig distributedLockServiceConfig,
+                                        final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final long lockTimeoutTime = serverTime + distributedLockTimeOutOptions.getInactiveLockTimeout();
+
+    final BasicDBObject toSet = new BasicDBObject();
+    toSet.put(LockDef.UPDATED.lockField, new Date(serverTime));
+    toSet.put(leases.lockField + ".$." + LockDef.LOCK_TIMEOUT_TIME.lockField, new Date(lockTimeoutTime));
+
+    final BasicDBObject update = new BasicDBObject(SET, toSet);
+    update.put(MAX, reapAfter(lockTimeoutTime, distributedLockServiceConfig));
+    return update;
+  }
+
+  /**
+   * Removes the lease from the lease array, along with the leases that have expired. Other leases
+   * may still be live, so reapAt only moves forward.
+   */
+  static BasicDBObject leaseReleaseUpdate(final LockDef leases,
+                                          final ObjectId lockId,
+                                          final long serverTime,
+                                          final DistributedLockServiceConfig distributedLockServiceConfig) {
+    final BasicDBObject released = new BasicDBObject(OR, Arrays.asList(
+            new BasicDBObject(LockDef.LOCK_ID.lockField, lockId),
+            new BasicDBObject(LockDef.LOCK_TIMEOUT_TIME.lockField, new BasicDBObject(LT, new Date(serverTime)))));
+
+    final BasicDBObject update = new BasicDBObject(SET, new BasicDBObject(LockDef.UPDATED.lockField, new Date(serverTime)));
+    update.put(PULL, new BasicDBObject(leases.lockField, released));
+    update.put(MAX, reapAfter(serverTime, distributedLockServiceConfig));
+    return update;
+  }
+
+  /**
+   * Matches the semaphore if the permits fit next to the permits of its live holders, i.e. the ones
+   * whose lease had not expired before the provided time.
+   */
+  static BasicDBObject permitsQuery(final String key, final Date expiredBefore, final int permits, final int maxPermits) {
+    final BasicDBObject liveHolders = new BasicDBObject(FILTER, new BasicDBObject("input", "$" + LockDef.HOLDERS.lockField)
+            .append("as", HOLDER)
+            .append("cond", new BasicDBObject(GTE, Arrays.asList("$$" + HOLDER + "." + LockDef.LOCK_TIMEOUT_TIME.lockField, expiredBefore))));
+    final BasicDBObject livePermits = new BasicDBObject(SUM, new BasicDBObject(MAP, new BasicDBObject("input", liveHolders)
+            .append("as", HOLDER)
+            .append("in", "$$" + HOLDER + "." + LockDef.PERMITS.lockField)));
+
+    final BasicDBObject query = new BasicDBObject(LockDef.ID.lockField, key);
+    query.put(EXPR, new BasicDBObject(LTE, Arrays.asList(new BasicDBObject(ADD, Arrays.asList(livePermits, permits)), maxPermits)));
+    return query;
+  }
+
+  /**
+   * Creates the semaphore (upserted on idQuery) with no holders if it doesn't exist, kept from the
+   * TTL index for one lease so the permitsUpdate tried again finds it.
+   */
+  static BasicDBObject semaphoreInsertUpdate(final long serverTime,
+                                             final DistributedLockServiceConfig distributedLockServiceConfig,
+                                             final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final BasicDBObject semaphore = new BasicDBObject(LockDef.HOLDERS.lockField, Collections.emptyList());
+    semaphore.put(LockDef.UPDATED.lockField, new Date(serverTime));
+    semaphore.put(LockDef.REAP_AT.lockField, new Date(serverTime + distributedLockTimeOutOptions.getInactiveLockTimeout()
+            + distributedLockServiceConfig.getLockIdlePeriod()));
+    return new BasicDBObject(SET_ON_INSERT, semaphore);
+  }
+
+  /**
+   * Adds a holder of the permits to the semaphore.
+   */
+  static BasicDBObject permitsUpdate(final ObjectId lockId,
+                                     final int permits,
+                                     final long serverTime,
+                                     final DistributedLockServiceConfig distributedLockServiceConfig,
+                                     final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final long lockTimeoutTime = serverTime + distributedLockTimeOutOptions.getInactiveLockTimeout();
+
+    final BasicDBObject holder = new BasicDBObject(LockDef.LOCK_ID.lockField, lockId);
+    holder.put(LockDef.PERMITS.lockField, permits);
+    holder.put(LockDef.LOCK_TIMEOUT_TIME.lockField, new Date(lockTimeoutTime));
+
+    final BasicDBObject update = new BasicDBObject(SET, new BasicDBObject(LockDef.UPDATED.lockField, new Date(serverTime)));
+    update.put(PUSH, new BasicDBObject(LockDef.HOLDERS.lockField, holder));
+    update.put(MAX, reapAfter(lockTimeoutTime, distributedLockServiceConfig));
+    return update;
+  }
+
+  /**
+   * Narrows permitsQuery to a semaphore the provided holder still holds a live lease of.
+   */
+  static BasicDBObject heldPermitsQuery(final String key,
+                                        final ObjectId lockId,
+                                        final Date expiredBefore,
+                                        final int permits,
+                                        final int maxPermits) {
+    final BasicDBObject holder = new BasicDBObject(LockDef.LOCK_ID.lockField, lockId);
+    holder.put(LockDef.LOCK_TIMEOUT_TIME.lockField, new BasicDBObject(GTE, expiredBefore));
+
+    final BasicDBObject query = permitsQuery(key, expiredBefore, permits, maxPermits);
+    query.put(LockDef.HOLDERS.lockField, new BasicDBObject(ELEM_MATCH, holder));
+    return query;
+  }
+
+  /**
+   * Adds (or with negative permits, takes) permits to the holder matched by heldPermitsQuery or leaseHeldQuery.
+   */
+  static BasicDBObject heldPermitsUpdate(final int permits, final long serverTime) {
+    final BasicDBObject update = new BasicDBObject(SET, new BasicDBObject(LockDef.UPDATED.lockField, new Date(serverTime)));
+    update.put(INC, new BasicDBObject(LockDef.HOLDERS.lockField + ".$." + LockDef.PERMITS.lockField, permits));
+    return update;
+  }
+
+  /**
+   * Removes the holders whose lease expired before the provided time.
+   */
+  static BasicDBObject expiredHoldersUpdate(final Date expiredBefore) {
+    return new BasicDBObject(PULL, new BasicDBObject(LockDef.HOLDERS.lockField,
+            new BasicDBObject(LockDef.LOCK_TIMEOUT_TIME.lockField, new BasicDBObject(LT, expiredBefore))));
+  }
+
+  /**
+   * Matches the lock if it is held with the provided lock id.
+   */
+  static BasicDBObject heldQuery(final String key, final ObjectId lockId) {
+    final BasicDBObject query = new BasicDBObject(LockDef.ID.lockField, key);
+    query.put(LockDef.LOCK_ID.lockField, lockId);
+    query.put(LockDef.STATE.lockField, LockState.LOCKED.code());
+    return query;
+  }
+
+  /**
+   * Matches the locks (by key) still held with any of the provided lock ids.
+   */
+  static BasicDBObject heldQuery(final Collection<String> keys, final Collection<ObjectId> lockIds) {
+    final BasicDBObject query = new BasicDBObject(LockDef.ID.lockField, new BasicDBObject(IN, keys));
+    query.put(LockDef.LOCK_ID.lockField, new BasicDBObject(IN, lockIds));
+    query.put(LockDef.STATE.lockField, LockState.LOCKED.code());
+    return query;
+  }
+
+  /**
+   * Extends the lease of a held lock.
+   */
+  static BasicDBObject renewUpdate(final long serverTime,
+                                   final DistributedLockServiceConfig distributedLockServiceConfig,
+                                   final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final Date now = new Date(serverTime);
+    final long lockTimeoutTime = serverTime + distributedLockTimeOutOptions.getInactiveLockTimeout();
+
+    final BasicDBObject toSet = new BasicDBObject();
+    toSet.put(LockDef.UPDATED.lockField, now);
+    toSet.put(LockDef.LAST_HEARTBEAT.lockField, now);
+    toSet.put(LockDef.LOCK_TIMEOUT_TIME.lockField, new Date(lockTimeoutTime));
+
+    final BasicDBObject update = new BasicDBObject(SET, toSet);
+    update.put(MAX, reapAfter(lockTimeoutTime, distributedLockServiceConfig));
+    return update;
+  }
+
+  /**
+   * Releases a held lock. The holder's fields are removed rather than set to null. No read lease can
+   * be live next to a writer, so the document may be reaped one idle period from now.
+   */
+  static BasicDBObject releaseUpdate(final long serverTime, final DistributedLockServiceConfig distributedLockServiceConfig) {
+    final BasicDBObject toSet = new BasicDBObject();
+    toSet.put(LockDef.UPDATED.lockField, new Date(serverTime));
+    toSet.put(LockDef.STATE.lockField, LockState.UNLOCKED.code());
+    toSet.put(LockDef.LOCK_ATTEMPT_COUNT.lockField, 0);
+    toSet.put(LockDef.REAP_AT.lockField, new Date(serverTime + distributedLockServiceConfig.getLockIdlePeriod()));
+
+    final BasicDBObject update = new BasicDBObject(SET, toSet);
+    update.put(UNSET, OWNER_FIELDS);
+    return update;
+  }
+
+  /**
+   * Matches the lock if anyone holds it.
+   */
+  static BasicDBObject lockedQuery(final String key) {
+    final BasicDBObject query = new BasicDBObject(LockDef.ID.lockField, key);
+    query.put(LockDef.STATE.lockField, LockState.LOCKED.code());
+    return query;
+  }
+
+  /**
+   * Counts the provided number of failed attempts on the lock.
+   */
+  static BasicDBObject attemptUpdate(final long attempts) {
+    return new BasicDBObject(INC, new BasicDBObject(LockDef.LOCK_ATTEMPT_COUNT.lockField, attempts));
+  }
+
+  /**
+   * Counts a failed write attempt and turns new readers away until the provided server time,
+   * giving the writer a chance once the current readers are done.
+   */
+  static BasicDBObject writerAttemptUpdate(final long waitingUntil) {
+    final BasicDBObject update = new BasicDBObject(INC, new BasicDBObject(LockDef.LOCK_ATTEMPT_COUNT.lockField, 1));
+    update.put(MAX, new BasicDBObject(LockDef.WRITER_WAITING_UNTIL.lockField, new Date(waitingUntil)));
+    return update;
+  }
+
+  /**
+   * The fencing epoch of a document inserted at the provided server time. The TTL index only reaps
+   * a document once it has been idle, so the epoch of the document that replaces it is greater than
+   * the old epoch plus every token the old document handed out, and tokens keep growing.
+   */
+  private static BasicDBObject fencingEpoch(final long serverTime) {
+    return new BasicDBObject(LockDef.FENCING_EPOCH.lockField, serverTime << FENCING_EPOCH_SHIFT);
+  }
+
+  /**
+   * Returns the fencing token of a lock document projected with FENCING_TOKEN_PROJECTION. Documents
+   * written before the epoch was introduced, or never acquired by a writer, count from 0.
+   */
+  static long fencingToken(final Document lockDoc) {
+    final Long fencingEpoch = lockDoc.getLong(LockDef.FENCING_EPOCH.lockField);
+    final Long fencingToken = lockDoc.getLong(LockDef.FENCING_TOKEN.lockField);
+    return (fencingEpoch == null ? 0 : fencingEpoch) + (fencingToken == null ? 0 : fencingToken);
+  }
+
+  /**
+   * The $max keeping the document from the TTL index until one idle period after the provided server time.
+   */
+  private static BasicDBObject reapAfter(final long serverTime, final DistributedLockServiceConfig distributedLockServiceConfig) {
+    return new BasicDBObject(LockDef.REAP_AT.lockField, new Date(serverTime + distributedLockServiceConfig.getLockIdlePeriod()));
+  }
+
+  /**
+   * Matches the lock document.
+   */
+  static BasicDBObject idQuery(final String key) {
+    return new BasicDBObject(LockDef.ID.lockField, key);
+  }
+
+  /**
+   * Matches the lock documents of the keys.
+   */
+  static BasicDBObject idsQuery(final Collection<String> keys) {
+    return new BasicDBObject(LockDef.ID.lockField, new BasicDBObject(IN, keys));
+  }
+}
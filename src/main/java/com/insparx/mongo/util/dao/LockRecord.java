@@ -0,0 +1,81 @@
+package com.insparx.mongo.util.dao;
+
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import org.bson.types.ObjectId;
+
+
+/**
+ * A lock document as the daos write and read it, encoded by {@link LockRecordCodec}. A granted
+ * record carries everything the acquire update sets. A record read back only has the key, state,
+ * lock id and lease deadline.
+ */
+final class LockRecord {
+
+  final String key;
+  final LockState state;
+  final ObjectId lockId;
+  final long lockTimeoutTime; // Server time in ms, 0 if the lock has no lease
+
+  // Only set on granted records.
+  final ObjectId ownerId;
+  final long acquiredTime;
+  final int inactiveLockTimeout;
+  final String appName;
+  final String ownerAddress;
+  final String ownerHostname;
+  final long ownerThreadId;
+  final String ownerThreadName;
+  final String ownerThreadGroupName;
+
+  /**
+   * A lock granted to the current thread at the provided server time, by the store of the owner id.
+   */
+  LockRecord(final ObjectId ownerId,
+             final ObjectId lockId,
+             final long serverTime,
+             final DistributedLockServiceConfig distributedLockServiceConfig,
+             final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final Thread currentThread = Thread.currentThread();
+
+    this.key = null;
+    this.state = LockState.LOCKED;
+    this.lockId = lockId;
+    this.lockTimeoutTime = serverTime + distributedLockTimeOutOptions.getInactiveLockTimeout();
+    this.ownerId = ownerId;
+    this.acquiredTime = serverTime;
+    this.inactiveLockTimeout = distributedLockTimeOutOptions.getInactiveLockTimeout();
+    this.appName = distributedLockServiceConfig.getAppName();
+    this.ownerAddress = distributedLockServiceConfig.getHostAddress();
+    this.ownerHostname = distributedLockServiceConfig.getHostname();
+    this.ownerThreadId = currentThread.getId();
+    this.ownerThreadName = currentThread.getName();
+    this.ownerThreadGroupName = currentThread.getThreadGroup().getName();
+  }
+
+  /**
+   * A lock as read from its document.
+   */
+  LockRecord(final String key, final LockState state, final ObjectId lockId, final long lockTimeoutTime) {
+    this.key = key;
+    this.state = state;
+    this.lockId = lockId;
+    this.lockTimeoutTime = lockTimeoutTime;
+    this.ownerId = null;
+    this.acquiredTime = 0;
+    this.inactiveLockTimeout = 0;
+    this.appName = null;
+    this.ownerAddress = null;
+    this.ownerHostname = null;
+    this.ownerThreadId = 0;
+    this.ownerThreadName = null;
+    this.ownerThreadGroupName = null;
+  }
+
+  /**
+   * Returns true if the lock is held by a lease that had not expired before the provided time.
+   */
+  boolean isHeld(final long expiredBefore) {
+    return state.isLocked() && lockTimeoutTime >= expiredBefore;
+  }
+}
@@ -0,0 +1,124 @@
+package com.insparx.mongo.util.dao;
+
+import com.mongodb.BasicDBObject;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+
+
+/**
+ * Writes and reads {@link LockRecord}s field by field, without building a map of the document
+ * first. A granted record is written as the $set body of the acquire update. Records are read
+ * from documents projected with READ_PROJECTION, and any other field is skipped.
+ */
+final class LockRecordCodec implements Codec<LockRecord> {
+
+  static final LockRecordCodec INSTANCE = new LockRecordCodec();
+
+  private static final String ID = LockDef.ID.lockField;
+  private static final String UPDATED = LockDef.UPDATED.lockField;
+  private static final String LAST_HEARTBEAT = LockDef.LAST_HEARTBEAT.lockField;
+  private static final String LOCK_ACQUIRED_TIME = LockDef.LOCK_ACQUIRED_TIME.lockField;
+  private static final String STATE = LockDef.STATE.lockField;
+  private static final String LOCK_ID = LockDef.LOCK_ID.lockField;
+  private static final String OWNER_APP_NAME = LockDef.OWNER_APP_NAME.lockField;
+  private static final String OWNER_ADDRESS = LockDef.OWNER_ADDRESS.lockField;
+  private static final String OWNER_HOSTNAME = LockDef.OWNER_HOSTNAME.lockField;
+  private static final String OWNER_THREAD_ID = LockDef.OWNER_THREAD_ID.lockField;
+  private static final String OWNER_THREAD_NAME = LockDef.OWNER_THREAD_NAME.lockField;
+  private static final String OWNER_THREAD_GROUP_NAME = LockDef.OWNER_THREAD_GROUP_NAME.lockField;
+  private static final String OWNER_ID = LockDef.OWNER_ID.lockField;
+  private static final String INACTIVE_LOCK_TIMEOUT = LockDef.INACTIVE_LOCK_TIMEOUT.lockField;
+  private static final String LOCK_TIMEOUT_TIME = LockDef.LOCK_TIMEOUT_TIME.lockField;
+  private static final String LOCK_ATTEMPT_COUNT = LockDef.LOCK_ATTEMPT_COUNT.lockField;
+  private static final String READERS = LockDef.READERS.lockField;
+  private static final String WRITER_WAITING_UNTIL = LockDef.WRITER_WAITING_UNTIL.lockField;
+
+  /**
+   * The fields a record is read from.
+   */
+  static final BasicDBObject READ_PROJECTION = new BasicDBObject(STATE, 1).append(LOCK_ID, 1).append(LOCK_TIMEOUT_TIME, 1);
+
+  private LockRecordCodec() {
+  }
+
+  /**
+   * Returns the provided registry with this codec in front of it.
+   */
+  static CodecRegistry withLockRecords(final CodecRegistry codecRegistry) {
+    return CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(INSTANCE), codecRegistry);
+  }
+
+  @Override
+  public void encode(final BsonWriter writer, final LockRecord lockRecord, final EncoderContext encoderContext) {
+    writer.writeStartDocument();
+    writer.writeDateTime(UPDATED, lockRecord.acquiredTime);
+    writer.writeDateTime(LAST_HEARTBEAT, lockRecord.acquiredTime);
+    writer.writeDateTime(LOCK_ACQUIRED_TIME, lockRecord.acquiredTime);
+    writer.writeDateTime(LOCK_TIMEOUT_TIME, lockRecord.lockTimeoutTime);
+    writer.writeObjectId(LOCK_ID, lockRecord.lockId);
+    writer.writeString(STATE, lockRecord.state.code());
+    writeString(writer, OWNER_APP_NAME, lockRecord.appName);
+    writeString(writer, OWNER_ADDRESS, lockRecord.ownerAddress);
+    writeString(writer, OWNER_HOSTNAME, lockRecord.ownerHostname);
+    writer.writeInt64(OWNER_THREAD_ID, lockRecord.ownerThreadId);
+    writeString(writer, OWNER_THREAD_NAME, lockRecord.ownerThreadName);
+    writeString(writer, OWNER_THREAD_GROUP_NAME, lockRecord.ownerThreadGroupName);
+    writer.writeObjectId(OWNER_ID, lockRecord.ownerId);
+    writer.writeInt32(LOCK_ATTEMPT_COUNT, 0);
+    writer.writeInt32(INACTIVE_LOCK_TIMEOUT, lockRecord.inactiveLockTimeout);
+    // Whatever read leases are left have expired, and this writer is no longer waiting.
+    writer.writeStartArray(READERS);
+    writer.writeEndArray();
+    writer.writeNull(WRITER_WAITING_UNTIL);
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public LockRecord decode(final BsonReader reader, final DecoderContext decoderContext) {
+    String key = null;
+    LockState state = LockState.UNLOCKED;
+    ObjectId lockId = null;
+    long lockTimeoutTime = 0;
+
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      final String name = reader.readName();
+      if (reader.getCurrentBsonType() == BsonType.NULL) {
+        reader.readNull();
+      } else if (ID.equals(name)) {
+        key = reader.readString();
+      } else if (STATE.equals(name)) {
+        state = LockState.findByCode(reader.readString());
+      } else if (LOCK_ID.equals(name)) {
+        lockId = reader.readObjectId();
+      } else if (LOCK_TIMEOUT_TIME.equals(name)) {
+        lockTimeoutTime = reader.readDateTime();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.readEndDocument();
+
+    return new LockRecord(key, state, lockId, lockTimeoutTime);
+  }
+
+  @Override
+  public Class<LockRecord> getEncoderClass() {
+    return LockRecord.class;
+  }
+
+  private static void writeString(final BsonWriter writer, final String name, final String value) {
+    if (value == null) {
+      writer.writeNull(name);
+    } else {
+      writer.writeString(name, value);
+    }
+  }
+}
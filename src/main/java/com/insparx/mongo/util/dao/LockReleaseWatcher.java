@@ -0,0 +1,271 @@
+package com.insparx.mongo.util.dao;
+
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Wakes up threads waiting for a lock to be released. There is one change stream per lock
+ * collection in the JVM, shared by all waiters. On deployments without change streams
+ * (standalone servers, mongo before 3.6) a {@link WaitScheduler} polls the states of all awaited
+ * keys with one query every lockUnlockedFrequency ms instead.
+ * Stores that live in the JVM use an in-process watcher, which all releases are signalled to.
+ * <p>
+ * The shared watchers are counted by the daos using them: once the last one releases its watcher,
+ * the change stream and the poller stop and the watcher no longer holds the client.
+ */
+public final class LockReleaseWatcher {
+
+  private static final String MATCH = "$match";
+  private static final String OPERATION_TYPE = "operationType";
+  private static final String UPDATED_STATE = "updateDescription.updatedFields." + LockDef.STATE.lockField;
+  private static final String UPDATED_READERS = "updateDescription.updatedFields." + LockDef.READERS.lockField;
+
+  // Errors of servers or topologies that can't open a change stream.
+  private static final List<Integer> UNSUPPORTED_ERRORS = Arrays.asList(
+          40573, // The $changeStream stage is only supported on replica sets
+          40324, // Unrecognized pipeline stage name
+          115);  // Command not supported
+
+  private static final List<BasicDBObject> RELEASE_PIPELINE = Collections.singletonList(new BasicDBObject(MATCH,
+          new BasicDBObject(BaseDao.OR, Arrays.asList(
+                  new BasicDBObject(OPERATION_TYPE, "delete"),
+                  new BasicDBObject(UPDATED_STATE, LockState.UNLOCKED.code()),
+                  // A $pull rewrites the whole array, while a reader joining only sets "readers.<n>".
+                  new BasicDBObject(UPDATED_READERS, new BasicDBObject(BaseDao.EXISTS, true))))));
+
+  private static final ConcurrentHashMap<List<Object>, LockReleaseWatcher> WATCHERS = new ConcurrentHashMap<>();
+
+  private final List<Object> namespace;
+  private final MongoCollection<Document> collection;
+  private final DistributedLockServiceConfig distributedLockServiceConfig;
+  private final WaitScheduler waitScheduler;
+
+  private final ConcurrentHashMap<String, CountDownLatch> releaseSignals = new ConcurrentHashMap<>();
+  private final List<Consumer<String>> releaseListeners = new CopyOnWriteArrayList<>();
+  private final AtomicBoolean started = new AtomicBoolean();
+  private volatile boolean watching;
+  private volatile boolean supported = true;
+  private volatile boolean closed;
+  // Guarded by WATCHERS, only counted for the shared watchers.
+  private int references;
+  private volatile Thread watchThread;
+  // The driver's reads don't respond to interrupts, closing the cursor is what ends a blocked read.
+  private volatile MongoCursor<ChangeStreamDocument<Document>> changeStreamCursor;
+
+  /**
+   * Returns the shared watcher of the lock collection of the config, counting a reference to it.
+   * Each call must be paired with a {@link #release()}.
+   */
+  static LockReleaseWatcher forCollection(final MongoClient mongoClient,
+                                          final DistributedLockServiceConfig distributedLockServiceConfig) {
+    final List<Object> namespace = Arrays.asList(mongoClient,
+            distributedLockServiceConfig.getDbName(), distributedLockServiceConfig.getCollectionName());
+
+    return WATCHERS.compute(namespace, (ns, releaseWatcher) -> {
+      final LockReleaseWatcher referenced = releaseWatcher != null ? releaseWatcher
+              : new LockReleaseWatcher(ns, mongoClient, mongoClient
+              .getDatabase(distributedLockServiceConfig.getDbName())
+              .getCollection(distributedLockServiceConfig.getCollectionName()), distributedLockServiceConfig);
+      referenced.references++;
+      return referenced;
+    });
+  }
+
+  /**
+   * Returns a new watcher of locks that are only released in the JVM, through signalRelease.
+   */
+  public static LockReleaseWatcher inProcess(final DistributedLockServiceConfig distributedLockServiceConfig) {
+    return new LockReleaseWatcher(null, null, null, distributedLockServiceConfig);
+  }
+
+  private LockReleaseWatcher(final List<Object> namespace,
+                             final MongoClient mongoClient,
+                             final MongoCollection<Document> collection,
+                             final DistributedLockServiceConfig distributedLockServiceConfig) {
+    this.namespace = namespace;
+    this.collection = collection;
+    this.distributedLockServiceConfig = distributedLockServiceConfig;
+    // Nothing to watch in process, every release is signalled.
+    this.watching = collection == null;
+    this.waitScheduler = collection == null ? null : newWaitScheduler(mongoClient, collection, distributedLockServiceConfig);
+  }
+
+  /**
+   * Returns the signal that will be counted down on the next release of the key. Take it before
+   * trying to acquire the lock, so a release between the attempt and the wait is not missed.
+   */
+  public CountDownLatch releaseSignal(final String key) {
+    if (collection != null && started.compareAndSet(false, true)) startWatching();
+    return releaseSignals.computeIfAbsent(key, k -> new CountDownLatch(1));
+  }
+
+  /**
+   * Waits for the signal of the key, for at most maxWait ms. The wait is capped at timeoutFrequency:
+   * with a change stream because expired leases produce no event, without one in case the wait
+   * scheduler can't reach the server.
+   */
+  public void await(final String key, final CountDownLatch releaseSignal, final long maxWait) throws InterruptedException {
+    final long checkFrequency = Math.min(maxWait, distributedLockServiceConfig.getTimeoutFrequency());
+    if (watching) {
+      releaseSignal.await(checkFrequency, TimeUnit.MILLISECONDS);
+      return;
+    }
+    waitScheduler.await(key, releaseSignal, checkFrequency);
+  }
+
+  /**
+   * Registers a callback for every release of a key, run before its waiters are woken up. This
+   * starts the change stream, if it isn't already running.
+   */
+  public void addReleaseListener(final Consumer<String> releaseListener) {
+    releaseListeners.add(releaseListener);
+    if (collection != null && started.compareAndSet(false, true)) startWatching();
+  }
+
+  /**
+   * Deregisters a callback added with addReleaseListener.
+   */
+  public void removeReleaseListener(final Consumer<String> releaseListener) {
+    releaseListeners.remove(releaseListener);
+  }
+
+  /**
+   * Wakes up the waiters of the key.
+   */
+  public void signalRelease(final String key) {
+    for (final Consumer<String> releaseListener : releaseListeners) releaseListener.accept(key);
+
+    final CountDownLatch releaseSignal = releaseSignals.remove(key);
+    if (releaseSignal != null) releaseSignal.countDown();
+  }
+
+  /**
+   * Drops a reference taken with forCollection. The last one stops the change stream and the
+   * poller, and removes the watcher, so the next forCollection starts a new one.
+   */
+  void release() {
+    if (namespace == null) return;
+
+    WATCHERS.computeIfPresent(namespace, (ns, releaseWatcher) -> {
+      if (releaseWatcher != this || --references > 0) return releaseWatcher;
+      stop();
+      return null;
+    });
+  }
+
+  /**
+   * Returns true if waiters are currently woken up by the change stream.
+   */
+  public boolean isWatching() {
+    return watching;
+  }
+
+  private WaitScheduler newWaitScheduler(final MongoClient mongoClient,
+                                         final MongoCollection<Document> collection,
+                                         final DistributedLockServiceConfig distributedLockServiceConfig) {
+    final MongoCollection<Document> lockCollection
+            = collection.withCodecRegistry(LockRecordCodec.withLockRecords(collection.getCodecRegistry()));
+    final ServerClock serverClock = ServerClock.forClient(mongoClient, distributedLockServiceConfig.getClockSyncFrequency());
+
+    return new WaitScheduler(distributedLockServiceConfig,
+            keys -> lockCollection.find(LockDocuments.idsQuery(keys), LockRecord.class).projection(LockRecordCodec.READ_PROJECTION),
+            // Like the acquires, a lease is only over once it is over by the whole error bound.
+            () -> serverClock.currentTimeMillis() - serverClock.getErrorBound(),
+            this::signalRelease);
+  }
+
+  private void startWatching() {
+    final Thread thread = new Thread(this::watch, "mongo-lock-release-watcher");
+    thread.setDaemon(true);
+    watchThread = thread;
+    // A stop racing the start has not seen the thread yet.
+    if (closed) return;
+    thread.start();
+  }
+
+  private void stop() {
+    closed = true;
+    supported = false;
+    final Thread thread = watchThread;
+    if (thread != null) thread.interrupt();
+    closeQuietly(changeStreamCursor);
+    waitScheduler.close();
+  }
+
+  private static void closeQuietly(final MongoCursor<?> cursor) {
+    if (cursor == null) return;
+    try {
+      cursor.close();
+    } catch (final RuntimeException e) {
+      // The watch thread stops either way.
+    }
+  }
+
+  private void watch() {
+    BsonDocument resumeToken = null;
+
+    while (supported) {
+      try {
+        ChangeStreamIterable<Document> changeStream = collection.watch(RELEASE_PIPELINE);
+        if (resumeToken != null) changeStream = changeStream.resumeAfter(resumeToken);
+
+        try (MongoCursor<ChangeStreamDocument<Document>> cursor = changeStream.iterator()) {
+          changeStreamCursor = cursor;
+          // A stop racing the open has not seen the cursor yet.
+          if (closed) break;
+          watching = true;
+          while (cursor.hasNext()) {
+            final ChangeStreamDocument<Document> change = cursor.next();
+            resumeToken = change.getResumeToken();
+
+            final BsonValue key = change.getDocumentKey().get(LockDef.ID.lockField);
+            if (key != null && key.isString()) signalRelease(key.asString().getValue());
+          }
+        }
+      } catch (final MongoCommandException e) {
+        if (closed) break;
+        // The token may have fallen off the oplog, start over from now.
+        resumeToken = null;
+        if (UNSUPPORTED_ERRORS.contains(e.getErrorCode())) supported = false;
+        else if (!pause()) return;
+      } catch (final RuntimeException e) {
+        if (closed || !pause()) break;
+      }
+    }
+
+    watching = false;
+  }
+
+  /**
+   * Falls back to polling until the change stream can be reopened.
+   */
+  private boolean pause() {
+    watching = false;
+    try {
+      Thread.sleep(distributedLockServiceConfig.getLockUnlockedFrequency());
+      return true;
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+}
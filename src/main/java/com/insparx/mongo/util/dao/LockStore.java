@@ -0,0 +1,121 @@
+package com.insparx.mongo.util.dao;
+
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.insparx.mongo.util.metrics.LockMetrics;
+import org.bson.types.ObjectId;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The storage of the locks the lock service is built on. Implementations must be safe to share
+ * between threads and give the guarantees checked by the conformance suite: a key is held by one
+ * writer or by readers at a time, leases that are not renewed within their inactive lock timeout
+ * can be taken over, and a lock can only be released or renewed with the lock id it was granted.
+ */
+public interface LockStore {
+
+  /**
+   * Try and get the lock. If it is held (by a writer or live readers), this returns an empty optional.
+   */
+  Optional<DistributedLock> lock(String key, DistributedLockTimeOutOptions distributedLockTimeOutOptions);
+
+  /**
+   * Try and get all the locks, or none of them.
+   */
+  Optional<Map<String, DistributedLock>> lockAll(Collection<String> keys, DistributedLockTimeOutOptions distributedLockTimeOutOptions);
+
+  /**
+   * Unlock the lock. Returns an empty optional if the lock was not held with the lock id.
+   */
+  Optional<ObjectId> unlock(String key, ObjectId lockId);
+
+  /**
+   * Unlock the provided locks (lock ids by key), with a single update where the store allows it.
+   * Locks no longer held with their lock id are left alone, so callers sharing the store only
+   * release their own. Read leases are left to expire. Returns the number of locks released.
+   */
+  long unlockAll(Map<String, ObjectId> locks);
+
+  /**
+   * Take a ticket in the queue of the lock. lockInTurn grants the lock in ticket order, and lock
+   * (any caller's) waits while a ticket is live. A ticket expires unless renewed within ticketTimeout
+   * ms, so abandoned tickets don't hold up the queue. Returns the ticket's number.
+   * <p>
+   * Stores without a queue return 0 and lockInTurn is then lock.
+   */
+  default long takeTicket(final String key, final ObjectId ticketId, final long ticketTimeout) {
+    return 0;
+  }
+
+  /**
+   * Try and get the lock if the ticket is the oldest live one in its queue. The granted lock's id is
+   * the ticket id, and the ticket is given back with the grant.
+   */
+  default Optional<DistributedLock> lockInTurn(final String key,
+                                               final ObjectId ticketId,
+                                               final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    return lock(key, distributedLockTimeOutOptions);
+  }
+
+  /**
+   * Keep the ticket for ticketTimeout more ms. Returns false if it has expired; take another one then.
+   */
+  default boolean renewTicket(final String key, final ObjectId ticketId, final long ticketTimeout) {
+    return true;
+  }
+
+  /**
+   * Give the ticket back, when giving up on the lock.
+   */
+  default void returnTicket(final String key, final ObjectId ticketId) {
+  }
+
+  /**
+   * Renew the leases of the provided locks (by key). Returns the keys of the locks that are no longer held by us.
+   */
+  Set<String> renew(Map<String, DistributedLock> locks, DistributedLockTimeOutOptions distributedLockTimeOutOptions);
+
+  /**
+   * Try and get a read lease on the lock, shared with other readers. If the lock is held by a writer,
+   * or a writer is waiting for it, this returns an empty optional.
+   */
+  Optional<DistributedLock> readLock(String key, DistributedLockTimeOutOptions distributedLockTimeOutOptions);
+
+  /**
+   * Release a read lease. Returns an empty optional if the lease was not held.
+   */
+  Optional<ObjectId> readUnlock(String key, ObjectId lockId);
+
+  /**
+   * Renew the provided read leases (by key). Returns the keys of the read leases that are no longer held by us.
+   */
+  Set<String> readRenew(Map<String, DistributedLock> locks, DistributedLockTimeOutOptions distributedLockTimeOutOptions);
+
+  /**
+   * Returns how many ms the lease of the writer holding the lock has left, or an empty optional if
+   * no writer holds it (or the store can't tell). Stores without a round trip to save may leave it empty.
+   */
+  default Optional<Long> getRemainingLease(final String key) {
+    return Optional.empty();
+  }
+
+  /**
+   * Returns the watcher waking up waiters of the key.
+   */
+  LockReleaseWatcher getReleaseWatcher(String key);
+
+  /**
+   * Returns the metrics of this store's operations.
+   */
+  LockMetrics getMetrics();
+
+  /**
+   * Stops the background work of the store, e.g. flushing attempt counts. Its locks are left as they are.
+   */
+  default void close() {
+  }
+}
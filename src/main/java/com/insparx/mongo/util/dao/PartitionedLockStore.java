@@ -0,0 +1,582 @@
+package com.insparx.mongo.util.dao;
+
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.insparx.mongo.util.metrics.LockMetrics;
+import com.insparx.mongo.util.metrics.LockMetricsListener;
+import com.insparx.mongo.util.metrics.LockOperation;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+
+/**
+ * A lock store spreading the keys over several stores (partitions), e.g. LockDaos on different
+ * collections or clusters, so lock throughput scales with the number of primaries. Keys are mapped
+ * to partitions with a {@link ConsistentHashRing}, so adding a partition only moves about 1/n of them.
+ * <p>
+ * Adding a partition starts a rebalance. Until finishRebalance, a key that moves is locked in its
+ * old partition and then in its new one, so it is held where nodes that haven't added the partition
+ * yet look, and where nodes that already finished look. Locks held from before the rebalance are also
+ * locked in their new partition by the next renew. Call finishRebalance on every node once all of them
+ * have added the partition and a heartbeat plus an inactive lock timeout have passed.
+ * <p>
+ * Fencing tokens are per partition: a key that moved gets the tokens of its new partition.
+ * The metrics of every partition are also recorded into the metrics of this store, so partitions
+ * must not share their metrics.
+ */
+public final class PartitionedLockStore implements LockStore {
+
+  private static final int DEFAULT_VIRTUAL_NODES = 128;
+
+  private final LockMetrics lockMetrics = new LockMetrics();
+  private final ConcurrentHashMap<HeldLock, Placement> placements = new ConcurrentHashMap<>();
+  private volatile Routing routing;
+
+  private final LockMetricsListener aggregator = new LockMetricsListener() {
+    @Override
+    public void onOperation(final LockOperation operation, final long nanos, final int roundTrips) {
+      lockMetrics.recordOperation(operation, nanos, roundTrips);
+    }
+
+    @Override
+    public void onContention(final LockOperation operation) {
+      lockMetrics.recordContention(operation);
+    }
+
+    @Override
+    public void onFailure(final LockOperation operation) {
+      lockMetrics.recordFailure(operation);
+    }
+  };
+
+  /**
+   * Construct the store over the provided partitions (by name). The names place the partitions on
+   * the hash ring, so every node must use the same names for the same partitions.
+   */
+  public PartitionedLockStore(final Map<String, ? extends LockStore> partitions) {
+    this(partitions, DEFAULT_VIRTUAL_NODES);
+  }
+
+  /**
+   * Construct the store with virtualNodes points per partition on the hash ring. More points spread
+   * the keys more evenly.
+   */
+  public PartitionedLockStore(final Map<String, ? extends LockStore> partitions, final int virtualNodes) {
+    final Map<String, Partition> ring = new TreeMap<>();
+    partitions.forEach((name, lockStore) -> ring.put(name, newPartition(name, lockStore)));
+    routing = new Routing(new ConsistentHashRing<>(ring, virtualNodes), null);
+  }
+
+  /**
+   * Adds a partition and starts a rebalance. Throws an IllegalStateException if a rebalance is
+   * already going on.
+   */
+  public synchronized void addPartition(final String name, final LockStore lockStore) {
+    if (routing.previous != null) throw new IllegalStateException("Finish the current rebalance before adding " + name);
+
+    final ConsistentHashRing<Partition> ring = routing.current.with(name, newPartition(name, lockStore));
+    routing = new Routing(ring, routing.current);
+  }
+
+  /**
+   * Ends the rebalance: keys are only locked in their new partition from now on. Throws an
+   * IllegalStateException if a lock held by this store is not held in its new partition yet,
+   * i.e. it has not been renewed since the partition was added. Locks whose lease ran out, e.g.
+   * dropped by the service after failed renewals, are forgotten instead.
+   */
+  public synchronized void finishRebalance() {
+    final Routing routing = this.routing;
+    if (routing.previous == null) return;
+
+    final long now = now();
+    placements.entrySet().removeIf(placement -> placement.getValue().hasExpired(now));
+    for (final Map.Entry<HeldLock, Placement> placement : placements.entrySet()) {
+      if (!placement.getValue().isIn(routing.current.get(placement.getKey().key))) {
+        throw new IllegalStateException("The lock of " + placement.getKey().key + " is not in its new partition yet");
+      }
+    }
+    this.routing = new Routing(routing.current, null);
+  }
+
+  /**
+   * Returns true between addPartition and finishRebalance.
+   */
+  public boolean isRebalancing() {
+    return routing.previous != null;
+  }
+
+  /**
+   * Returns the name of the partition the key belongs to.
+   */
+  public String getPartitionName(final String key) {
+    return routing.current.get(key).name;
+  }
+
+  /**
+   * Returns the metrics of every partition, by name.
+   */
+  public Map<String, LockMetrics> getPartitionMetrics() {
+    final Map<String, LockMetrics> partitionMetrics = new TreeMap<>();
+    routing.current.getNodes().forEach((name, partition) -> partitionMetrics.put(name, partition.lockStore.getMetrics()));
+    return partitionMetrics;
+  }
+
+  @Override
+  public Optional<DistributedLock> lock(final String key, final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    return acquire(Mode.WRITE, key, distributedLockTimeOutOptions);
+  }
+
+  @Override
+  public Optional<DistributedLock> readLock(final String key, final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    return acquire(Mode.READ, key, distributedLockTimeOutOptions);
+  }
+
+  /**
+   * Try and get all the locks, or none of them, with one lockAll per partition involved. Whatever
+   * was claimed is released if a partition can't grant its keys.
+   */
+  @Override
+  public Optional<Map<String, DistributedLock>> lockAll(final Collection<String> keys,
+                                                        final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    final Routing routing = this.routing;
+    final long expiresAt = now() + distributedLockTimeOutOptions.getInactiveLockTimeout();
+
+    final Map<Partition, List<String>> keysByPartition = new LinkedHashMap<>();
+    for (final String key : new TreeSet<>(keys)) {
+      final Partition owner = routing.current.get(key);
+      final Partition previousOwner = routing.previousOwner(key, owner);
+      if (previousOwner != owner) keysByPartition.computeIfAbsent(previousOwner, p -> new ArrayList<>()).add(key);
+      keysByPartition.computeIfAbsent(owner, p -> new ArrayList<>()).add(key);
+    }
+
+    final Map<Partition, Map<String, DistributedLock>> claimed = new HashMap<>();
+    try {
+      for (final Map.Entry<Partition, List<String>> partitionKeys : keysByPartition.entrySet()) {
+        final Optional<Map<String, DistributedLock>> locks
+                = partitionKeys.getKey().lockStore.lockAll(partitionKeys.getValue(), distributedLockTimeOutOptions);
+        if (!locks.isPresent()) {
+          rollback(claimed);
+          return Optional.empty();
+        }
+        claimed.put(partitionKeys.getKey(), locks.get());
+      }
+    } catch (final RuntimeException e) {
+      rollback(claimed);
+      throw e;
+    }
+
+    final Map<String, DistributedLock> locks = new HashMap<>();
+    for (final String key : new TreeSet<>(keys)) {
+      final Partition owner = routing.current.get(key);
+      final Partition previousOwner = routing.previousOwner(key, owner);
+      final DistributedLock lock = claimed.get(owner).get(key);
+
+      placements.put(new HeldLock(key, lock.getLockedId()), previousOwner == owner
+              ? new Placement(owner, null, null, expiresAt)
+              : new Placement(owner, previousOwner, claimed.get(previousOwner).get(key), expiresAt));
+      locks.put(key, lock);
+    }
+    return Optional.of(locks);
+  }
+
+  private void rollback(final Map<Partition, Map<String, DistributedLock>> claimed) {
+    claimed.forEach((partition, locks) ->
+            locks.forEach((key, lock) -> partition.lockStore.unlock(key, lock.getLockedId())));
+  }
+
+  @Override
+  public Optional<ObjectId> unlock(final String key, final ObjectId lockId) {
+    return release(Mode.WRITE, key, lockId);
+  }
+
+  @Override
+  public Optional<ObjectId> readUnlock(final String key, final ObjectId lockId) {
+    return release(Mode.READ, key, lockId);
+  }
+
+  /**
+   * Takes the ticket in the partition the key belongs to.
+   */
+  @Override
+  public long takeTicket(final String key, final ObjectId ticketId, final long ticketTimeout) {
+    return routing.current.get(key).lockStore.takeTicket(key, ticketId, ticketTimeout);
+  }
+
+  /**
+   * Locks the key in turn in the partition it belongs to. While the key is moving, it is locked in
+   * its previous partition first, without a ticket since the queue lives in the new one.
+   */
+  @Override
+  public Optional<DistributedLock> lockInTurn(final String key,
+                                              final ObjectId ticketId,
+                                              final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    return acquire(Mode.WRITE, key, distributedLockTimeOutOptions,
+            lockStore -> lockStore.lockInTurn(key, ticketId, distributedLockTimeOutOptions));
+  }
+
+  @Override
+  public boolean renewTicket(final String key, final ObjectId ticketId, final long ticketTimeout) {
+    return routing.current.get(key).lockStore.renewTicket(key, ticketId, ticketTimeout);
+  }
+
+  @Override
+  public void returnTicket(final String key, final ObjectId ticketId) {
+    routing.current.get(key).lockStore.returnTicket(key, ticketId);
+  }
+
+  /**
+   * Unlocks the locks with one unlockAll per partition. The copies of moving keys are released too,
+   * but not counted.
+   */
+  @Override
+  public long unlockAll(final Map<String, ObjectId> locks) {
+    final List<HeldLock> heldLocks = new ArrayList<>();
+    final Map<Partition, Map<String, ObjectId>> locksByPartition = new HashMap<>();
+    long copies = 0;
+    for (final Map.Entry<String, ObjectId> lock : locks.entrySet()) {
+      final HeldLock heldLock = new HeldLock(lock.getKey(), lock.getValue());
+      final Placement placement = placements.get(heldLock);
+      if (placement == null) continue;
+
+      heldLocks.add(heldLock);
+      locksByPartition.computeIfAbsent(placement.partition, p -> new HashMap<>()).put(lock.getKey(), lock.getValue());
+      if (placement.copy != null) {
+        locksByPartition.computeIfAbsent(placement.copyPartition, p -> new HashMap<>())
+                .put(lock.getKey(), placement.copy.getLockedId());
+        copies++;
+      }
+    }
+
+    long released = -copies;
+    for (final Map.Entry<Partition, Map<String, ObjectId>> partitionLocks : locksByPartition.entrySet()) {
+      released += partitionLocks.getKey().lockStore.unlockAll(partitionLocks.getValue());
+    }
+    heldLocks.forEach(placements::remove);
+    return released;
+  }
+
+  @Override
+  public Set<String> renew(final Map<String, DistributedLock> locks,
+                           final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    return renew(Mode.WRITE, locks, distributedLockTimeOutOptions);
+  }
+
+  @Override
+  public Set<String> readRenew(final Map<String, DistributedLock> locks,
+                               final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    return renew(Mode.READ, locks, distributedLockTimeOutOptions);
+  }
+
+  /**
+   * Returns the remaining lease of the key in the partition it belongs to.
+   */
+  @Override
+  public Optional<Long> getRemainingLease(final String key) {
+    return routing.current.get(key).lockStore.getRemainingLease(key);
+  }
+
+  /**
+   * Returns the watcher of the partition the key belongs to.
+   */
+  @Override
+  public LockReleaseWatcher getReleaseWatcher(final String key) {
+    return routing.current.get(key).lockStore.getReleaseWatcher(key);
+  }
+
+  /**
+   * Returns the metrics of all partitions together, see getPartitionMetrics for each of them.
+   */
+  @Override
+  public LockMetrics getMetrics() {
+    return lockMetrics;
+  }
+
+  /**
+   * Closes every partition.
+   */
+  @Override
+  public void close() {
+    routing.current.getNodes().values().forEach(partition -> partition.lockStore.close());
+  }
+
+  private Optional<DistributedLock> acquire(final Mode mode,
+                                            final String key,
+                                            final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    return acquire(mode, key, distributedLockTimeOutOptions, lockStore -> mode.acquire(lockStore, key, distributedLockTimeOutOptions));
+  }
+
+  /**
+   * Acquires the key in its partition with the provided acquire. While the key is moving, it is first
+   * locked in its previous partition with the plain acquire of the mode.
+   */
+  private Optional<DistributedLock> acquire(final Mode mode,
+                                            final String key,
+                                            final DistributedLockTimeOutOptions distributedLockTimeOutOptions,
+                                            final Function<LockStore, Optional<DistributedLock>> ownerAcquire) {
+    final Routing routing = this.routing;
+    final Partition owner = routing.current.get(key);
+    final Partition previousOwner = routing.previousOwner(key, owner);
+    final long expiresAt = now() + distributedLockTimeOutOptions.getInactiveLockTimeout();
+
+    if (previousOwner == owner) {
+      final Optional<DistributedLock> lock = ownerAcquire.apply(owner.lockStore);
+      lock.ifPresent(held -> placements.put(new HeldLock(key, held.getLockedId()), new Placement(owner, null, null, expiresAt)));
+      return lock;
+    }
+
+    // The key is moving: claim it where the nodes that haven't added the partition yet look first.
+    final Optional<DistributedLock> previousLock = mode.acquire(previousOwner.lockStore, key, distributedLockTimeOutOptions);
+    if (!previousLock.isPresent()) return previousLock;
+
+    Optional<DistributedLock> lock = Optional.empty();
+    try {
+      lock = ownerAcquire.apply(owner.lockStore);
+    } finally {
+      if (!lock.isPresent()) mode.release(previousOwner.lockStore, key, previousLock.get().getLockedId());
+    }
+    if (!lock.isPresent()) return lock;
+
+    placements.put(new HeldLock(key, lock.get().getLockedId()), new Placement(owner, previousOwner, previousLock.get(), expiresAt));
+    return lock;
+  }
+
+  private Optional<ObjectId> release(final Mode mode, final String key, final ObjectId lockId) {
+    final HeldLock heldLock = new HeldLock(key, lockId);
+    final Placement placement = placements.get(heldLock);
+    if (placement == null) return Optional.empty();
+
+    final Optional<ObjectId> released = mode.release(placement.partition.lockStore, key, lockId);
+    if (!released.isPresent()) return released;
+
+    // The renewal may have moved the copy since, release the latest one.
+    final Placement releasedPlacement = placements.remove(heldLock);
+    if (releasedPlacement != null && releasedPlacement.copy != null) {
+      mode.release(releasedPlacement.copyPartition.lockStore, key, releasedPlacement.copy.getLockedId());
+    }
+    return released;
+  }
+
+  /**
+   * Renews the locks, and their copies, with one renew per partition. A lock is lost if either is.
+   * While rebalancing, locks that are not held in their new partition yet are then locked there.
+   */
+  private Set<String> renew(final Mode mode,
+                            final Map<String, DistributedLock> locks,
+                            final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    if (locks.isEmpty()) return Collections.emptySet();
+
+    final long expiresAt = now() + distributedLockTimeOutOptions.getInactiveLockTimeout();
+    final Set<String> lostKeys = new HashSet<>();
+    final Map<String, Placement> heldPlacements = new HashMap<>();
+    final Map<Partition, Map<String, DistributedLock>> locksByPartition = new HashMap<>();
+    for (final Map.Entry<String, DistributedLock> lock : locks.entrySet()) {
+      final Placement placement = placements.get(new HeldLock(lock.getKey(), lock.getValue().getLockedId()));
+      if (placement == null) {
+        lostKeys.add(lock.getKey());
+        continue;
+      }
+      heldPlacements.put(lock.getKey(), placement);
+      locksByPartition.computeIfAbsent(placement.partition, p -> new HashMap<>()).put(lock.getKey(), lock.getValue());
+      if (placement.copy != null) {
+        locksByPartition.computeIfAbsent(placement.copyPartition, p -> new HashMap<>()).put(lock.getKey(), placement.copy);
+      }
+    }
+
+    for (final Map.Entry<Partition, Map<String, DistributedLock>> partitionLocks : locksByPartition.entrySet()) {
+      lostKeys.addAll(mode.renew(partitionLocks.getKey().lockStore, partitionLocks.getValue(), distributedLockTimeOutOptions));
+    }
+
+    for (final String key : lostKeys) {
+      final DistributedLock lock = locks.get(key);
+      final Placement placement = placements.remove(new HeldLock(key, lock.getLockedId()));
+      // Whichever half is still held would otherwise block the key until it expires.
+      if (placement != null) {
+        mode.release(placement.partition.lockStore, key, lock.getLockedId());
+        if (placement.copy != null) mode.release(placement.copyPartition.lockStore, key, placement.copy.getLockedId());
+      }
+    }
+
+    final Routing routing = this.routing;
+    heldPlacements.forEach((key, placement) -> {
+      if (lostKeys.contains(key)) return;
+
+      final Placement renewed = placement.renewed(expiresAt);
+      if (!placements.replace(new HeldLock(key, locks.get(key).getLockedId()), placement, renewed)) return;
+      if (routing.previous != null) migrate(mode, key, locks.get(key), renewed, routing.current.get(key), distributedLockTimeOutOptions);
+    });
+    return lostKeys;
+  }
+
+  /**
+   * Locks the key in its new partition, as the copy of the held lock. A failed attempt is retried on
+   * the next renew; until then the lock is still held in its old partition, which everyone checks.
+   */
+  private void migrate(final Mode mode,
+                       final String key,
+                       final DistributedLock lock,
+                       final Placement placement,
+                       final Partition owner,
+                       final DistributedLockTimeOutOptions distributedLockTimeOutOptions) {
+    if (placement.isIn(owner)) return;
+
+    final Optional<DistributedLock> copy = mode.acquire(owner.lockStore, key, distributedLockTimeOutOptions);
+    if (!copy.isPresent()) return;
+
+    final Placement moved = new Placement(placement.partition, owner, copy.get(), placement.expiresAt);
+    if (!placements.replace(new HeldLock(key, lock.getLockedId()), placement, moved)) {
+      // Released meanwhile.
+      mode.release(owner.lockStore, key, copy.get().getLockedId());
+      return;
+    }
+    if (placement.copy != null) mode.release(placement.copyPartition.lockStore, key, placement.copy.getLockedId());
+  }
+
+  private static long now() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+  }
+
+  private Partition newPartition(final String name, final LockStore lockStore) {
+    lockStore.getMetrics().addListener(aggregator);
+    return new Partition(name, lockStore);
+  }
+
+  /**
+   * The write or the read side of the stores.
+   */
+  private enum Mode {
+    WRITE {
+      @Override
+      Optional<DistributedLock> acquire(final LockStore lockStore, final String key, final DistributedLockTimeOutOptions options) {
+        return lockStore.lock(key, options);
+      }
+
+      @Override
+      Optional<ObjectId> release(final LockStore lockStore, final String key, final ObjectId lockId) {
+        return lockStore.unlock(key, lockId);
+      }
+
+      @Override
+      Set<String> renew(final LockStore lockStore, final Map<String, DistributedLock> locks, final DistributedLockTimeOutOptions options) {
+        return lockStore.renew(locks, options);
+      }
+    },
+    READ {
+      @Override
+      Optional<DistributedLock> acquire(final LockStore lockStore, final String key, final DistributedLockTimeOutOptions options) {
+        return lockStore.readLock(key, options);
+      }
+
+      @Override
+      Optional<ObjectId> release(final LockStore lockStore, final String key, final ObjectId lockId) {
+        return lockStore.readUnlock(key, lockId);
+      }
+
+      @Override
+      Set<String> renew(final LockStore lockStore, final Map<String, DistributedLock> locks, final DistributedLockTimeOutOptions options) {
+        return lockStore.readRenew(locks, options);
+      }
+    };
+
+    abstract Optional<DistributedLock> acquire(LockStore lockStore, String key, DistributedLockTimeOutOptions options);
+
+    abstract Optional<ObjectId> release(LockStore lockStore, String key, ObjectId lockId);
+
+    abstract Set<String> renew(LockStore lockStore, Map<String, DistributedLock> locks, DistributedLockTimeOutOptions options);
+  }
+
+  /**
+   * The ring keys are locked in, and while rebalancing the ring they were locked in before.
+   */
+  private static final class Routing {
+    private final ConsistentHashRing<Partition> current;
+    private final ConsistentHashRing<Partition> previous;
+
+    private Routing(final ConsistentHashRing<Partition> current, final ConsistentHashRing<Partition> previous) {
+      this.current = current;
+      this.previous = previous;
+    }
+
+    private Partition previousOwner(final String key, final Partition owner) {
+      return previous == null ? owner : previous.get(key);
+    }
+  }
+
+  private static final class Partition {
+    private final String name;
+    private final LockStore lockStore;
+
+    private Partition(final String name, final LockStore lockStore) {
+      this.name = name;
+      this.lockStore = lockStore;
+    }
+  }
+
+  /**
+   * Where a lock granted by this store is held: in the partition that granted its lock id, and while
+   * its key moves, as a copy in the key's other partition. The lease ends at expiresAt unless the
+   * lock is renewed through this store.
+   */
+  private static final class Placement {
+    private final Partition partition;
+    private final Partition copyPartition;
+    private final DistributedLock copy;
+    private final long expiresAt;
+
+    private Placement(final Partition partition, final Partition copyPartition, final DistributedLock copy, final long expiresAt) {
+      this.partition = partition;
+      this.copyPartition = copyPartition;
+      this.copy = copy;
+      this.expiresAt = expiresAt;
+    }
+
+    private Placement renewed(final long expiresAt) {
+      return new Placement(partition, copyPartition, copy, expiresAt);
+    }
+
+    private boolean isIn(final Partition owner) {
+      return partition == owner || copyPartition == owner;
+    }
+
+    private boolean hasExpired(final long now) {
+      return expiresAt <= now;
+    }
+  }
+
+  private static final class HeldLock {
+    private final String key;
+    private final ObjectId lockId;
+
+    private HeldLock(final String key, final ObjectId lockId) {
+      this.key = key;
+      this.lockId = lockId;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof HeldLock)) return false;
+      final HeldLock heldLock = (HeldLock) other;
+      return key.equals(heldLock.key) && lockId.equals(heldLock.lockId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(key, lockId);
+    }
+  }
+}
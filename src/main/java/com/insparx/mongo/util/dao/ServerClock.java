@@ -0,0 +1,201 @@
+package com.insparx.mongo.util.dao;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoClient;
+import org.bson.Document;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Estimates the offset between the local clock and the mongo server clock. There is one clock per
+ * client; samples are taken in the background and only the low round trip ones are trusted
+ * (NTP style clock filter), so reading the server time never does any I/O.
+ * <p>
+ * Clocks only hold their client weakly: once a client is collected, its clock is dropped and its
+ * sampler stops.
+ */
+public final class ServerClock {
+
+  private static final String ADMIN_DB = "admin";
+  private static final String LOCAL_TIME_FIELD = "localTime";
+  private static final BasicDBObject IS_MASTER_CMD = new BasicDBObject("isMaster", 1);
+
+  private static final int SAMPLE_WINDOW = 8;
+
+  // The server reports localTime with millisecond resolution.
+  private static final long SERVER_RESOLUTION = 1;
+
+  // Assumed worst case drift of the local clock (parts per million) since the last sample.
+  private static final long MAX_DRIFT_PPM = 200;
+
+  private static final Map<Object, ServerClock> CLOCKS = Collections.synchronizedMap(new WeakHashMap<>());
+
+  private final Supplier<Date> serverTimeSource;
+  private final ScheduledExecutorService sampler;
+
+  private final long[] offsets = new long[SAMPLE_WINDOW];
+  private final long[] roundTrips = new long[SAMPLE_WINDOW];
+  private final long[] sampleTimes = new long[SAMPLE_WINDOW];
+  private int sampleCount;
+  private int nextSample;
+
+  private volatile Estimate estimate;
+
+  /**
+   * Returns the shared clock of the client, starting it if this is the first use.
+   */
+  public static ServerClock forClient(final MongoClient mongoClient, final long syncFrequency) {
+    final WeakReference<MongoClient> clientReference = new WeakReference<>(mongoClient);
+    return CLOCKS.computeIfAbsent(mongoClient, client -> new ServerClock(() -> {
+      final MongoClient sampledClient = clientReference.get();
+      if (sampledClient == null) return null;
+
+      final Document isMaster = sampledClient.getDatabase(ADMIN_DB).runCommand(IS_MASTER_CMD);
+      return (Date) isMaster.get(LOCAL_TIME_FIELD);
+    }, syncFrequency));
+  }
+
+  /**
+   * Returns the shared clock of the async client, starting it if this is the first use. The samples
+   * wait for the driver on the sampler thread; callers that must not block chain on whenSampled()
+   * before reading the clock.
+   */
+  public static ServerClock forClient(final com.mongodb.async.client.MongoClient mongoClient, final long syncFrequency) {
+    final WeakReference<com.mongodb.async.client.MongoClient> clientReference = new WeakReference<>(mongoClient);
+    return CLOCKS.computeIfAbsent(mongoClient, client -> new ServerClock(() -> {
+      final com.mongodb.async.client.MongoClient sampledClient = clientReference.get();
+      if (sampledClient == null) return null;
+
+      final CompletableFuture<Document> isMaster = new CompletableFuture<>();
+      sampledClient.getDatabase(ADMIN_DB).runCommand(IS_MASTER_CMD, (result, failure) -> {
+        if (failure != null) isMaster.completeExceptionally(failure);
+        else isMaster.complete(result);
+      });
+      return (Date) isMaster.join().get(LOCAL_TIME_FIELD);
+    }, syncFrequency));
+  }
+
+  /**
+   * Construct the clock. The source is expected to do one round trip to the server, and to return
+   * null once there is no server to sample anymore.
+   */
+  ServerClock(final Supplier<Date> serverTimeSource, final long syncFrequency) {
+    this.serverTimeSource = serverTimeSource;
+
+    sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "mongo-lock-server-clock");
+      thread.setDaemon(true);
+      return thread;
+    });
+    sampler.scheduleWithFixedDelay(this::sampleQuietly, syncFrequency, syncFrequency, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Completes with this clock once it has an estimate. Without one yet, the first sample is taken on
+   * the sampler thread rather than the caller's, which may be a driver callback.
+   */
+  public CompletableFuture<ServerClock> whenSampled() {
+    if (estimate != null) return CompletableFuture.completedFuture(this);
+    return CompletableFuture.supplyAsync(() -> {
+      current();
+      return this;
+    }, sampler);
+  }
+
+  /**
+   * Returns the estimated current server time.
+   */
+  public long currentTimeMillis() {
+    return System.currentTimeMillis() + current().offset;
+  }
+
+  /**
+   * Returns the estimated offset (server time - local time) in ms.
+   */
+  public long getOffset() {
+    return current().offset;
+  }
+
+  /**
+   * Returns the maximum error (in ms) of the current server time estimate. Lease calculations
+   * should treat the server time as anywhere in [currentTimeMillis() - bound, currentTimeMillis() + bound].
+   */
+  public long getErrorBound() {
+    final Estimate current = current();
+    final long sinceSample = Math.max(0, System.currentTimeMillis() - current.sampledAt);
+    return current.errorBound + (sinceSample * MAX_DRIFT_PPM) / 1000000;
+  }
+
+  /**
+   * Returns the estimate, taking a sample in the calling thread if none is available yet.
+   */
+  private Estimate current() {
+    final Estimate current = estimate;
+    if (current != null) return current;
+
+    synchronized (this) {
+      if (estimate == null) sample();
+      return estimate;
+    }
+  }
+
+  private void sampleQuietly() {
+    try {
+      sample();
+    } catch (final RuntimeException e) {
+      // Keep the previous estimate, its error bound keeps growing with the drift allowance.
+    }
+  }
+
+  private void sample() {
+    final long start = System.currentTimeMillis();
+    final Date serverTime = serverTimeSource.get();
+    final long end = System.currentTimeMillis();
+    if (serverTime == null) {
+      // The client was collected, so is its clock.
+      sampler.shutdown();
+      throw new IllegalStateException("The client of the clock is gone");
+    }
+
+    // Assume that latency is 50% each way.
+    addSample(serverTime.getTime() - ((start + end) / 2), end - start, end);
+  }
+
+  /**
+   * Records a sample and picks the one with the lowest round trip in the window,
+   * its offset is the least affected by asymmetric network delay.
+   */
+  synchronized void addSample(final long offset, final long roundTrip, final long sampledAt) {
+    offsets[nextSample] = offset;
+    roundTrips[nextSample] = roundTrip;
+    sampleTimes[nextSample] = sampledAt;
+    nextSample = (nextSample + 1) % SAMPLE_WINDOW;
+    if (sampleCount < SAMPLE_WINDOW) sampleCount++;
+
+    int best = 0;
+    for (int idx = 1; idx < sampleCount; idx++) if (roundTrips[idx] < roundTrips[best]) best = idx;
+
+    estimate = new Estimate(offsets[best], (roundTrips[best] + 1) / 2 + SERVER_RESOLUTION, sampleTimes[best]);
+  }
+
+  private static final class Estimate {
+    private final long offset;
+    private final long errorBound;
+    private final long sampledAt;
+
+    private Estimate(final long offset, final long errorBound, final long sampledAt) {
+      this.offset = offset;
+      this.errorBound = errorBound;
+      this.sampledAt = sampledAt;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package com.insparx.mongo.util.dao;
+
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Polls for the waiters of a lock collection while no change stream wakes them up. Every
+ * lockUnlockedFrequency ms it reads the state of all the keys awaited in the JVM with one find, and
+ * signals the keys that look free (no document, unlocked or an expired lease) so only their waiters
+ * make an acquire attempt. The load is one query per tick, however many threads wait.
+ * <p>
+ * A key held by readers only looks free to a writer, which then finds out with its attempt.
+ */
+final class WaitScheduler {
+
+  private final DistributedLockServiceConfig distributedLockServiceConfig;
+  private final Function<Set<String>, Iterable<LockRecord>> findStates;
+  private final LongSupplier expiredBefore;
+  private final Consumer<String> signalRelease;
+  // Threads waiting, by key.
+  private final ConcurrentHashMap<String, Integer> waiters = new ConcurrentHashMap<>();
+  private final AtomicBoolean started = new AtomicBoolean();
+  private volatile ScheduledExecutorService poller;
+  private volatile boolean closed;
+
+  /**
+   * Construct the scheduler reading the states of the keys with findStates, a projected find of their
+   * documents, and treating the leases that ended before expiredBefore (server time) as released.
+   */
+  WaitScheduler(final DistributedLockServiceConfig distributedLockServiceConfig,
+                final Function<Set<String>, Iterable<LockRecord>> findStates,
+                final LongSupplier expiredBefore,
+                final Consumer<String> signalRelease) {
+    this.distributedLockServiceConfig = distributedLockServiceConfig;
+    this.findStates = findStates;
+    this.expiredBefore = expiredBefore;
+    this.signalRelease = signalRelease;
+  }
+
+  /**
+   * Waits for the release signal of the key, for at most maxWait ms, counting as a waiter of the key
+   * meanwhile. The polling starts with the first waiter.
+   */
+  void await(final String key, final CountDownLatch releaseSignal, final long maxWait) throws InterruptedException {
+    waiters.merge(key, 1, Integer::sum);
+    if (started.compareAndSet(false, true)) start();
+    try {
+      releaseSignal.await(maxWait, TimeUnit.MILLISECONDS);
+    } finally {
+      waiters.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+    }
+  }
+
+  /**
+   * Reads the states of the awaited keys with one find and signals the ones that look free.
+   */
+  void tick() {
+    if (waiters.isEmpty()) return;
+
+    final Set<String> awaitedKeys = new HashSet<>(waiters.keySet());
+    final Set<String> freeKeys = new HashSet<>(awaitedKeys);
+    final long heldAfter = expiredBefore.getAsLong();
+    for (final LockRecord lockRecord : findStates.apply(awaitedKeys)) {
+      if (lockRecord.isHeld(heldAfter)) freeKeys.remove(lockRecord.key);
+    }
+    freeKeys.forEach(signalRelease);
+  }
+
+  /**
+   * Stops the polling. The waiters left wait out their maxWait.
+   */
+  void close() {
+    closed = true;
+    final ScheduledExecutorService scheduledPoller = poller;
+    if (scheduledPoller != null) scheduledPoller.shutdownNow();
+  }
+
+  private void start() {
+    if (closed) return;
+    poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "mongo-lock-wait-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    final long tick = distributedLockServiceConfig.getLockUnlockedFrequency();
+    poller.scheduleWithFixedDelay(this::tickQuietly, tick, tick, TimeUnit.MILLISECONDS);
+    // A close racing the start has not seen the poller yet.
+    if (closed) poller.shutdownNow();
+  }
+
+  private void tickQuietly() {
+    try {
+      tick();
+    } catch (final RuntimeException e) {
+      // The waiters keep waiting, try again on the next tick.
+    }
+  }
+}
@@ -11,9 +11,16 @@ public class DistributedLock {
 
   private final AtomicBoolean lockedStatus;
 
+  private final long fencingToken;
+
   public DistributedLock(ObjectId lockedId, AtomicBoolean lockedStatus) {
+    this(lockedId, lockedStatus, 0);
+  }
+
+  public DistributedLock(ObjectId lockedId, AtomicBoolean lockedStatus, long fencingToken) {
     this.lockedId = lockedId;
     this.lockedStatus = lockedStatus;
+    this.fencingToken = fencingToken;
   }
 
   public ObjectId getLockedId() {
@@ -23,4 +30,11 @@ public class DistributedLock {
   public AtomicBoolean getLockedStatus() {
     return lockedStatus;
   }
+
+  /**
+   * The token granted with this lock, greater than the token of any earlier holder of the key.
+   */
+  public long getFencingToken() {
+    return fencingToken;
+  }
 }
\ No newline at end of file
@@ -5,6 +5,9 @@ import com.mongodb.MongoClient;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 
 /**
@@ -26,6 +29,19 @@ public class DistributedLockServiceConfig {
   private long _heartbeatFrequency = 5000;
   private long _timeoutFrequency = 60000;
   private long _lockUnlockedFrequency = 1000;
+  private long _clockSyncFrequency = 10000;
+  private long _writerPreferenceWindow = 5000;
+  private long _lockIdlePeriod = 86400000;
+  private boolean _provisionIndexes = true;
+  private long _attemptCountFlushFrequency = 1000;
+  private long _attemptCountMaxStaleness = 10000;
+  private int _holderCacheSize = 0;
+  private long _holderCacheMaxStaleness = 5000;
+  private boolean _releaseOnShutdown = false;
+  private boolean _fairLocking = false;
+  private long _ticketTimeout = 10000;
+  private DurabilityProfile _durabilityProfile = DurabilityProfile.DEFAULT;
+  private final Map<String, DurabilityProfile> _durabilityProfiles = new HashMap<>();
 
   /**
    * The basic constructor. This uses the following:<br />
@@ -188,5 +204,166 @@ public class DistributedLockServiceConfig {
     _lockUnlockedFrequency = pLockUnlockedFrequency;
   }
 
-}
+  /**
+   * Milliseconds between server clock samples.
+   */
+  public long getClockSyncFrequency() {
+    return _clockSyncFrequency;
+  }
+
+  public void setClockSyncFrequency(final long pClockSyncFrequency) {
+    _clockSyncFrequency = pClockSyncFrequency;
+  }
+
+  /**
+   * Milliseconds a writer that failed to get a lock keeps new readers out of it.
+   */
+  public long getWriterPreferenceWindow() {
+    return _writerPreferenceWindow;
+  }
+
+  public void setWriterPreferenceWindow(final long pWriterPreferenceWindow) {
+    _writerPreferenceWindow = pWriterPreferenceWindow;
+  }
+
+  /**
+   * Milliseconds a lock document is kept after its lock was released or its last lease expired,
+   * before the TTL index removes it.
+   */
+  public long getLockIdlePeriod() {
+    return _lockIdlePeriod;
+  }
+
+  public void setLockIdlePeriod(final long pLockIdlePeriod) {
+    _lockIdlePeriod = pLockIdlePeriod;
+  }
+
+  /**
+   * Whether the daos create the indexes of the lock collection when they are constructed.
+   */
+  public boolean isProvisionIndexes() {
+    return _provisionIndexes;
+  }
+
+  public void setProvisionIndexes(final boolean pProvisionIndexes) {
+    _provisionIndexes = pProvisionIndexes;
+  }
+
+  /**
+   * Milliseconds between bulk writes of the failed lock attempt counts, 0 to write every attempt right away.
+   */
+  public long getAttemptCountFlushFrequency() {
+    return _attemptCountFlushFrequency;
+  }
+
+  public void setAttemptCountFlushFrequency(final long pAttemptCountFlushFrequency) {
+    _attemptCountFlushFrequency = pAttemptCountFlushFrequency;
+  }
+
+  /**
+   * Milliseconds failed lock attempt counts that could not be written are retried for, before they are dropped.
+   */
+  public long getAttemptCountMaxStaleness() {
+    return _attemptCountMaxStaleness;
+  }
+
+  public void setAttemptCountMaxStaleness(final long pAttemptCountMaxStaleness) {
+    _attemptCountMaxStaleness = pAttemptCountMaxStaleness;
+  }
+
+  /**
+   * Maximum number of keys held by other nodes that tryLock remembers to fail without a round trip, 0 to disable.
+   */
+  public int getHolderCacheSize() {
+    return _holderCacheSize;
+  }
+
+  public void setHolderCacheSize(final int pHolderCacheSize) {
+    _holderCacheSize = pHolderCacheSize;
+  }
+
+  /**
+   * Milliseconds a remembered holder is trusted at most, even if its lease ends later or no release is seen.
+   */
+  public long getHolderCacheMaxStaleness() {
+    return _holderCacheMaxStaleness;
+  }
+
+  public void setHolderCacheMaxStaleness(final long pHolderCacheMaxStaleness) {
+    _holderCacheMaxStaleness = pHolderCacheMaxStaleness;
+  }
+
+  /**
+   * Whether the service releases all its locks from a JVM shutdown hook, so other nodes don't wait for them to time out.
+   */
+  public boolean isReleaseOnShutdown() {
+    return _releaseOnShutdown;
+  }
+
+  public void setReleaseOnShutdown(final boolean pReleaseOnShutdown) {
+    _releaseOnShutdown = pReleaseOnShutdown;
+  }
 
+  /**
+   * Whether lock(key, timeout, unit) waits for the lock in a FIFO ticket queue shared by all nodes.
+   */
+  public boolean isFairLocking() {
+    return _fairLocking;
+  }
+
+  public void setFairLocking(final boolean pFairLocking) {
+    _fairLocking = pFairLocking;
+  }
+
+  /**
+   * The lease of a ticket in the fair queue in milliseconds, renewed while its waiter is waiting.
+   */
+  public long getTicketTimeout() {
+    return _ticketTimeout;
+  }
+
+  public void setTicketTimeout(final long pTicketTimeout) {
+    _ticketTimeout = pTicketTimeout;
+  }
+
+  /**
+   * The durability profile of the keys without a profile of their own.
+   */
+  public DurabilityProfile getDurabilityProfile() {
+    return _durabilityProfile;
+  }
+
+  public void setDurabilityProfile(final DurabilityProfile pDurabilityProfile) {
+    _durabilityProfile = pDurabilityProfile;
+  }
+
+  /**
+   * Sets the durability profile of the keys starting with the prefix, or of a single key.
+   */
+  public void setDurabilityProfile(final String pKeyPrefix, final DurabilityProfile pDurabilityProfile) {
+    _durabilityProfiles.put(pKeyPrefix, pDurabilityProfile);
+  }
+
+  /**
+   * The durability profiles by key prefix.
+   */
+  public Map<String, DurabilityProfile> getDurabilityProfiles() {
+    return Collections.unmodifiableMap(_durabilityProfiles);
+  }
+
+  /**
+   * Returns the durability profile of the key: the one of its longest prefix with a profile, else the default one.
+   */
+  public DurabilityProfile getDurabilityProfile(final String pKey) {
+    DurabilityProfile durabilityProfile = _durabilityProfile;
+    int prefixLength = -1;
+    for (final Map.Entry<String, DurabilityProfile> prefix : _durabilityProfiles.entrySet()) {
+      if (prefix.getKey().length() > prefixLength && pKey.startsWith(prefix.getKey())) {
+        durabilityProfile = prefix.getValue();
+        prefixLength = prefix.getKey().length();
+      }
+    }
+    return durabilityProfile;
+  }
+
+}
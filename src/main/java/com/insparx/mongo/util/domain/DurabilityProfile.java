@@ -0,0 +1,79 @@
+package com.insparx.mongo.util.domain;
+
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+/**
+ * The durability profiles of locks, from the cheapest to the safest. A profile applies the same
+ * concerns to every acquire, renewal, release and read of a lock.
+ */
+public enum DurabilityProfile {
+
+  /**
+   * w:1 and local reads on the primary: one acknowledged write per operation, for best-effort
+   * locks whose loss on a failover is acceptable (e.g. cache stampede protection).
+   */
+  FAST(WriteConcern.W1, ReadConcern.LOCAL, ReadPreference.primary(), false),
+
+  /**
+   * The concerns of the MongoClient.
+   */
+  DEFAULT(null, null, null, false),
+
+  /**
+   * Majority writes and reads on the primary, within causally consistent sessions, for locks that
+   * must survive a failover.
+   */
+  SAFE(WriteConcern.MAJORITY, ReadConcern.MAJORITY, ReadPreference.primary(), true);
+
+  DurabilityProfile(final WriteConcern pWriteConcern,
+                    final ReadConcern pReadConcern,
+                    final ReadPreference pReadPreference,
+                    final boolean pCausallyConsistent) {
+    writeConcern = pWriteConcern;
+    readConcern = pReadConcern;
+    readPreference = pReadPreference;
+    causallyConsistent = pCausallyConsistent;
+  }
+
+  private final WriteConcern writeConcern;
+  private final ReadConcern readConcern;
+  private final ReadPreference readPreference;
+  private final boolean causallyConsistent;
+
+  /**
+   * The write concern, or null for the client's.
+   */
+  public WriteConcern getWriteConcern() {
+    return writeConcern;
+  }
+
+  /**
+   * The read concern, or null for the client's.
+   */
+  public ReadConcern getReadConcern() {
+    return readConcern;
+  }
+
+  /**
+   * The read preference, or null for the client's.
+   */
+  public ReadPreference getReadPreference() {
+    return readPreference;
+  }
+
+  /**
+   * Whether operations run in causally consistent sessions.
+   */
+  public boolean isCausallyConsistent() {
+    return causallyConsistent;
+  }
+
+  /**
+   * Returns the safer of the two profiles.
+   */
+  public DurabilityProfile max(final DurabilityProfile other) {
+    return compareTo(other) >= 0 ? this : other;
+  }
+}
@@ -0,0 +1,61 @@
+package com.insparx.mongo.util.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with power of two buckets: bucket i counts the latencies in
+ * [2^(i-1), 2^i) ns. Recording is one array increment and does not allocate; percentiles are
+ * reported as the upper bound of their bucket, so they are accurate within a factor of two.
+ */
+public final class LatencyHistogram {
+
+  private static final int BUCKETS = 64;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Records a latency.
+   */
+  public void record(final long nanos) {
+    final long latency = Math.max(nanos, 0);
+    buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(latency));
+    count.increment();
+    totalNanos.add(latency);
+    maxNanos.accumulate(latency);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getMeanNanos() {
+    final long recorded = count.sum();
+    return recorded == 0 ? 0 : totalNanos.sum() / recorded;
+  }
+
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * Returns the latency (upper bound of its bucket) under which the quantile (0 to 1) of the recorded latencies fall.
+   */
+  public long getPercentileNanos(final double quantile) {
+    long total = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) total += buckets.get(bucket);
+    if (total == 0) return 0;
+
+    final long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += buckets.get(bucket);
+      if (seen >= rank && seen > 0) return (1L << bucket) - 1;
+    }
+    return Long.MAX_VALUE;
+  }
+}
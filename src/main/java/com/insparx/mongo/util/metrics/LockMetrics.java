@@ -0,0 +1,226 @@
+package com.insparx.mongo.util.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latencies, round trips and outcomes of the lock operations of a dao. Recording is lock-free
+ * and does not allocate; the totals are read through JMX (see register) or pushed to listeners.
+ */
+public final class LockMetrics implements LockMetricsMBean {
+
+  private static final LockMetricsListener[] NO_LISTENERS = new LockMetricsListener[0];
+
+  private final Map<LockOperation, LatencyHistogram> latencies = new EnumMap<>(LockOperation.class);
+  private final Map<LockOperation, LongAdder> roundTrips = new EnumMap<>(LockOperation.class);
+  private final LongAdder contentions = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder lost = new LongAdder();
+  private final LongAdder heldLocks = new LongAdder();
+
+  // An array rather than a list, so notifying the listeners doesn't allocate an iterator.
+  private volatile LockMetricsListener[] listeners = NO_LISTENERS;
+
+  public LockMetrics() {
+    for (final LockOperation operation : LockOperation.values()) {
+      latencies.put(operation, new LatencyHistogram());
+      roundTrips.put(operation, new LongAdder());
+    }
+  }
+
+  /**
+   * Records a completed operation.
+   */
+  public void recordOperation(final LockOperation operation, final long nanos, final int operationRoundTrips) {
+    latencies.get(operation).record(nanos);
+    roundTrips.get(operation).add(operationRoundTrips);
+    for (final LockMetricsListener listener : listeners) listener.onOperation(operation, nanos, operationRoundTrips);
+  }
+
+  /**
+   * Records an acquire that failed because someone else holds the lock.
+   */
+  public void recordContention(final LockOperation operation) {
+    contentions.increment();
+    for (final LockMetricsListener listener : listeners) listener.onContention(operation);
+  }
+
+  /**
+   * Records an operation that failed with a mongo error.
+   */
+  public void recordFailure(final LockOperation operation) {
+    failures.increment();
+    for (final LockMetricsListener listener : listeners) listener.onFailure(operation);
+  }
+
+  /**
+   * Records a change of the number of held locks.
+   */
+  public void recordHeldLocks(final int delta) {
+    heldLocks.add(delta);
+    for (final LockMetricsListener listener : listeners) listener.onHeldLocks(delta);
+  }
+
+  /**
+   * Records a lock that could not be renewed.
+   */
+  public void recordLockLost() {
+    lost.increment();
+    for (final LockMetricsListener listener : listeners) listener.onLockLost();
+  }
+
+  public synchronized void addListener(final LockMetricsListener listener) {
+    final LockMetricsListener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+    added[listeners.length] = listener;
+    listeners = added;
+  }
+
+  /**
+   * Returns the latencies of the operation.
+   */
+  public LatencyHistogram getLatencies(final LockOperation operation) {
+    return latencies.get(operation);
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server, under
+   * com.insparx.mongo.util:type=LockMetrics,name=(the provided name).
+   */
+  public ObjectName register(final String name) throws JMException {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName objectName = new ObjectName("com.insparx.mongo.util:type=LockMetrics,name=" + ObjectName.quote(name));
+    mBeanServer.registerMBean(this, objectName);
+    return objectName;
+  }
+
+  @Override
+  public long getAcquireCount() {
+    return latencies.get(LockOperation.ACQUIRE).getCount();
+  }
+
+  @Override
+  public long getAcquireRoundTrips() {
+    return roundTrips.get(LockOperation.ACQUIRE).sum();
+  }
+
+  @Override
+  public long getAcquireMeanMicros() {
+    return micros(latencies.get(LockOperation.ACQUIRE).getMeanNanos());
+  }
+
+  @Override
+  public long getAcquireP99Micros() {
+    return micros(latencies.get(LockOperation.ACQUIRE).getPercentileNanos(0.99));
+  }
+
+  @Override
+  public long getAcquireMaxMicros() {
+    return micros(latencies.get(LockOperation.ACQUIRE).getMaxNanos());
+  }
+
+  @Override
+  public long getReleaseCount() {
+    return latencies.get(LockOperation.RELEASE).getCount();
+  }
+
+  @Override
+  public long getReleaseRoundTrips() {
+    return roundTrips.get(LockOperation.RELEASE).sum();
+  }
+
+  @Override
+  public long getReleaseMeanMicros() {
+    return micros(latencies.get(LockOperation.RELEASE).getMeanNanos());
+  }
+
+  @Override
+  public long getReleaseP99Micros() {
+    return micros(latencies.get(LockOperation.RELEASE).getPercentileNanos(0.99));
+  }
+
+  @Override
+  public long getReleaseMaxMicros() {
+    return micros(latencies.get(LockOperation.RELEASE).getMaxNanos());
+  }
+
+  @Override
+  public long getRenewCount() {
+    return latencies.get(LockOperation.RENEW).getCount();
+  }
+
+  @Override
+  public long getRenewRoundTrips() {
+    return roundTrips.get(LockOperation.RENEW).sum();
+  }
+
+  @Override
+  public long getRenewMeanMicros() {
+    return micros(latencies.get(LockOperation.RENEW).getMeanNanos());
+  }
+
+  @Override
+  public long getRenewP99Micros() {
+    return micros(latencies.get(LockOperation.RENEW).getPercentileNanos(0.99));
+  }
+
+  @Override
+  public long getRenewMaxMicros() {
+    return micros(latencies.get(LockOperation.RENEW).getMaxNanos());
+  }
+
+  @Override
+  public long getLookupCount() {
+    return latencies.get(LockOperation.LOOKUP).getCount();
+  }
+
+  @Override
+  public long getLookupRoundTrips() {
+    return roundTrips.get(LockOperation.LOOKUP).sum();
+  }
+
+  @Override
+  public long getLookupMeanMicros() {
+    return micros(latencies.get(LockOperation.LOOKUP).getMeanNanos());
+  }
+
+  @Override
+  public long getLookupP99Micros() {
+    return micros(latencies.get(LockOperation.LOOKUP).getPercentileNanos(0.99));
+  }
+
+  @Override
+  public long getLookupMaxMicros() {
+    return micros(latencies.get(LockOperation.LOOKUP).getMaxNanos());
+  }
+
+  @Override
+  public long getContentionCount() {
+    return contentions.sum();
+  }
+
+  @Override
+  public long getFailureCount() {
+    return failures.sum();
+  }
+
+  @Override
+  public long getLostCount() {
+    return lost.sum();
+  }
+
+  @Override
+  public long getHeldLocks() {
+    return heldLocks.sum();
+  }
+
+  private static long micros(final long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+}
@@ -0,0 +1,38 @@
+package com.insparx.mongo.util.metrics;
+
+/**
+ * Receives every measurement of a {@link LockMetrics}, e.g. to forward it to a metrics library.
+ * Callbacks run on the lock's hot path (and the heartbeat thread) and must be fast and must not block.
+ */
+public interface LockMetricsListener {
+
+  /**
+   * An operation completed (successfully or not) after the provided number of mongo round trips.
+   */
+  default void onOperation(final LockOperation operation, final long nanos, final int roundTrips) {
+  }
+
+  /**
+   * An acquire failed because the lock or the permits are held by someone else.
+   */
+  default void onContention(final LockOperation operation) {
+  }
+
+  /**
+   * An operation failed with a mongo error.
+   */
+  default void onFailure(final LockOperation operation) {
+  }
+
+  /**
+   * The number of locks held by the process changed by the provided delta.
+   */
+  default void onHeldLocks(final int delta) {
+  }
+
+  /**
+   * A held lock could not be renewed.
+   */
+  default void onLockLost() {
+  }
+}
@@ -0,0 +1,55 @@
+package com.insparx.mongo.util.metrics;
+
+/**
+ * The JMX view of the {@link LockMetrics}. Latencies are in microseconds.
+ */
+public interface LockMetricsMBean {
+
+  long getAcquireCount();
+
+  long getAcquireRoundTrips();
+
+  long getAcquireMeanMicros();
+
+  long getAcquireP99Micros();
+
+  long getAcquireMaxMicros();
+
+  long getReleaseCount();
+
+  long getReleaseRoundTrips();
+
+  long getReleaseMeanMicros();
+
+  long getReleaseP99Micros();
+
+  long getReleaseMaxMicros();
+
+  long getRenewCount();
+
+  long getRenewRoundTrips();
+
+  long getRenewMeanMicros();
+
+  long getRenewP99Micros();
+
+  long getRenewMaxMicros();
+
+  long getLookupCount();
+
+  long getLookupRoundTrips();
+
+  long getLookupMeanMicros();
+
+  long getLookupP99Micros();
+
+  long getLookupMaxMicros();
+
+  long getContentionCount();
+
+  long getFailureCount();
+
+  long getLostCount();
+
+  long getHeldLocks();
+}
@@ -0,0 +1,11 @@
+package com.insparx.mongo.util.metrics;
+
+/**
+ * The timed operations of the locks, semaphores included.
+ */
+public enum LockOperation {
+  ACQUIRE,
+  RELEASE,
+  RENEW,
+  LOOKUP // Reads of a lock's holder, e.g. by the holder cache
+}
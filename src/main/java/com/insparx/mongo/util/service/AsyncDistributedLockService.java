@@ -0,0 +1,39 @@
+package com.insparx.mongo.util.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Non-blocking variant of {@link DistributedLockService}. No method blocks the calling thread on a
+ * round trip to mongo, so it can be used from event loop threads.
+ */
+public interface AsyncDistributedLockService {
+
+  /**
+   * Try to acquire a lock. If lock with the provided key is already acquired, completes with false.
+   *
+   * @param key lock key
+   * @return completes with true on success (lock is acquired), false on failure (lock is already acquired)
+   */
+  CompletableFuture<Boolean> tryLockAsync(String key);
+
+  /**
+   * Acquire a lock, retrying every lockUnlockedFrequency ms until the timeout elapses.
+   *
+   * @param key     lock key
+   * @param timeout the maximum time to wait
+   * @param unit    the unit of the timeout
+   * @return completes with true on success (lock is acquired), false if the timeout elapsed first
+   */
+  CompletableFuture<Boolean> lockAsync(String key, long timeout, TimeUnit unit);
+
+  /**
+   * Release a lock. If lock with the provided key is not acquired yet, completes with false.
+   *
+   * @param key lock key
+   * @return completes with true on success (acquired lock is released), false on failure (lock is not yet acquired),
+   * exceptionally if mongo could not be reached, the lock is then still held
+   */
+  CompletableFuture<Boolean> releaseLockAsync(String key);
+}
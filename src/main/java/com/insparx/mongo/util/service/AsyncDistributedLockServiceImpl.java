@@ -0,0 +1,198 @@
+package com.insparx.mongo.util.service;
+
+import com.insparx.mongo.util.dao.AsyncLockDao;
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.mongodb.async.client.MongoClient;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The distributed lock object on the asynchronous driver. Lock state is tracked like in
+ * {@link DistributedLockServiceImpl}; waiting and lease renewal are scheduled on one timer
+ * thread per service, so pending requests don't hold on to threads. Like there, locks not renewed
+ * for inactiveLockTimeout ms while mongo can't be reached are reported lost.
+ */
+public class AsyncDistributedLockServiceImpl implements AsyncDistributedLockService, AutoCloseable {
+
+  private final AsyncLockDao lockDao;
+  private final DistributedLockTimeOutOptions distributedLockTimeOutOptions;
+  private final DistributedLockServiceConfig distributedLockServiceConfig;
+  private final ConcurrentHashMap<String, DistributedLock> currentLockedMap = new ConcurrentHashMap<>();
+  // When each lock was last granted or renewed (nanoTime of the attempt start).
+  private final ConcurrentHashMap<DistributedLock, Long> renewedAt = new ConcurrentHashMap<>();
+  private final List<LockLostListener> lockLostListeners = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService scheduler;
+
+
+  /**
+   * Construct the object with params.
+   */
+  AsyncDistributedLockServiceImpl(final MongoClient mongoClient,
+                                  final DistributedLockTimeOutOptions distributedLockTimeOutOptions,
+                                  final DistributedLockServiceConfig distributedLockServiceConfig) {
+    this.lockDao = new AsyncLockDao(mongoClient, distributedLockServiceConfig);
+    this.distributedLockTimeOutOptions = distributedLockTimeOutOptions;
+    this.distributedLockServiceConfig = distributedLockServiceConfig;
+
+    final long heartbeatFrequency = distributedLockServiceConfig.getHeartbeatFrequency();
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "mongo-lock-async-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::heartbeat, heartbeatFrequency, heartbeatFrequency, TimeUnit.MILLISECONDS);
+  }
+
+
+  @Override
+  public CompletableFuture<Boolean> tryLockAsync(final String key) {
+    if (isLocked(key)) return CompletableFuture.completedFuture(false);
+
+    final long attemptStart = System.nanoTime();
+    return lockDao.lock(key, distributedLockTimeOutOptions).thenApply(distributedLock -> {
+      if (!distributedLock.isPresent()) return false;
+
+      renewedAt.put(distributedLock.get(), attemptStart);
+      currentLockedMap.put(key, distributedLock.get());
+      return true;
+    });
+  }
+
+  @Override
+  public CompletableFuture<Boolean> lockAsync(final String key, final long timeout, final TimeUnit unit) {
+    final CompletableFuture<Boolean> locked = new CompletableFuture<>();
+    attemptLock(key, System.nanoTime() + unit.toNanos(timeout), locked);
+    return locked;
+  }
+
+  @Override
+  public CompletableFuture<Boolean> releaseLockAsync(final String key) {
+    final DistributedLock distributedLock = currentLockedMap.get(key);
+    if (distributedLock == null || !distributedLock.getLockedStatus().compareAndSet(true, false)) {
+      return CompletableFuture.completedFuture(false);
+    }
+
+    return lockDao.unlock(key, distributedLock.getLockedId()).whenComplete((lockId, failure) -> {
+      // The release may not have happened, keep renewing the lock.
+      if (failure != null) distributedLock.getLockedStatus().set(true);
+    }).thenApply(lockId -> {
+      if (!lockId.isPresent()) {
+        distributedLock.getLockedStatus().set(true);
+        return false;
+      }
+
+      currentLockedMap.remove(key, distributedLock);
+      renewedAt.remove(distributedLock);
+      return true;
+    });
+  }
+
+  /**
+   * Registers a callback for locks whose lease could not be renewed.
+   */
+  public void addLockLostListener(final LockLostListener lockLostListener) {
+    lockLostListeners.add(lockLostListener);
+  }
+
+  /**
+   * Stops renewing the held locks and retrying pending lockAsync calls.
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    lockDao.close();
+  }
+
+  /**
+   * Tries the lock and, until the deadline, schedules the next attempt after lockUnlockedFrequency ms.
+   */
+  private void attemptLock(final String key, final long deadline, final CompletableFuture<Boolean> locked) {
+    tryLockAsync(key).whenComplete((acquired, failure) -> {
+      if (failure != null) {
+        locked.completeExceptionally(failure);
+        return;
+      }
+
+      final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (acquired || remaining <= 0) {
+        locked.complete(acquired);
+        return;
+      }
+
+      final long retryDelay = Math.min(remaining, distributedLockServiceConfig.getLockUnlockedFrequency());
+      scheduler.schedule(() -> attemptLock(key, deadline, locked), retryDelay, TimeUnit.MILLISECONDS);
+    });
+  }
+
+  /**
+   * Returns true if the lock is currently locked.
+   */
+  private boolean isLocked(final String key) {
+    Optional<DistributedLock> isLockedByKey = Optional.ofNullable(currentLockedMap.get(key));
+    return isLockedByKey.isPresent() && isLockedByKey.get().getLockedStatus().get();
+  }
+
+  /**
+   * Renews all held locks in one batch and drops the ones that could not be renewed.
+   */
+  private void heartbeat() {
+    final Map<String, DistributedLock> heldLocks = new HashMap<>();
+    currentLockedMap.forEach((key, distributedLock) -> {
+      if (distributedLock.getLockedStatus().get()) heldLocks.put(key, distributedLock);
+    });
+    if (heldLocks.isEmpty()) return;
+
+    final long renewStart = System.nanoTime();
+    lockDao.renew(heldLocks, distributedLockTimeOutOptions).handle((lostKeys, failure) -> {
+      if (failure != null) return expiredKeys(heldLocks, renewStart);
+
+      heldLocks.forEach((key, distributedLock) -> {
+        if (!lostKeys.contains(key)) renewedAt.replace(distributedLock, renewStart);
+      });
+      return lostKeys;
+    }).thenAccept(lostKeys -> {
+      for (final String key : lostKeys) {
+        final DistributedLock distributedLock = heldLocks.get(key);
+        if (!distributedLock.getLockedStatus().compareAndSet(true, false)) continue;
+
+        currentLockedMap.remove(key, distributedLock);
+        renewedAt.remove(distributedLock);
+        for (final LockLostListener lockLostListener : lockLostListeners) {
+          try {
+            lockLostListener.onLockLost(key);
+          } catch (final RuntimeException e) {
+            // A failing listener must not stop the others.
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the keys of the locks not renewed for inactiveLockTimeout ms before renewStart, which
+   * another node may have taken over while the renewals failed.
+   */
+  private Set<String> expiredKeys(final Map<String, DistributedLock> heldLocks, final long renewStart) {
+    final long inactiveLockTimeout = TimeUnit.MILLISECONDS.toNanos(distributedLockTimeOutOptions.getInactiveLockTimeout());
+    final Set<String> expiredKeys = new HashSet<>();
+    heldLocks.forEach((key, distributedLock) -> {
+      final Long lastRenewal = renewedAt.get(distributedLock);
+      if (lastRenewal != null && renewStart - lastRenewal >= inactiveLockTimeout) expiredKeys.add(key);
+    });
+    return expiredKeys;
+  }
+}
@@ -1,5 +1,8 @@
 package com.insparx.mongo.util.service;
 
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Distributed lock service which prevents race conditions and other concurrency related problems in a clustered environment.
@@ -7,7 +10,8 @@ package com.insparx.mongo.util.service;
 public interface DistributedLockService {
 
   /**
-   * Try to acquire a lock. If lock with the provided key is already acquired, will return false.
+   * Try to acquire a lock. If lock with the provided key is already acquired, will return false, unless
+   * the current thread acquired it: the lock is reentrant and then counts one more hold.
    *
    * @param key lock key
    * @return true on success (lock is acquired), false on failure (lock is already acquired)
@@ -15,10 +19,85 @@ public interface DistributedLockService {
   boolean tryLock(String key);
 
   /**
-   * Release a lock. If lock with the provided key is not acquired yet, will return false.
+   * Try to acquire all the locks at once. If any of them is already acquired, none is acquired and false is returned.
+   * This is not reentrant: keys held by the current thread fail it too.
+   *
+   * @param keys lock keys
+   * @return true on success (all locks are acquired), false on failure (no lock is acquired)
+   */
+  boolean tryLockAll(Collection<String> keys);
+
+  /**
+   * Acquire a lock, waiting up to the timeout for it to be released if it is already acquired. A lock
+   * the current thread acquired is acquired again at once.
+   *
+   * @param key     lock key
+   * @param timeout the maximum time to wait
+   * @param unit    the unit of the timeout
+   * @return true on success (lock is acquired), false if the timeout elapsed first
+   * @throws InterruptedException if the waiting thread is interrupted
+   */
+  boolean lock(String key, long timeout, TimeUnit unit) throws InterruptedException;
+
+  /**
+   * Release a lock. If lock with the provided key is not acquired yet, or was acquired by another thread,
+   * will return false. Each hold of a reentrant lock must be released, only the last one releases the lock.
    *
    * @param key lock key
-   * @return true on success (acquired lock is released), false on failure (lock is not yet acquired)
+   * @return true on success (a hold of the acquired lock is released), false on failure (lock is not acquired by this thread)
    */
   boolean releaseLock(String key);
+
+  /**
+   * Try to acquire a lock like {@link #tryLock}, returning a handle that releases it when closed.
+   *
+   * @param key lock key
+   * @return the handle on success, empty on failure (lock is already acquired)
+   */
+  default Optional<LockHandle> tryAcquire(final String key) {
+    if (!tryLock(key)) return Optional.empty();
+    // Empty if the lock was lost right away.
+    return getFencingToken(key).map(fencingToken -> new LockHandle(this, key, fencingToken));
+  }
+
+  /**
+   * Acquire a lock like {@link #lock}, returning a handle that releases it when closed.
+   *
+   * @param key     lock key
+   * @param timeout the maximum time to wait
+   * @param unit    the unit of the timeout
+   * @return the handle on success, empty if the timeout elapsed first
+   * @throws InterruptedException if the waiting thread is interrupted
+   */
+  default Optional<LockHandle> acquire(final String key, final long timeout, final TimeUnit unit) throws InterruptedException {
+    if (!lock(key, timeout, unit)) return Optional.empty();
+    // Empty if the lock was lost right away.
+    return getFencingToken(key).map(fencingToken -> new LockHandle(this, key, fencingToken));
+  }
+
+  /**
+   * Try to acquire a read lock, shared with other readers. If the lock is acquired by a writer, or a
+   * writer is waiting for it, will return false. Read locks of the same key are counted, each one must be released.
+   *
+   * @param key lock key
+   * @return true on success (read lock is acquired), false on failure (lock is acquired by or reserved for a writer)
+   */
+  boolean tryReadLock(String key);
+
+  /**
+   * Release a read lock. If no read lock with the provided key is acquired, will return false.
+   *
+   * @param key lock key
+   * @return true on success (acquired read lock is released), false on failure (read lock is not acquired)
+   */
+  boolean releaseReadLock(String key);
+
+  /**
+   * Returns the fencing token of a lock held by this service. Tokens grow with every acquire of a key,
+   * so a resource guarded by the lock can reject writes carrying a token lower than one it has seen.
+   *
+   * @param key lock key
+   * @return the fencing token, empty if the lock is not held
+   */
+  Optional<Long> getFencingToken(String key);
 }
\ No newline at end of file
@@ -1,26 +1,72 @@
 package com.insparx.mongo.util.service;
 
+import com.insparx.mongo.util.dao.InMemoryLockStore;
 import com.insparx.mongo.util.dao.LockDao;
+import com.insparx.mongo.util.dao.LockReleaseWatcher;
+import com.insparx.mongo.util.dao.LockStore;
 import com.insparx.mongo.util.domain.DistributedLock;
 import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
 import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.insparx.mongo.util.metrics.LockMetrics;
 import com.mongodb.MongoClient;
 import org.bson.types.ObjectId;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 
 
 /**
- * The distributed lock object.
+ * The distributed lock object. Held locks are leases that a single heartbeat thread renews
+ * every heartbeatFrequency ms until they are released or the service is closed. A lock that could not
+ * be renewed for inactiveLockTimeout ms, e.g. while mongo is unreachable, is reported lost.
+ * <p>
+ * Threads of the service first enter the key locally, so for a hot key only one thread at a time
+ * contends in mongo while the others fail fast (tryLock) or queue locally (lock) without any I/O.
+ * <p>
+ * Read locks of a key share one read lease per service: only the first reader goes to mongo,
+ * the others count on the lease, which is released with the last of them.
+ * <p>
+ * With holderCacheSize set, a key found held by another node fails tryLock locally until that
+ * holder's lease could have ended or a release of the key is seen, see {@link RemoteHolderCache}.
+ * <p>
+ * With fairLocking set, lock(key, timeout, unit) takes a ticket in the key's queue and only gets the
+ * lock in its turn, so waiters of all nodes are served in FIFO order. tryLock never queues.
+ * <p>
+ * Locks are reentrant for the thread that acquired them: nested acquires only count a hold, and
+ * only the release of the outermost one goes to the store. tryLockAll is not reentrant.
  */
-public class DistributedLockServiceImpl implements DistributedLockService {
+public class DistributedLockServiceImpl implements DistributedLockService, AutoCloseable {
 
-  private final MongoClient mongoClient;
+  private final LockStore lockStore;
+  private final LockMetrics lockMetrics;
   private final DistributedLockTimeOutOptions distributedLockTimeOutOptions;
   private final DistributedLockServiceConfig distributedLockServiceConfig;
   private volatile ConcurrentHashMap<String, DistributedLock> currentLockedMap = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Hold> holds = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, ReadLease> readLeases = new ConcurrentHashMap<>();
+  // When (in nanoTime) each held lock and read lease was last granted or renewed.
+  private final ConcurrentHashMap<DistributedLock, Long> renewedAt = new ConcurrentHashMap<>();
+  private final List<LockLostListener> lockLostListeners = new CopyOnWriteArrayList<>();
+  private final LocalLockArbiter localLockArbiter = new LocalLockArbiter();
+  private final RemoteHolderCache remoteHolderCache;
+  private final ScheduledExecutorService heartbeatExecutor;
+  private final Thread shutdownHook;
+  // Whether the service created the store, and closes it with itself.
+  private final boolean ownsLockStore;
 
 
   /**
@@ -29,43 +75,454 @@ public class DistributedLockServiceImpl implements DistributedLockService {
   DistributedLockServiceImpl(final MongoClient mongoClient,
                              final DistributedLockTimeOutOptions distributedLockTimeOutOptions,
                              final DistributedLockServiceConfig distributedLockServiceConfig) {
-    this.mongoClient = mongoClient;
+    this(new LockDao(mongoClient, distributedLockServiceConfig), distributedLockTimeOutOptions, distributedLockServiceConfig, true);
+  }
+
+  /**
+   * Construct the object on top of a lock store, e.g. an {@link InMemoryLockStore} on a single node.
+   * The store is not closed with the service.
+   */
+  public DistributedLockServiceImpl(final LockStore lockStore,
+                                    final DistributedLockTimeOutOptions distributedLockTimeOutOptions,
+                                    final DistributedLockServiceConfig distributedLockServiceConfig) {
+    this(lockStore, distributedLockTimeOutOptions, distributedLockServiceConfig, false);
+  }
+
+  private DistributedLockServiceImpl(final LockStore lockStore,
+                                     final DistributedLockTimeOutOptions distributedLockTimeOutOptions,
+                                     final DistributedLockServiceConfig distributedLockServiceConfig,
+                                     final boolean ownsLockStore) {
+    this.lockStore = lockStore;
+    this.ownsLockStore = ownsLockStore;
+    this.lockMetrics = lockStore.getMetrics();
     this.distributedLockTimeOutOptions = distributedLockTimeOutOptions;
     this.distributedLockServiceConfig = distributedLockServiceConfig;
+    this.remoteHolderCache = new RemoteHolderCache(distributedLockServiceConfig);
+
+    final long heartbeatFrequency = distributedLockServiceConfig.getHeartbeatFrequency();
+    heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "mongo-lock-heartbeat");
+      thread.setDaemon(true);
+      return thread;
+    });
+    heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, heartbeatFrequency, heartbeatFrequency, TimeUnit.MILLISECONDS);
+
+    if (distributedLockServiceConfig.isReleaseOnShutdown()) {
+      shutdownHook = new Thread(this::releaseAllQuietly, "mongo-lock-shutdown");
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+    } else {
+      shutdownHook = null;
+    }
   }
 
 
   @Override
   public boolean tryLock(final String key) {
-    return tryDistributedLock(key);
+    return tryHold(key).isPresent();
+  }
+
+  @Override
+  public boolean tryLockAll(final Collection<String> keys) {
+    final List<String> entered = new ArrayList<>();
+    for (final String key : new TreeSet<>(keys)) {
+      if (!localLockArbiter.tryEnter(key)) {
+        entered.forEach(localLockArbiter::exit);
+        return false;
+      }
+      entered.add(key);
+    }
+
+    final long attemptStart = System.nanoTime();
+    final Optional<Map<String, DistributedLock>> distributedLocks;
+    try {
+      distributedLocks = lockStore.lockAll(entered, distributedLockTimeOutOptions);
+    } catch (final RuntimeException e) {
+      entered.forEach(localLockArbiter::exit);
+      throw e;
+    }
+
+    if (!distributedLocks.isPresent()) {
+      entered.forEach(localLockArbiter::exit);
+      return false;
+    }
+
+    distributedLocks.get().forEach((key, distributedLock) -> hold(key, distributedLock, attemptStart));
+    lockMetrics.recordHeldLocks(distributedLocks.get().size());
+    return true;
+  }
+
+  @Override
+  public boolean lock(final String key, final long timeout, final TimeUnit unit) throws InterruptedException {
+    return awaitHold(key, timeout, unit).isPresent();
   }
 
   @Override
   public boolean releaseLock(final String key) {
+    final Hold hold = holds.get(key);
+    if (hold == null || hold.owner != Thread.currentThread()) return false;
+
     Optional<DistributedLock> distributedLock = Optional.ofNullable(currentLockedMap.get(key));
-    if (!distributedLock.isPresent() || !distributedLock.get().getLockedStatus().get()) {
+    if (!distributedLock.isPresent() || distributedLock.get() != hold.distributedLock
+            || !distributedLock.get().getLockedStatus().get()) {
       return false;
+    } else if (hold.count > 1) {
+      // A nested hold, the lock stays ours.
+      hold.count--;
+      return true;
     } else {
-      final Optional<ObjectId> lockId = LockDao.unlock(mongoClient, key, distributedLockServiceConfig, distributedLock.get().getLockedId());
-      if (!lockId.isPresent()) return false;
+      // Stop the heartbeat from renewing (or reporting as lost) a lock that is being released.
+      if (!distributedLock.get().getLockedStatus().compareAndSet(true, false)) return false;
+
+      final Optional<ObjectId> lockId = lockStore.unlock(key, distributedLock.get().getLockedId());
+      if (!lockId.isPresent()) {
+        distributedLock.get().getLockedStatus().set(true);
+        return false;
+      }
 
-      currentLockedMap.remove(key);
+      currentLockedMap.remove(key, distributedLock.get());
+      holds.remove(key, hold);
+      renewedAt.remove(distributedLock.get());
+      lockMetrics.recordHeldLocks(-1);
+      localLockArbiter.exit(key);
+      lockStore.getReleaseWatcher(key).signalRelease(key);
       return true;
     }
   }
 
+  @Override
+  public Optional<LockHandle> tryAcquire(final String key) {
+    return tryHold(key).map(distributedLock -> handle(key, distributedLock));
+  }
+
+  @Override
+  public Optional<LockHandle> acquire(final String key, final long timeout, final TimeUnit unit) throws InterruptedException {
+    return awaitHold(key, timeout, unit).map(distributedLock -> handle(key, distributedLock));
+  }
+
+  @Override
+  public boolean tryReadLock(final String key) {
+    while (true) {
+      final ReadLease readLease = readLeases.computeIfAbsent(key, k -> new ReadLease());
+      synchronized (readLease) {
+        // Released or lost since we looked it up, start over with a new one.
+        if (readLease.retired) continue;
+
+        if (readLease.holds > 0) {
+          readLease.holds++;
+          return true;
+        }
+
+        final long attemptStart = System.nanoTime();
+        Optional<DistributedLock> distributedLock = Optional.empty();
+        try {
+          distributedLock = lockStore.readLock(key, distributedLockTimeOutOptions);
+        } finally {
+          if (!distributedLock.isPresent()) retire(key, readLease);
+        }
+        if (!distributedLock.isPresent()) return false;
+
+        readLease.distributedLock = distributedLock.get();
+        readLease.holds = 1;
+        renewedAt.put(distributedLock.get(), attemptStart);
+        lockMetrics.recordHeldLocks(1);
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public boolean releaseReadLock(final String key) {
+    final ReadLease readLease = readLeases.get(key);
+    if (readLease == null) return false;
+
+    synchronized (readLease) {
+      if (readLease.holds == 0) return false;
+      if (readLease.holds > 1) {
+        readLease.holds--;
+        return true;
+      }
+
+      final DistributedLock distributedLock = readLease.distributedLock;
+      if (!distributedLock.getLockedStatus().compareAndSet(true, false)) return false;
+
+      if (!lockStore.readUnlock(key, distributedLock.getLockedId()).isPresent()) {
+        distributedLock.getLockedStatus().set(true);
+        return false;
+      }
+      retire(key, readLease);
+      lockMetrics.recordHeldLocks(-1);
+    }
+
+    lockStore.getReleaseWatcher(key).signalRelease(key);
+    return true;
+  }
+
+  @Override
+  public Optional<Long> getFencingToken(final String key) {
+    if (!isLocked(key)) return Optional.empty();
+    return Optional.ofNullable(currentLockedMap.get(key)).map(DistributedLock::getFencingToken);
+  }
+
   /**
-   * Try and lock the distributed lock.
+   * Releases all the locks held through this service with one update of the store (see
+   * {@link LockStore#unlockAll}), e.g. before a redeploy so other nodes don't wait for them to time out.
+   * Locks other services hold through the same store are left alone.
+   * Read locks are not released: their leases are no longer renewed once the service is closed.
+   * Returns the number of locks released.
    */
-  private boolean tryDistributedLock(final String key) {
-    if (isLocked(key)) return false;
+  public long releaseAll() {
+    final Map<String, DistributedLock> releasing = new HashMap<>();
+    currentLockedMap.forEach((key, distributedLock) -> {
+      // Stop the heartbeat from renewing (or reporting as lost) the locks being released.
+      if (distributedLock.getLockedStatus().compareAndSet(true, false)) releasing.put(key, distributedLock);
+    });
 
-    final Optional<ObjectId> lockId = LockDao.lock(mongoClient, key, distributedLockServiceConfig, distributedLockTimeOutOptions);
+    final Map<String, ObjectId> releasingIds = new HashMap<>();
+    releasing.forEach((key, distributedLock) -> releasingIds.put(key, distributedLock.getLockedId()));
 
-    if (!lockId.isPresent()) return false;
+    final long released;
+    try {
+      released = lockStore.unlockAll(releasingIds);
+    } catch (final RuntimeException e) {
+      releasing.values().forEach(distributedLock -> distributedLock.getLockedStatus().set(true));
+      throw e;
+    }
 
-    currentLockedMap.put(key, new DistributedLock(lockId.get(), new AtomicBoolean(true)));
-    return true;
+    releasing.forEach((key, distributedLock) -> {
+      currentLockedMap.remove(key, distributedLock);
+      drop(key, distributedLock);
+      renewedAt.remove(distributedLock);
+      localLockArbiter.exit(key);
+      lockStore.getReleaseWatcher(key).signalRelease(key);
+    });
+    lockMetrics.recordHeldLocks(-releasing.size());
+    return released;
+  }
+
+  /**
+   * Returns the metrics of the locks, see {@link LockMetrics#register} to publish them through JMX.
+   */
+  public LockMetrics getMetrics() {
+    return lockMetrics;
+  }
+
+  /**
+   * Registers a callback for locks whose lease could not be renewed.
+   */
+  public void addLockLostListener(final LockLostListener lockLostListener) {
+    lockLostListeners.add(lockLostListener);
+  }
+
+  /**
+   * Stops renewing the held locks. They are not released (see releaseAll) and will time out.
+   * A store the service created is closed too.
+   */
+  @Override
+  public void close() {
+    heartbeatExecutor.shutdownNow();
+    remoteHolderCache.close();
+    if (ownsLockStore) lockStore.close();
+    if (shutdownHook == null) return;
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (final IllegalStateException e) {
+      // Closed from a shutdown hook, ours runs anyway.
+    }
+  }
+
+  /**
+   * Takes a hold of the lock like tryLock, returning the lock held.
+   */
+  private Optional<DistributedLock> tryHold(final String key) {
+    final Optional<DistributedLock> reentered = reenter(key);
+    if (reentered.isPresent()) return reentered;
+
+    // Another local thread is contending for or holding the key, so its outcome is ours too.
+    if (!localLockArbiter.tryEnter(key)) return Optional.empty();
+
+    Optional<DistributedLock> distributedLock = Optional.empty();
+    try {
+      distributedLock = tryDistributedLock(key);
+      return distributedLock;
+    } finally {
+      if (!distributedLock.isPresent()) localLockArbiter.exit(key);
+    }
+  }
+
+  /**
+   * Takes a hold of the lock like lock, returning the lock held.
+   */
+  private Optional<DistributedLock> awaitHold(final String key, final long timeout, final TimeUnit unit)
+          throws InterruptedException {
+    final Optional<DistributedLock> reentered = reenter(key);
+    if (reentered.isPresent()) return reentered;
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+    // Queue behind the local threads contending for or holding the key, then contend in mongo.
+    if (!localLockArbiter.enter(key, timeout, unit)) return Optional.empty();
+
+    Optional<DistributedLock> distributedLock = Optional.empty();
+    try {
+      distributedLock = awaitDistributedLock(key, deadline);
+      return distributedLock;
+    } finally {
+      if (!distributedLock.isPresent()) localLockArbiter.exit(key);
+    }
+  }
+
+  /**
+   * Try and lock the distributed lock. With the holder cache on, keys known to be held by another
+   * node fail without a round trip.
+   */
+  private Optional<DistributedLock> tryDistributedLock(final String key) {
+    if (isLocked(key)) return Optional.empty();
+    if (remoteHolderCache.isEnabled() && remoteHolderCache.isHeld(key)) return Optional.empty();
+
+    final long releaseCount = remoteHolderCache.releaseCount(key);
+    final long attemptStart = System.nanoTime();
+    final Optional<DistributedLock> distributedLock = lockStore.lock(key, distributedLockTimeOutOptions);
+
+    if (!distributedLock.isPresent()) {
+      if (remoteHolderCache.isEnabled()) rememberHolder(key, releaseCount);
+      return distributedLock;
+    }
+
+    hold(key, distributedLock.get(), attemptStart);
+    lockMetrics.recordHeldLocks(1);
+    return distributedLock;
+  }
+
+  private void releaseAllQuietly() {
+    heartbeatExecutor.shutdownNow();
+    try {
+      releaseAll();
+    } catch (final RuntimeException e) {
+      // The locks will time out instead.
+    }
+  }
+
+  /**
+   * Remembers the holder of a key we failed to lock until its lease could have ended.
+   */
+  private void rememberHolder(final String key, final long releaseCount) {
+    try {
+      lockStore.getRemainingLease(key).ifPresent(remainingLease ->
+              remoteHolderCache.remember(key, remainingLease, releaseCount, lockStore.getReleaseWatcher(key)));
+    } catch (final RuntimeException e) {
+      // The attempt failed either way, the next one will look the holder up again.
+    }
+  }
+
+  /**
+   * Try and lock the distributed lock until the deadline (in nanoTime), waking up on releases.
+   */
+  private Optional<DistributedLock> awaitDistributedLock(final String key, final long deadline) throws InterruptedException {
+    if (distributedLockServiceConfig.isFairLocking()) return awaitDistributedLockInTurn(key, deadline);
+
+    final LockReleaseWatcher releaseWatcher = lockStore.getReleaseWatcher(key);
+
+    while (true) {
+      final CountDownLatch releaseSignal = releaseWatcher.releaseSignal(key);
+      final Optional<DistributedLock> distributedLock = tryDistributedLock(key);
+      if (distributedLock.isPresent()) return distributedLock;
+
+      final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) return distributedLock;
+
+      releaseWatcher.await(key, releaseSignal, remaining);
+    }
+  }
+
+  /**
+   * Waits for the lock in the ticket queue of the key until the deadline (in nanoTime). The ticket is
+   * renewed every ticketTimeout/3 ms, which is also how often the turn is checked when no release is
+   * seen: queue changes don't wake up waiters. A ticket that could not be renewed in time is lost and
+   * a new one is taken at the back of the queue.
+   */
+  private Optional<DistributedLock> awaitDistributedLockInTurn(final String key, final long deadline) throws InterruptedException {
+    final LockReleaseWatcher releaseWatcher = lockStore.getReleaseWatcher(key);
+    final long ticketTimeout = distributedLockServiceConfig.getTicketTimeout();
+
+    ObjectId ticketId = new ObjectId();
+    lockStore.takeTicket(key, ticketId, ticketTimeout);
+    boolean locked = false;
+    try {
+      while (true) {
+        final CountDownLatch releaseSignal = releaseWatcher.releaseSignal(key);
+        final long attemptStart = System.nanoTime();
+        final Optional<DistributedLock> distributedLock = lockStore.lockInTurn(key, ticketId, distributedLockTimeOutOptions);
+        if (distributedLock.isPresent()) {
+          hold(key, distributedLock.get(), attemptStart);
+          lockMetrics.recordHeldLocks(1);
+          locked = true;
+          return distributedLock;
+        }
+
+        final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) return distributedLock;
+
+        releaseWatcher.await(key, releaseSignal, Math.min(remaining, Math.max(1, ticketTimeout / 3)));
+        if (!lockStore.renewTicket(key, ticketId, ticketTimeout)) {
+          ticketId = new ObjectId();
+          lockStore.takeTicket(key, ticketId, ticketTimeout);
+        }
+      }
+    } finally {
+      if (!locked) returnTicketQuietly(key, ticketId);
+    }
+  }
+
+  private void returnTicketQuietly(final String key, final ObjectId ticketId) {
+    try {
+      lockStore.returnTicket(key, ticketId);
+    } catch (final RuntimeException e) {
+      // The ticket will time out instead.
+    }
+  }
+
+  /**
+   * Takes one more hold of a lock the current thread already has, without any I/O.
+   */
+  private Optional<DistributedLock> reenter(final String key) {
+    final Hold hold = holds.get(key);
+    if (hold == null || hold.owner != Thread.currentThread()) return Optional.empty();
+    if (!hold.distributedLock.getLockedStatus().get()) return Optional.empty();
+
+    hold.count++;
+    return Optional.of(hold.distributedLock);
+  }
+
+  /**
+   * Records a lock acquired by the current thread with an attempt started at attemptStart (in nanoTime).
+   */
+  private void hold(final String key, final DistributedLock distributedLock, final long attemptStart) {
+    renewedAt.put(distributedLock, attemptStart);
+    holds.put(key, new Hold(Thread.currentThread(), distributedLock));
+    currentLockedMap.put(key, distributedLock);
+  }
+
+  /**
+   * Forgets the holds of a lock released or lost without its owner.
+   */
+  private void drop(final String key, final DistributedLock distributedLock) {
+    holds.computeIfPresent(key, (k, hold) -> hold.distributedLock == distributedLock ? null : hold);
+  }
+
+  /**
+   * Returns the handle of the lock just held, which a heartbeat may already have dropped.
+   */
+  private LockHandle handle(final String key, final DistributedLock distributedLock) {
+    return new LockHandle(this, key, distributedLock.getFencingToken());
+  }
+
+  /**
+   * Drops the read lease of the key. Must be called holding the lease's monitor.
+   */
+  private void retire(final String key, final ReadLease readLease) {
+    if (readLease.distributedLock != null) renewedAt.remove(readLease.distributedLock);
+    readLease.retired = true;
+    readLease.holds = 0;
+    readLeases.remove(key, readLease);
   }
 
   /**
@@ -76,5 +533,121 @@ public class DistributedLockServiceImpl implements DistributedLockService {
     return isLockedByKey.isPresent() && isLockedByKey.get().getLockedStatus().get();
   }
 
+  /**
+   * Renews all held locks in one batch, and the read leases in another, and drops the ones that
+   * could not be renewed.
+   */
+  private void heartbeat() {
+    renewLocks();
+    renewReadLocks();
+  }
+
+  private void renewLocks() {
+    final Map<String, DistributedLock> heldLocks = new HashMap<>();
+    currentLockedMap.forEach((key, distributedLock) -> {
+      if (distributedLock.getLockedStatus().get()) heldLocks.put(key, distributedLock);
+    });
+    if (heldLocks.isEmpty()) return;
+
+    final Set<String> lostKeys = renew(heldLocks, lockStore::renew);
+    for (final String key : lostKeys) {
+      final DistributedLock distributedLock = heldLocks.get(key);
+      if (!distributedLock.getLockedStatus().compareAndSet(true, false)) continue;
+
+      currentLockedMap.remove(key, distributedLock);
+      drop(key, distributedLock);
+      renewedAt.remove(distributedLock);
+      localLockArbiter.exit(key);
+      notifyLockLost(key);
+    }
+  }
+
+  private void renewReadLocks() {
+    final Map<String, DistributedLock> heldLocks = new HashMap<>();
+    readLeases.forEach((key, readLease) -> {
+      final DistributedLock distributedLock = readLease.distributedLock;
+      if (distributedLock != null && distributedLock.getLockedStatus().get()) heldLocks.put(key, distributedLock);
+    });
+    if (heldLocks.isEmpty()) return;
+
+    final Set<String> lostKeys = renew(heldLocks, lockStore::readRenew);
+
+    for (final String key : lostKeys) {
+      final ReadLease readLease = readLeases.get(key);
+      if (readLease == null) continue;
+
+      synchronized (readLease) {
+        if (readLease.distributedLock != heldLocks.get(key)) continue;
+        if (!readLease.distributedLock.getLockedStatus().compareAndSet(true, false)) continue;
+        retire(key, readLease);
+      }
+      notifyLockLost(key);
+    }
+  }
+
+  /**
+   * Renews the leases with the store and returns the keys of the lost ones: the ones the store no
+   * longer has or, while the store can't be reached, the ones not renewed for inactiveLockTimeout ms,
+   * which another node may have taken over by now.
+   */
+  private Set<String> renew(final Map<String, DistributedLock> heldLocks,
+                            final BiFunction<Map<String, DistributedLock>, DistributedLockTimeOutOptions, Set<String>> storeRenew) {
+    final long renewStart = System.nanoTime();
+    final Set<String> lostKeys;
+    try {
+      lostKeys = storeRenew.apply(heldLocks, distributedLockTimeOutOptions);
+    } catch (final RuntimeException e) {
+      // The leases are still valid until they time out, try again on the next beat.
+      final long inactiveLockTimeout = TimeUnit.MILLISECONDS.toNanos(distributedLockTimeOutOptions.getInactiveLockTimeout());
+      final Set<String> expiredKeys = new HashSet<>();
+      heldLocks.forEach((key, distributedLock) -> {
+        final Long lastRenewal = renewedAt.get(distributedLock);
+        if (lastRenewal != null && renewStart - lastRenewal >= inactiveLockTimeout) expiredKeys.add(key);
+      });
+      return expiredKeys;
+    }
+
+    heldLocks.forEach((key, distributedLock) -> {
+      if (!lostKeys.contains(key)) renewedAt.replace(distributedLock, renewStart);
+    });
+    return lostKeys;
+  }
+
+  private void notifyLockLost(final String key) {
+    lockMetrics.recordHeldLocks(-1);
+    lockMetrics.recordLockLost();
+    for (final LockLostListener lockLostListener : lockLostListeners) {
+      try {
+        lockLostListener.onLockLost(key);
+      } catch (final RuntimeException e) {
+        // A failing listener must not stop the heartbeat.
+      }
+    }
+  }
+
+  /**
+   * The holds of a lock by the thread that acquired it. The count is only touched by the owner.
+   */
+  private static final class Hold {
+    private final Thread owner;
+    private final DistributedLock distributedLock;
+    private int count = 1;
+
+    private Hold(final Thread owner, final DistributedLock distributedLock) {
+      this.owner = owner;
+      this.distributedLock = distributedLock;
+    }
+  }
+
+  /**
+   * The read lease of a key, shared by the read locks of the service. Guarded by its monitor,
+   * except for the lease itself which the heartbeat reads.
+   */
+  private static final class ReadLease {
+    private volatile DistributedLock distributedLock;
+    private int holds;
+    private boolean retired;
+  }
+
 }
 
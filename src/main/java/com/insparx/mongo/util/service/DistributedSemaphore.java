@@ -0,0 +1,26 @@
+package com.insparx.mongo.util.service;
+
+/**
+ * Distributed counting semaphore which bounds the concurrent use of a resource across a cluster.
+ */
+public interface DistributedSemaphore {
+
+  /**
+   * Try to acquire permits of a semaphore. If fewer than the permits are left, none is acquired and false is returned.
+   *
+   * @param key        semaphore key
+   * @param permits    the number of permits to acquire
+   * @param maxPermits the number of permits of the semaphore, over all holders
+   * @return true on success (permits are acquired), false on failure (not enough permits are left)
+   */
+  boolean tryAcquire(String key, int permits, int maxPermits);
+
+  /**
+   * Release permits of a semaphore. If fewer than the permits are acquired, none is released and false is returned.
+   *
+   * @param key     semaphore key
+   * @param permits the number of permits to release
+   * @return true on success (acquired permits are released), false on failure (permits are not acquired)
+   */
+  boolean release(String key, int permits);
+}
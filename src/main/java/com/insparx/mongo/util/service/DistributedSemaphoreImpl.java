@@ -0,0 +1,221 @@
+package com.insparx.mongo.util.service;
+
+import com.insparx.mongo.util.dao.LockDao;
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.mongodb.MongoClient;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The distributed semaphore object. The permits of a key acquired through this object are held
+ * by one lease on the semaphore document, which a heartbeat thread renews every heartbeatFrequency
+ * ms. If the node dies the lease expires and its permits go back to the semaphore. If the node is cut
+ * off from mongo, leases not renewed for inactiveLockTimeout ms are reported lost.
+ */
+public class DistributedSemaphoreImpl implements DistributedSemaphore, AutoCloseable {
+
+  private final LockDao lockDao;
+  private final DistributedLockTimeOutOptions distributedLockTimeOutOptions;
+  private final ConcurrentHashMap<String, Holder> holders = new ConcurrentHashMap<>();
+  // When each lease was last granted or renewed (nanoTime of the attempt start).
+  private final ConcurrentHashMap<DistributedLock, Long> renewedAt = new ConcurrentHashMap<>();
+  private final List<LockLostListener> lockLostListeners = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService heartbeatExecutor;
+
+
+  /**
+   * Construct the object with params.
+   */
+  DistributedSemaphoreImpl(final MongoClient mongoClient,
+                           final DistributedLockTimeOutOptions distributedLockTimeOutOptions,
+                           final DistributedLockServiceConfig distributedLockServiceConfig) {
+    this(new LockDao(mongoClient, distributedLockServiceConfig), distributedLockTimeOutOptions, distributedLockServiceConfig);
+  }
+
+  /**
+   * Construct the object on top of an existing dao.
+   */
+  DistributedSemaphoreImpl(final LockDao lockDao,
+                           final DistributedLockTimeOutOptions distributedLockTimeOutOptions,
+                           final DistributedLockServiceConfig distributedLockServiceConfig) {
+    this.lockDao = lockDao;
+    this.distributedLockTimeOutOptions = distributedLockTimeOutOptions;
+
+    final long heartbeatFrequency = distributedLockServiceConfig.getHeartbeatFrequency();
+    heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "mongo-semaphore-heartbeat");
+      thread.setDaemon(true);
+      return thread;
+    });
+    heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, heartbeatFrequency, heartbeatFrequency, TimeUnit.MILLISECONDS);
+  }
+
+
+  @Override
+  public boolean tryAcquire(final String key, final int permits, final int maxPermits) {
+    if (permits <= 0 || permits > maxPermits) {
+      throw new IllegalArgumentException("permits must be between 1 and maxPermits, got " + permits + " of " + maxPermits);
+    }
+
+    while (true) {
+      final Holder holder = holders.computeIfAbsent(key, k -> new Holder());
+      synchronized (holder) {
+        // Released or lost since we looked it up, start over with a new one.
+        if (holder.retired) continue;
+
+        if (holder.permits > 0) {
+          if (!lockDao.addPermits(key, holder.lease.getLockedId(), permits, maxPermits)) return false;
+          holder.permits += permits;
+          return true;
+        }
+
+        final long attemptStart = System.nanoTime();
+        Optional<DistributedLock> lease = Optional.empty();
+        try {
+          lease = lockDao.acquirePermits(key, permits, maxPermits, distributedLockTimeOutOptions);
+        } finally {
+          if (!lease.isPresent()) retire(key, holder);
+        }
+        if (!lease.isPresent()) return false;
+
+        renewedAt.put(lease.get(), attemptStart);
+        holder.lease = lease.get();
+        holder.permits = permits;
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public boolean release(final String key, final int permits) {
+    final Holder holder = holders.get(key);
+    if (holder == null) return false;
+
+    synchronized (holder) {
+      if (permits <= 0 || permits > holder.permits) return false;
+
+      if (permits < holder.permits) {
+        if (!lockDao.returnPermits(key, holder.lease.getLockedId(), permits)) return false;
+        holder.permits -= permits;
+        return true;
+      }
+
+      // Stop the heartbeat from renewing (or reporting as lost) a lease that is being released.
+      final DistributedLock lease = holder.lease;
+      if (!lease.getLockedStatus().compareAndSet(true, false)) return false;
+
+      if (!lockDao.releasePermits(key, lease.getLockedId()).isPresent()) {
+        lease.getLockedStatus().set(true);
+        return false;
+      }
+      retire(key, holder);
+      return true;
+    }
+  }
+
+  /**
+   * Registers a callback for semaphores whose lease could not be renewed, i.e. whose permits are lost.
+   */
+  public void addLockLostListener(final LockLostListener lockLostListener) {
+    lockLostListeners.add(lockLostListener);
+  }
+
+  /**
+   * Stops renewing the held permits. They are not released and will time out.
+   */
+  @Override
+  public void close() {
+    heartbeatExecutor.shutdownNow();
+  }
+
+  /**
+   * Drops the holder of the key. Must be called holding the holder's monitor.
+   */
+  private void retire(final String key, final Holder holder) {
+    holder.retired = true;
+    holder.permits = 0;
+    holders.remove(key, holder);
+    if (holder.lease != null) renewedAt.remove(holder.lease);
+  }
+
+  /**
+   * Renews all held leases in one batch and drops the ones that could not be renewed.
+   */
+  private void heartbeat() {
+    final Map<String, DistributedLock> heldLeases = new HashMap<>();
+    holders.forEach((key, holder) -> {
+      final DistributedLock lease = holder.lease;
+      if (lease != null && lease.getLockedStatus().get()) heldLeases.put(key, lease);
+    });
+    if (heldLeases.isEmpty()) return;
+
+    for (final String key : renew(heldLeases)) {
+      final Holder holder = holders.get(key);
+      if (holder == null) continue;
+
+      synchronized (holder) {
+        if (holder.lease != heldLeases.get(key)) continue;
+        if (!holder.lease.getLockedStatus().compareAndSet(true, false)) continue;
+        retire(key, holder);
+      }
+      for (final LockLostListener lockLostListener : lockLostListeners) {
+        try {
+          lockLostListener.onLockLost(key);
+        } catch (final RuntimeException e) {
+          // A failing listener must not stop the heartbeat.
+        }
+      }
+    }
+  }
+
+  /**
+   * Renews the leases and returns the keys of the lost ones: the ones the semaphore no longer has
+   * or, while mongo can't be reached, the ones not renewed for inactiveLockTimeout ms, whose permits
+   * other nodes may have taken by now.
+   */
+  private Set<String> renew(final Map<String, DistributedLock> heldLeases) {
+    final long renewStart = System.nanoTime();
+    final Set<String> lostKeys;
+    try {
+      lostKeys = lockDao.renewPermits(heldLeases, distributedLockTimeOutOptions);
+    } catch (final RuntimeException e) {
+      // The leases are still valid until they time out, try again on the next beat.
+      final long inactiveLockTimeout = TimeUnit.MILLISECONDS.toNanos(distributedLockTimeOutOptions.getInactiveLockTimeout());
+      final Set<String> expiredKeys = new HashSet<>();
+      heldLeases.forEach((key, lease) -> {
+        final Long lastRenewal = renewedAt.get(lease);
+        if (lastRenewal != null && renewStart - lastRenewal >= inactiveLockTimeout) expiredKeys.add(key);
+      });
+      return expiredKeys;
+    }
+
+    heldLeases.forEach((key, lease) -> {
+      if (!lostKeys.contains(key)) renewedAt.replace(lease, renewStart);
+    });
+    return lostKeys;
+  }
+
+  /**
+   * The lease holding the permits of a key. Guarded by its monitor, except for the lease itself
+   * which the heartbeat reads.
+   */
+  private static final class Holder {
+    private volatile DistributedLock lease;
+    private int permits;
+    private boolean retired;
+  }
+
+}
@@ -0,0 +1,41 @@
+package com.insparx.mongo.util.service;
+
+import java.util.Optional;
+
+/**
+ * Elects one leader among the nodes campaigning for the same election key.
+ */
+public interface LeaderElection extends AutoCloseable {
+
+  /**
+   * Start campaigning. The listeners are told when this node is elected and when it is revoked.
+   */
+  void start();
+
+  /**
+   * Returns true if this node currently holds the leader lease.
+   *
+   * @return true if this node is the leader
+   */
+  boolean isLeader();
+
+  /**
+   * Get the fencing token of the leader lease held by this node.
+   *
+   * @return the fencing token, or empty if this node is not the leader
+   */
+  Optional<Long> getFencingToken();
+
+  /**
+   * Give up the leadership, if held, and let another node take over. The listeners are told on the
+   * calling thread before the lease is released. This node campaigns again once the others had a
+   * lease time to do so.
+   */
+  void stepDown();
+
+  /**
+   * Stop campaigning and give up the leadership, if held.
+   */
+  @Override
+  void close();
+}
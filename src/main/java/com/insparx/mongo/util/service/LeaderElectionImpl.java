@@ -0,0 +1,257 @@
+package com.insparx.mongo.util.service;
+
+import com.insparx.mongo.util.dao.LockDao;
+import com.insparx.mongo.util.dao.LockStore;
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.mongodb.MongoClient;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * The leader election object. The leader is the holder of the lock of the election key, whose lease
+ * it renews every heartbeatFrequency ms. It is revoked as soon as a renewal finds the lease lost, or
+ * once no renewal went through for inactiveLockTimeout ms, since another node may have taken over by then.
+ * <p>
+ * Followers don't poll the leader: after a failed attempt they read the leader's remaining lease (its
+ * lockTimeoutTime) and only try again once it ran out, or as soon as the release watcher sees the key
+ * released. A leader that dies is thus replaced within a lease time, and one that steps down right away.
+ * Stores that can't tell the remaining lease are tried again every heartbeatFrequency ms.
+ * <p>
+ * The election runs on its own thread, which also calls the listeners, except that stepDown and
+ * close call onRevoked on the caller's thread: the lease is only released once the listeners
+ * returned, so they stop acting as the leader before another node can be elected.
+ */
+public class LeaderElectionImpl implements LeaderElection {
+
+  private final LockStore lockStore;
+  private final String key;
+  private final DistributedLockTimeOutOptions distributedLockTimeOutOptions;
+  private final long heartbeatFrequency;
+  private final List<LeadershipListener> leadershipListeners = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService electionExecutor;
+  private final Consumer<String> releaseListener = this::onRelease;
+  // The lease while this node leads, and until when (in nanoTime) it is certainly still ours.
+  private volatile DistributedLock leaderLease;
+  private volatile long leaseDeadline;
+  // Guarded by this.
+  private long campaignAfter;
+  private ScheduledFuture<?> nextRun;
+  private boolean started;
+  private boolean closed;
+
+
+  /**
+   * Construct the object with params.
+   */
+  LeaderElectionImpl(final MongoClient mongoClient,
+                     final String key,
+                     final DistributedLockTimeOutOptions distributedLockTimeOutOptions,
+                     final DistributedLockServiceConfig distributedLockServiceConfig) {
+    this(new LockDao(mongoClient, distributedLockServiceConfig), key, distributedLockTimeOutOptions, distributedLockServiceConfig);
+  }
+
+  /**
+   * Construct the object on top of a lock store. The election key must not be locked by other means.
+   */
+  public LeaderElectionImpl(final LockStore lockStore,
+                            final String key,
+                            final DistributedLockTimeOutOptions distributedLockTimeOutOptions,
+                            final DistributedLockServiceConfig distributedLockServiceConfig) {
+    this.lockStore = lockStore;
+    this.key = key;
+    this.distributedLockTimeOutOptions = distributedLockTimeOutOptions;
+    this.heartbeatFrequency = distributedLockServiceConfig.getHeartbeatFrequency();
+
+    electionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "mongo-leader-election");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+
+  @Override
+  public synchronized void start() {
+    if (closed) throw new IllegalStateException("The election of " + key + " is closed");
+    if (started) return;
+
+    started = true;
+    lockStore.getReleaseWatcher(key).addReleaseListener(releaseListener);
+    schedule(0);
+  }
+
+  @Override
+  public boolean isLeader() {
+    return leaderLease != null && leaseDeadline - System.nanoTime() > 0;
+  }
+
+  @Override
+  public Optional<Long> getFencingToken() {
+    final DistributedLock lease = leaderLease;
+    if (lease == null || leaseDeadline - System.nanoTime() <= 0) return Optional.empty();
+    return Optional.of(lease.getFencingToken());
+  }
+
+  @Override
+  public synchronized void stepDown() {
+    final DistributedLock lease = leaderLease;
+    if (lease == null) return;
+
+    // The listeners stop acting as the leader before anyone else can be elected.
+    revoke();
+    campaignAfter = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(distributedLockTimeOutOptions.getInactiveLockTimeout());
+    try {
+      if (lockStore.unlock(key, lease.getLockedId()).isPresent()) lockStore.getReleaseWatcher(key).signalRelease(key);
+    } catch (final RuntimeException e) {
+      // The lease will time out instead.
+    }
+    if (!closed) schedule(distributedLockTimeOutOptions.getInactiveLockTimeout());
+  }
+
+  /**
+   * Registers a callback for the changes of leadership of this node.
+   */
+  public void addLeadershipListener(final LeadershipListener leadershipListener) {
+    leadershipListeners.add(leadershipListener);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (closed) return;
+
+    closed = true;
+    if (started) lockStore.getReleaseWatcher(key).removeReleaseListener(releaseListener);
+    stepDown();
+    if (nextRun != null) nextRun.cancel(false);
+    electionExecutor.shutdown();
+  }
+
+  /**
+   * Renews the lease of the leader, or campaigns for it, and schedules the next run.
+   */
+  private synchronized void run() {
+    if (closed) return;
+    schedule(leaderLease != null ? renew() : campaign());
+  }
+
+  /**
+   * Try and renew the leader lease, and returns when to run next (in ms).
+   */
+  private long renew() {
+    final long renewStart = System.nanoTime();
+    final Set<String> lostKeys;
+    try {
+      lostKeys = lockStore.renew(Collections.singletonMap(key, leaderLease), distributedLockTimeOutOptions);
+    } catch (final RuntimeException e) {
+      // Still the leader until the lease could have been taken over, try again until then.
+      final long remaining = TimeUnit.NANOSECONDS.toMillis(leaseDeadline - System.nanoTime());
+      if (remaining > 0) return Math.min(heartbeatFrequency, remaining);
+
+      revoke();
+      return heartbeatFrequency;
+    }
+
+    if (lostKeys.contains(key)) {
+      revoke();
+      return 0;
+    }
+    leaseDeadline = renewStart + TimeUnit.MILLISECONDS.toNanos(distributedLockTimeOutOptions.getInactiveLockTimeout());
+    return heartbeatFrequency;
+  }
+
+  /**
+   * Try and get the leader lease, and returns when to run next (in ms): at once if the lease was
+   * released meanwhile, otherwise when the current leader's lease runs out.
+   */
+  private long campaign() {
+    final long backOff = campaignAfter - System.nanoTime();
+    if (backOff > 0) return TimeUnit.NANOSECONDS.toMillis(backOff) + 1;
+
+    final long attemptStart = System.nanoTime();
+    final Optional<DistributedLock> lease;
+    try {
+      lease = lockStore.lock(key, distributedLockTimeOutOptions);
+    } catch (final RuntimeException e) {
+      return heartbeatFrequency;
+    }
+
+    if (lease.isPresent()) {
+      leaseDeadline = attemptStart + TimeUnit.MILLISECONDS.toNanos(distributedLockTimeOutOptions.getInactiveLockTimeout());
+      leaderLease = lease.get();
+      notifyElected(lease.get().getFencingToken());
+      return heartbeatFrequency;
+    }
+
+    try {
+      return lockStore.getRemainingLease(key)
+              .map(remainingLease -> Math.max(1, Math.min(remainingLease, distributedLockTimeOutOptions.getInactiveLockTimeout()) + 1))
+              .orElse(heartbeatFrequency);
+    } catch (final RuntimeException e) {
+      return heartbeatFrequency;
+    }
+  }
+
+  /**
+   * Campaigns right away when the leader released the key. Called from whichever thread saw the
+   * release, so the election thread takes it from there without holding up that thread.
+   */
+  private void onRelease(final String releasedKey) {
+    if (!key.equals(releasedKey)) return;
+    try {
+      electionExecutor.execute(this::campaignNow);
+    } catch (final RejectedExecutionException e) {
+      // Closed.
+    }
+  }
+
+  private synchronized void campaignNow() {
+    if (closed || leaderLease != null || campaignAfter - System.nanoTime() > 0) return;
+    schedule(0);
+  }
+
+  /**
+   * Replaces the pending run, if any, with one in delay ms. Must be called holding this monitor.
+   */
+  private void schedule(final long delay) {
+    if (nextRun != null) nextRun.cancel(false);
+    nextRun = electionExecutor.schedule(this::run, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Drops the leader lease and tells the listeners. Must be called holding this monitor.
+   */
+  private void revoke() {
+    leaderLease.getLockedStatus().set(false);
+    leaderLease = null;
+    for (final LeadershipListener leadershipListener : leadershipListeners) {
+      try {
+        leadershipListener.onRevoked();
+      } catch (final RuntimeException e) {
+        // A failing listener must not stop the election.
+      }
+    }
+  }
+
+  private void notifyElected(final long fencingToken) {
+    for (final LeadershipListener leadershipListener : leadershipListeners) {
+      try {
+        leadershipListener.onElected(fencingToken);
+      } catch (final RuntimeException e) {
+        // A failing listener must not stop the election.
+      }
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package com.insparx.mongo.util.service;
+
+
+/**
+ * Callback for the changes of leadership of a {@link LeaderElection}.
+ */
+public interface LeadershipListener {
+
+  /**
+   * Called from the election thread once this node is the leader.
+   *
+   * @param fencingToken the fencing token of the leader lease, to pass to the resources the leader writes to
+   */
+  void onElected(long fencingToken);
+
+  /**
+   * Called once this node is no longer the leader, because its lease was lost or it stepped down. The
+   * node must stop acting as the leader. A lost lease is reported from the election thread, a step
+   * down (or close) from the thread stepping down, before the lease is released.
+   */
+  void onRevoked();
+}
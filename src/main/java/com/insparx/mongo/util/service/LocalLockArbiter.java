@@ -0,0 +1,69 @@
+package com.insparx.mongo.util.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Local arbitration of lock keys. Only the thread that entered a key contends for it in mongo,
+ * and it keeps the key entered while the lock is held; other threads of the JVM fail fast or
+ * queue (in FIFO order) on the key without doing any I/O.
+ */
+final class LocalLockArbiter {
+
+  private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+
+  /**
+   * Enters the key if no other local thread has, without waiting.
+   */
+  boolean tryEnter(final String key) {
+    final Slot slot = retain(key);
+    if (slot.permit.tryAcquire()) return true;
+
+    release(key);
+    return false;
+  }
+
+  /**
+   * Enters the key, waiting up to the timeout for the local thread that entered it to exit.
+   */
+  boolean enter(final String key, final long timeout, final TimeUnit unit) throws InterruptedException {
+    final Slot slot = retain(key);
+    boolean entered = false;
+    try {
+      entered = slot.permit.tryAcquire(timeout, unit);
+      return entered;
+    } finally {
+      if (!entered) release(key);
+    }
+  }
+
+  /**
+   * Exits a key entered before, letting the next local thread in.
+   */
+  void exit(final String key) {
+    slots.get(key).permit.release();
+    release(key);
+  }
+
+  private Slot retain(final String key) {
+    return slots.compute(key, (k, slot) -> {
+      final Slot retained = slot == null ? new Slot() : slot;
+      retained.users++;
+      return retained;
+    });
+  }
+
+  /**
+   * Drops the slot once no thread is inside or waiting, so idle keys don't accumulate.
+   */
+  private void release(final String key) {
+    slots.computeIfPresent(key, (k, slot) -> --slot.users == 0 ? null : slot);
+  }
+
+  private static final class Slot {
+    private final Semaphore permit = new Semaphore(1, true);
+    private int users;
+  }
+}
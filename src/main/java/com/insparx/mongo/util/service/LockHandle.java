@@ -0,0 +1,48 @@
+package com.insparx.mongo.util.service;
+
+
+/**
+ * A hold of a lock, see {@link DistributedLockService#tryAcquire}. Closing it releases the hold, so
+ * the lock can be used in a try-with-resources block. Like the lock, it must be closed by the thread
+ * that acquired it; closing it again does nothing.
+ */
+public final class LockHandle implements AutoCloseable {
+
+  private final DistributedLockService distributedLockService;
+  private final String key;
+  private final long fencingToken;
+  private boolean closed;
+
+  /**
+   * Construct the handle of a lock just acquired through the service.
+   */
+  LockHandle(final DistributedLockService distributedLockService, final String key, final long fencingToken) {
+    this.distributedLockService = distributedLockService;
+    this.key = key;
+    this.fencingToken = fencingToken;
+  }
+
+  /**
+   * Returns the key of the lock.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Returns the fencing token of the lock, see {@link DistributedLockService#getFencingToken}.
+   */
+  public long getFencingToken() {
+    return fencingToken;
+  }
+
+  /**
+   * Releases the hold. Only the release of the outermost hold of a reentrant lock goes to the store.
+   */
+  @Override
+  public void close() {
+    if (closed) return;
+    closed = true;
+    distributedLockService.releaseLock(key);
+  }
+}
@@ -0,0 +1,17 @@
+package com.insparx.mongo.util.service;
+
+
+/**
+ * Callback for holders whose lock lease could not be renewed, e.g. because it expired
+ * and was taken over by another client. The holder must stop relying on the lock.
+ */
+@FunctionalInterface
+public interface LockLostListener {
+
+  /**
+   * Called from the heartbeat thread once the lock with the provided key is no longer held.
+   *
+   * @param key lock key
+   */
+  void onLockLost(String key);
+}
@@ -0,0 +1,116 @@
+package com.insparx.mongo.util.service;
+
+import com.insparx.mongo.util.dao.LockReleaseWatcher;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+
+/**
+ * Keys held by other nodes, until their lease could have ended. tryLock fails on them without any
+ * I/O. A remembered holder is forgotten when the release watcher reports a release of its key,
+ * when its lease deadline passes, or after holderCacheMaxStaleness ms, whichever comes first.
+ * <p>
+ * The cache keeps at most holderCacheSize keys: once full, expired keys are dropped first, then
+ * arbitrary ones.
+ */
+final class RemoteHolderCache {
+
+  private static final int STRIPES = 64;
+
+  private final int maxSize;
+  private final long maxStaleness;
+  // Deadlines in nanoTime.
+  private final ConcurrentHashMap<String, Long> heldUntil = new ConcurrentHashMap<>();
+  private final Set<LockReleaseWatcher> watchers = ConcurrentHashMap.newKeySet();
+  private final Consumer<String> releaseListener = this::forget;
+  // Releases seen per stripe of keys, so a release racing the lookup of a holder is not missed.
+  private final AtomicLongArray releases = new AtomicLongArray(STRIPES);
+
+  RemoteHolderCache(final DistributedLockServiceConfig distributedLockServiceConfig) {
+    this.maxSize = distributedLockServiceConfig.getHolderCacheSize();
+    this.maxStaleness = distributedLockServiceConfig.getHolderCacheMaxStaleness();
+  }
+
+  /**
+   * Returns true if the cache is on.
+   */
+  boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /**
+   * Returns true if another node is known to hold the key.
+   */
+  boolean isHeld(final String key) {
+    final Long until = heldUntil.get(key);
+    if (until == null) return false;
+    if (until - System.nanoTime() > 0) return true;
+
+    heldUntil.remove(key, until);
+    return false;
+  }
+
+  /**
+   * Returns the release count of the key's stripe. Take it before looking up the holder of the key.
+   */
+  long releaseCount(final String key) {
+    return releases.get(stripe(key));
+  }
+
+  /**
+   * Remembers that another node holds the key for the remaining lease (in ms), unless a release of
+   * the key may have been seen since the release count was taken.
+   */
+  void remember(final String key, final long remainingLease, final long releaseCount, final LockReleaseWatcher releaseWatcher) {
+    if (watchers.add(releaseWatcher)) releaseWatcher.addReleaseListener(releaseListener);
+
+    final long ttl = Math.min(remainingLease, maxStaleness);
+    if (ttl <= 0) return;
+    if (heldUntil.size() >= maxSize && !heldUntil.containsKey(key)) evict();
+
+    final Long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl);
+    heldUntil.put(key, until);
+    if (releases.get(stripe(key)) != releaseCount) heldUntil.remove(key, until);
+  }
+
+  /**
+   * Stops listening to the release watchers, which outlive the cache.
+   */
+  void close() {
+    watchers.forEach(watcher -> watcher.removeReleaseListener(releaseListener));
+    watchers.clear();
+  }
+
+  /**
+   * Forgets the holder of a released key.
+   */
+  void forget(final String key) {
+    releases.incrementAndGet(stripe(key));
+    heldUntil.remove(key);
+  }
+
+  /**
+   * Drops the expired keys and, if that is not enough, arbitrary ones down to three quarters of the
+   * size, so a full cache doesn't scan on every insert.
+   */
+  private void evict() {
+    final long now = System.nanoTime();
+    heldUntil.values().removeIf(until -> until - now <= 0);
+
+    final Iterator<String> keys = heldUntil.keySet().iterator();
+    while (heldUntil.size() > maxSize * 3 / 4 && keys.hasNext()) {
+      keys.next();
+      keys.remove();
+    }
+  }
+
+  private static int stripe(final String key) {
+    return (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+  }
+}
@@ -0,0 +1,162 @@
+package com.insparx.mongo.util.dao;
+
+
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.async.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+
+public class AsyncLockDaoTest {
+
+  @Mock
+  private MongoClient mongoClient;
+
+  @Mock
+  private MongoDatabase database;
+
+  @Mock
+  private MongoCollection<Document> collection;
+
+  private final DistributedLockTimeOutOptions distributedLockTimeOutOptions = new DistributedLockTimeOutOptions();
+  private AsyncLockDao asyncLockDao;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    when(mongoClient.getDatabase(anyString())).thenReturn(database);
+    when(database.getCollection(anyString())).thenReturn(collection);
+    when(collection.withCodecRegistry(any())).thenReturn(collection);
+    when(collection.withWriteConcern(any(WriteConcern.class))).thenReturn(collection);
+    doAnswer(invocation -> {
+      invocation.<SingleResultCallback<Document>>getArgument(1).onResult(new Document("localTime", new Date()), null);
+      return null;
+    }).when(database).runCommand(any(Bson.class), any());
+
+    asyncLockDao = new AsyncLockDao(mongoClient, new DistributedLockServiceConfig("mongodb://localhost"));
+  }
+
+  @Test
+  public void shouldAcquireAFreeLock() throws Exception {
+
+    //GIVEN
+    answerAcquire(new Document(LockDef.FENCING_TOKEN.lockField, 3L), null);
+
+    //WHEN
+    Optional<DistributedLock> lock = asyncLockDao.lock("test", distributedLockTimeOutOptions).get(1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(lock).isPresent();
+    assertThat(lock.get().getFencingToken()).isEqualTo(3);
+  }
+
+  @Test
+  public void shouldNotAcquireALockHeldByAnotherNode() throws Exception {
+
+    //GIVEN
+    answerAcquire(null, new MongoException(BaseDao.DUPLICATE_KEY_ERROR, "E11000 duplicate key error"));
+
+    //WHEN
+    Optional<DistributedLock> lock = asyncLockDao.lock("test", distributedLockTimeOutOptions).get(1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(lock).isEmpty();
+  }
+
+  @Test
+  public void shouldReleaseOnlyAHeldLock() throws Exception {
+
+    //GIVEN
+    ObjectId lockId = new ObjectId();
+    answerRelease(UpdateResult.acknowledged(1, 1L, null), null);
+
+    //WHEN
+    Optional<ObjectId> released = asyncLockDao.unlock("test", lockId).get(1, TimeUnit.SECONDS);
+    answerRelease(UpdateResult.acknowledged(0, 0L, null), null);
+    Optional<ObjectId> releasedAgain = asyncLockDao.unlock("test", lockId).get(1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(released).contains(lockId);
+    assertThat(releasedAgain).isEmpty();
+  }
+
+  @Test
+  public void shouldFailTheReleaseWhenTheDriverFails() throws Exception {
+
+    //GIVEN
+    answerRelease(null, new MongoException("mongo is unreachable"));
+
+    //WHEN
+    CompletableFuture<Optional<ObjectId>> released = asyncLockDao.unlock("test", new ObjectId());
+
+    //THEN
+    assertThatThrownBy(() -> released.get(1, TimeUnit.SECONDS))
+            .isInstanceOf(ExecutionException.class)
+            .hasCauseInstanceOf(MongoException.class);
+  }
+
+  @Test
+  public void shouldNotBlockTheCallerOnTheFirstClockSample() throws Exception {
+
+    //GIVEN
+    List<SingleResultCallback<Document>> pendingSamples = new CopyOnWriteArrayList<>();
+    doAnswer(invocation -> {
+      pendingSamples.add(invocation.getArgument(1));
+      return null;
+    }).when(database).runCommand(any(Bson.class), any());
+    answerAcquire(new Document(LockDef.FENCING_TOKEN.lockField, 1L), null);
+
+    //WHEN
+    CompletableFuture<Optional<DistributedLock>> lock = asyncLockDao.lock("test", distributedLockTimeOutOptions);
+    boolean isDoneBeforeTheSample = lock.isDone();
+    while (pendingSamples.isEmpty()) Thread.sleep(1);
+    pendingSamples.get(0).onResult(new Document("localTime", new Date()), null);
+
+    //THEN
+    assertThat(isDoneBeforeTheSample).isFalse();
+    assertThat(lock.get(1, TimeUnit.SECONDS)).isPresent();
+  }
+
+  private void answerAcquire(final Document lockDoc, final Throwable failure) {
+    doAnswer(invocation -> {
+      invocation.<SingleResultCallback<Document>>getArgument(3).onResult(lockDoc, failure);
+      return null;
+    }).when(collection).findOneAndUpdate(any(Bson.class), any(Bson.class), any(FindOneAndUpdateOptions.class), any());
+  }
+
+  private void answerRelease(final UpdateResult updateResult, final Throwable failure) {
+    doAnswer(invocation -> {
+      invocation.<SingleResultCallback<UpdateResult>>getArgument(2).onResult(updateResult, failure);
+      return null;
+    }).when(collection).updateOne(any(Bson.class), any(Bson.class), any());
+  }
+}
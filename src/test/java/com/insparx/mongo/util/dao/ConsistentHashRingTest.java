@@ -0,0 +1,55 @@
+package com.insparx.mongo.util.dao;
+
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class ConsistentHashRingTest {
+
+  private static final int KEYS = 10000;
+
+  @Test
+  public void shouldPlaceKeysTheSameWayOnEveryRing() {
+
+    //GIVEN
+    ConsistentHashRing<String> ring = new ConsistentHashRing<>(nodes("a", "b", "c"), 128);
+
+    //WHEN
+    ConsistentHashRing<String> otherRing = new ConsistentHashRing<>(nodes("c", "b", "a"), 128);
+
+    //THEN
+    for (int idx = 0; idx < KEYS; idx++) assertThat(otherRing.get("key-" + idx)).isEqualTo(ring.get("key-" + idx));
+  }
+
+  @Test
+  public void shouldOnlyMoveKeysToAnAddedNode() {
+
+    //GIVEN
+    ConsistentHashRing<String> ring = new ConsistentHashRing<>(nodes("a", "b", "c"), 128);
+
+    //WHEN
+    ConsistentHashRing<String> newRing = ring.with("d", "d");
+
+    //THEN
+    int moved = 0;
+    for (int idx = 0; idx < KEYS; idx++) {
+      String node = newRing.get("key-" + idx);
+      if (!node.equals(ring.get("key-" + idx))) {
+        assertThat(node).isEqualTo("d");
+        moved++;
+      }
+    }
+    assertThat(moved).isBetween(KEYS / 5, KEYS * 3 / 10);
+  }
+
+  private static Map<String, String> nodes(final String... names) {
+    final Map<String, String> nodes = new HashMap<>();
+    for (String name : names) nodes.put(name, name);
+    return nodes;
+  }
+}
@@ -0,0 +1,39 @@
+package com.insparx.mongo.util.dao;
+
+
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class InMemoryLockStoreTest extends LockStoreConformanceTest {
+
+  @Override
+  protected LockStore newLockStore() {
+    return new InMemoryLockStore(new DistributedLockServiceConfig("mongodb://localhost"));
+  }
+
+  @Test
+  public void shouldDropTheEntriesOfExpiredLocksOnRenewal() throws Exception {
+
+    //GIVEN
+    InMemoryLockStore lockStore = (InMemoryLockStore) newLockStore();
+    DistributedLockTimeOutOptions shortTimeOutOptions = new DistributedLockTimeOutOptions();
+    shortTimeOutOptions.setInactiveLockTimeout(10);
+    lockStore.lock("expired", shortTimeOutOptions);
+    lockStore.readLock("expiredRead", shortTimeOutOptions);
+    lockStore.lock("live", new DistributedLockTimeOutOptions());
+    Thread.sleep(50);
+
+    //WHEN
+    lockStore.renew(Collections.emptyMap(), new DistributedLockTimeOutOptions());
+
+    //THEN
+    assertThat(lockStore.size()).isEqualTo(1);
+    assertThat(lockStore.lock("expired", new DistributedLockTimeOutOptions())).isPresent();
+  }
+}
@@ -0,0 +1,156 @@
+package com.insparx.mongo.util.dao;
+
+
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoException;
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+
+public class LockAttemptCounterTest {
+
+  private final List<List<UpdateOneModel<Document>>> flushes = new ArrayList<>();
+  private DistributedLockServiceConfig distributedLockServiceConfig;
+  private boolean failFlush;
+
+  @Before
+  public void setUp() {
+    distributedLockServiceConfig = new DistributedLockServiceConfig("mongodb://localhost");
+    // Flushed by the tests only.
+    distributedLockServiceConfig.setAttemptCountFlushFrequency(3600000);
+  }
+
+  @Test
+  public void shouldWriteTheCountsOfAllKeysWithOneBulkWrite() {
+
+    //GIVEN
+    LockAttemptCounter lockAttemptCounter = newLockAttemptCounter();
+    lockAttemptCounter.record("a");
+    lockAttemptCounter.record("a");
+    lockAttemptCounter.record("a");
+    lockAttemptCounter.record("b");
+
+    //WHEN
+    lockAttemptCounter.flush();
+    lockAttemptCounter.flush();
+
+    //THEN
+    assertThat(flushes).hasSize(1);
+    assertThat(countsOf(flushes.get(0))).containsEntry("a", 3L).containsEntry("b", 1L).hasSize(2);
+  }
+
+  @Test
+  public void shouldRetryTheCountsOfAFailedFlush() {
+
+    //GIVEN
+    LockAttemptCounter lockAttemptCounter = newLockAttemptCounter();
+    lockAttemptCounter.record("a");
+    failFlush = true;
+    assertThatThrownBy(lockAttemptCounter::flush).isInstanceOf(MongoException.class);
+
+    //WHEN
+    failFlush = false;
+    lockAttemptCounter.record("a");
+    lockAttemptCounter.flush();
+
+    //THEN
+    assertThat(flushes).hasSize(1);
+    assertThat(countsOf(flushes.get(0))).containsEntry("a", 2L).hasSize(1);
+  }
+
+  @Test
+  public void shouldDropCountsOlderThanTheMaxStaleness() {
+
+    //GIVEN
+    distributedLockServiceConfig.setAttemptCountMaxStaleness(0);
+    LockAttemptCounter lockAttemptCounter = newLockAttemptCounter();
+    lockAttemptCounter.record("a");
+    failFlush = true;
+    assertThatThrownBy(lockAttemptCounter::flush).isInstanceOf(MongoException.class);
+
+    //WHEN
+    failFlush = false;
+    lockAttemptCounter.flush();
+
+    //THEN
+    assertThat(flushes).isEmpty();
+  }
+
+  @Test
+  public void shouldWriteThePendingCountsWhenClosed() {
+
+    //GIVEN
+    LockAttemptCounter lockAttemptCounter = newLockAttemptCounter();
+    lockAttemptCounter.record("a");
+
+    //WHEN
+    lockAttemptCounter.close();
+
+    //THEN
+    assertThat(flushes).hasSize(1);
+    assertThat(countsOf(flushes.get(0))).containsEntry("a", 1L).hasSize(1);
+  }
+
+  @Test
+  public void shouldWriteEveryAttemptWithoutAFlushFrequency() {
+
+    //GIVEN
+    distributedLockServiceConfig.setAttemptCountFlushFrequency(0);
+    LockAttemptCounter lockAttemptCounter = newLockAttemptCounter();
+
+    //WHEN
+    lockAttemptCounter.record("a");
+    lockAttemptCounter.record("a");
+
+    //THEN
+    assertThat(flushes).hasSize(2);
+  }
+
+  @Test
+  public void shouldPushTheWriterPreferenceWindowAboutTwicePerWindow() {
+
+    //GIVEN
+    LockAttemptCounter lockAttemptCounter = newLockAttemptCounter();
+    long window = distributedLockServiceConfig.getWriterPreferenceWindow();
+
+    //WHEN
+    boolean first = lockAttemptCounter.claimWriterPreference("a", 1000 + window);
+    boolean withinHalfWindow = lockAttemptCounter.claimWriterPreference("a", 1000 + window + window / 4);
+    boolean otherKey = lockAttemptCounter.claimWriterPreference("b", 1000 + window);
+    boolean afterHalfWindow = lockAttemptCounter.claimWriterPreference("a", 1000 + window + window / 2);
+
+    //THEN
+    assertThat(first).isTrue();
+    assertThat(withinHalfWindow).isFalse();
+    assertThat(otherKey).isTrue();
+    assertThat(afterHalfWindow).isTrue();
+  }
+
+  private LockAttemptCounter newLockAttemptCounter() {
+    return new LockAttemptCounter(distributedLockServiceConfig, updates -> {
+      if (failFlush) throw new MongoException("no primary");
+      flushes.add(updates);
+    });
+  }
+
+  private static Map<String, Long> countsOf(final List<UpdateOneModel<Document>> updates) {
+    final Map<String, Long> counts = new HashMap<>();
+    for (UpdateOneModel<Document> update : updates) {
+      final BasicDBObject increments = (BasicDBObject) ((BasicDBObject) update.getUpdate()).get(BaseDao.INC);
+      counts.put((String) ((BasicDBObject) update.getFilter()).get(LockDef.ID.lockField),
+              (Long) increments.get(LockDef.LOCK_ATTEMPT_COUNT.lockField));
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,145 @@
+package com.insparx.mongo.util.dao;
+
+
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DurabilityProfile;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.MongoClient;
+import com.mongodb.ReadConcern;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.session.ClientSession;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class LockCollectionTest {
+
+  @Mock
+  private MongoClient mongoClient;
+
+  @Mock
+  private MongoCollection<Document> collection;
+
+  @Mock
+  private ClientSession clientSession;
+
+  private final Document filter = new Document("_id", "test");
+  private final Document update = new Document("$set", new Document("lockState", "unlocked"));
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    when(collection.withWriteConcern(any())).thenReturn(collection);
+    when(collection.withReadConcern(any())).thenReturn(collection);
+    when(collection.withReadPreference(any())).thenReturn(collection);
+    when(mongoClient.startSession(any(ClientSessionOptions.class))).thenReturn(clientSession);
+  }
+
+  @Test
+  public void shouldRunSafeOperationsInOneSessionPerOperationWithMajorityConcerns() {
+
+    //GIVEN
+    LockCollection lockCollection = new LockCollection(mongoClient, collection, DurabilityProfile.SAFE);
+
+    //WHEN
+    lockCollection.updateOne(filter, update);
+    lockCollection.updateOne(filter, update);
+
+    //THEN
+    verify(collection).withWriteConcern(WriteConcern.MAJORITY);
+    verify(collection).withReadConcern(ReadConcern.MAJORITY);
+    verify(mongoClient, times(2)).startSession(any(ClientSessionOptions.class));
+    verify(collection, times(2)).updateOne(clientSession, filter, update);
+    verify(clientSession, times(2)).close();
+  }
+
+  @Test
+  public void shouldStartEachSessionFromTheTimesOfTheLatestOperation() throws Exception {
+
+    //GIVEN
+    BsonTimestamp operationTime = new BsonTimestamp(1500000000, 1);
+    BsonDocument clusterTime = new BsonDocument("clusterTime", operationTime);
+    ClientSession otherClientSession = mock(ClientSession.class);
+    when(clientSession.getOperationTime()).thenReturn(operationTime);
+    when(clientSession.getClusterTime()).thenReturn(clusterTime);
+    when(mongoClient.startSession(any(ClientSessionOptions.class))).thenReturn(clientSession).thenReturn(otherClientSession);
+    LockCollection lockCollection = new LockCollection(mongoClient, collection, DurabilityProfile.SAFE);
+    lockCollection.updateOne(filter, update);
+
+    //WHEN
+    Thread otherThread = new Thread(() -> lockCollection.updateOne(filter, update));
+    otherThread.start();
+    otherThread.join();
+
+    //THEN
+    verify(clientSession, never()).advanceOperationTime(any());
+    verify(otherClientSession).advanceClusterTime(clusterTime);
+    verify(otherClientSession).advanceOperationTime(operationTime);
+    verify(collection).updateOne(otherClientSession, filter, update);
+    verify(otherClientSession).close();
+  }
+
+  @Test
+  public void shouldRunFastOperationsWithoutSessionAtW1() {
+
+    //GIVEN
+    LockCollection lockCollection = new LockCollection(mongoClient, collection, DurabilityProfile.FAST);
+
+    //WHEN
+    lockCollection.updateOne(filter, update);
+
+    //THEN
+    verify(collection).withWriteConcern(WriteConcern.W1);
+    verify(mongoClient, never()).startSession(any(ClientSessionOptions.class));
+    verify(collection).updateOne(filter, update);
+  }
+
+  @Test
+  public void shouldKeepTheConcernsOfTheClientByDefault() {
+
+    //GIVEN
+    LockCollection lockCollection = new LockCollection(mongoClient, collection, DurabilityProfile.DEFAULT);
+
+    //WHEN
+    lockCollection.updateOne(filter, update);
+
+    //THEN
+    verify(collection, never()).withWriteConcern(any());
+    verify(collection, never()).withReadConcern(any());
+    verify(collection).updateOne(filter, update);
+  }
+
+  @Test
+  public void shouldPickTheProfileOfTheLongestPrefix() {
+
+    //GIVEN
+    DistributedLockServiceConfig distributedLockServiceConfig = new DistributedLockServiceConfig("mongodb://localhost");
+    distributedLockServiceConfig.setDurabilityProfile(DurabilityProfile.FAST);
+    distributedLockServiceConfig.setDurabilityProfile("billing-", DurabilityProfile.SAFE);
+    distributedLockServiceConfig.setDurabilityProfile("billing-cache-", DurabilityProfile.FAST);
+
+    //WHEN
+    DurabilityProfile billingProfile = distributedLockServiceConfig.getDurabilityProfile("billing-42");
+    DurabilityProfile billingCacheProfile = distributedLockServiceConfig.getDurabilityProfile("billing-cache-42");
+    DurabilityProfile otherProfile = distributedLockServiceConfig.getDurabilityProfile("report-42");
+
+    //THEN
+    assertThat(billingProfile).isEqualTo(DurabilityProfile.SAFE);
+    assertThat(billingCacheProfile).isEqualTo(DurabilityProfile.FAST);
+    assertThat(otherProfile).isEqualTo(DurabilityProfile.FAST);
+  }
+}
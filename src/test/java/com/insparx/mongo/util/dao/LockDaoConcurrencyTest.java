@@ -0,0 +1,112 @@
+package com.insparx.mongo.util.dao;
+
+
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.mongodb.MongoClient;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+/**
+ * Runs the dao against a mongo stand-in where every call costs a fixed round trip,
+ * so throughput is bounded by latency unless independent keys proceed in parallel.
+ */
+public class LockDaoConcurrencyTest {
+
+  private static final long ROUND_TRIP_MILLIS = 5;
+  private static final int OPERATIONS_PER_THREAD = 40;
+
+  @Test
+  public void shouldScaleThroughputWithThreadsOnDistinctKeys() throws Exception {
+
+    //GIVEN
+    final LockDao lockDao = slowLockDao();
+
+    //WHEN
+    final double singleThreaded = measureThroughput(lockDao, 1);
+    final double multiThreaded = measureThroughput(lockDao, 8);
+
+    //THEN
+    assertThat(multiThreaded).as("ops/s with 8 threads vs %s ops/s with 1", singleThreaded)
+            .isGreaterThan(singleThreaded * 4);
+  }
+
+  private static double measureThroughput(final LockDao lockDao, final int threads) throws Exception {
+    final DistributedLockTimeOutOptions timeOutOptions = new DistributedLockTimeOutOptions();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final CountDownLatch start = new CountDownLatch(1);
+
+    final List<Future<?>> workers = new ArrayList<>();
+    for (int thread = 0; thread < threads; thread++) {
+      final String prefix = "key-" + threads + "-" + thread + "-";
+      workers.add(executor.submit(() -> {
+        start.await();
+        for (int idx = 0; idx < OPERATIONS_PER_THREAD; idx++) {
+          final Optional<DistributedLock> lock = lockDao.lock(prefix + idx, timeOutOptions);
+          assertThat(lock).isPresent();
+          lockDao.unlock(prefix + idx, lock.get().getLockedId());
+        }
+        return null;
+      }));
+    }
+
+    final long startTime = System.nanoTime();
+    start.countDown();
+    for (final Future<?> worker : workers) worker.get(1, TimeUnit.MINUTES);
+    final long elapsed = System.nanoTime() - startTime;
+    executor.shutdown();
+
+    return (threads * OPERATIONS_PER_THREAD) / (elapsed / 1e9);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static LockDao slowLockDao() {
+    final MongoClient mongoClient = mock(MongoClient.class);
+    final MongoDatabase database = mock(MongoDatabase.class);
+    final MongoCollection<Document> collection = mock(MongoCollection.class);
+
+    when(mongoClient.getDatabase(anyString())).thenReturn(database);
+    when(database.runCommand(any(Bson.class))).thenAnswer(invocation -> new Document("localTime", new Date()));
+    when(database.getCollection(anyString())).thenReturn(collection);
+    when(collection.withCodecRegistry(any())).thenReturn(collection);
+    when(collection.withWriteConcern(any(WriteConcern.class))).thenReturn(collection);
+
+    when(collection.findOneAndUpdate(any(Bson.class), any(Bson.class), any(FindOneAndUpdateOptions.class)))
+            .thenAnswer(afterRoundTrip(new Document(LockDef.FENCING_TOKEN.lockField, 1L)));
+    when(collection.updateOne(any(Bson.class), any(Bson.class))).thenAnswer(afterRoundTrip(UpdateResult.acknowledged(1, 1L, null)));
+
+    return new LockDao(mongoClient, new DistributedLockServiceConfig(mongoClient));
+  }
+
+  private static <T> Answer<T> afterRoundTrip(final T result) {
+    return invocation -> {
+      Thread.sleep(ROUND_TRIP_MILLIS);
+      return result;
+    };
+  }
+}
@@ -0,0 +1,159 @@
+package com.insparx.mongo.util.dao;
+
+
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.insparx.mongo.util.metrics.LockMetrics;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+/**
+ * Runs the conformance suite against a mongo server, by default on localhost (set -Dmongo.uri to
+ * use another one). The tests are skipped when no server is reachable.
+ */
+public class LockDaoConformanceTest extends LockStoreConformanceTest {
+
+  private static MongoClient mongoClient;
+  private static boolean reachable;
+
+  private DistributedLockServiceConfig distributedLockServiceConfig;
+
+  @BeforeClass
+  public static void connect() {
+    mongoClient = new MongoClient(new MongoClientURI(
+            System.getProperty("mongo.uri", "mongodb://localhost:27017/?serverSelectionTimeoutMS=1000")));
+    try {
+      mongoClient.getDatabase("admin").runCommand(new Document("ping", 1));
+      reachable = true;
+    } catch (final MongoException e) {
+      reachable = false;
+    }
+  }
+
+  @Test
+  public void shouldKeepLockDocumentsFromTheReaperUntilTheyAreIdle() {
+
+    //GIVEN
+    final LockDao lockDao = new LockDao(mongoClient, distributedLockServiceConfig);
+    final DistributedLock lock = lockDao.lock("test", new DistributedLockTimeOutOptions()).get();
+    final Document heldDoc = findLockDoc("test");
+
+    //WHEN
+    lockDao.unlock("test", lock.getLockedId());
+    final Document releasedDoc = findLockDoc("test");
+
+    //THEN
+    final long idlePeriod = distributedLockServiceConfig.getLockIdlePeriod();
+    assertThat(heldDoc.getDate(LockDef.REAP_AT.lockField).getTime())
+            .isEqualTo(heldDoc.getDate(LockDef.LOCK_TIMEOUT_TIME.lockField).getTime() + idlePeriod);
+    assertThat(releasedDoc.getDate(LockDef.REAP_AT.lockField).getTime())
+            .isEqualTo(releasedDoc.getDate(LockDef.UPDATED.lockField).getTime() + idlePeriod);
+  }
+
+  @Test
+  public void shouldKeepFencingTokensGrowingOnceTheReaperRemovedTheLock() throws Exception {
+
+    //GIVEN
+    final LockDao lockDao = new LockDao(mongoClient, distributedLockServiceConfig);
+    final DistributedLock lock = lockDao.lock("test", new DistributedLockTimeOutOptions()).get();
+    lockDao.unlock("test", lock.getLockedId());
+    lockCollection().deleteOne(new Document(LockDef.ID.lockField, "test"));
+    // The reaper only removes documents idle for lockIdlePeriod, so the next insert is at a later server time.
+    Thread.sleep(10);
+
+    //WHEN
+    final DistributedLock nextLock = lockDao.lock("test", new DistributedLockTimeOutOptions()).get();
+
+    //THEN
+    assertThat(nextLock.getFencingToken()).isGreaterThan(lock.getFencingToken());
+  }
+
+  @Test
+  public void shouldGrantPermitsUpToTheMaximum() {
+
+    //GIVEN
+    final LockDao lockDao = new LockDao(mongoClient, distributedLockServiceConfig);
+    final DistributedLockTimeOutOptions distributedLockTimeOutOptions = new DistributedLockTimeOutOptions();
+
+    //WHEN
+    final Optional<DistributedLock> first = lockDao.acquirePermits("test", 2, 3, distributedLockTimeOutOptions);
+    final Optional<DistributedLock> overMaximum = lockDao.acquirePermits("test", 2, 3, distributedLockTimeOutOptions);
+    final Optional<DistributedLock> last = lockDao.acquirePermits("test", 1, 3, distributedLockTimeOutOptions);
+    lockDao.releasePermits("test", first.get().getLockedId());
+    final Optional<DistributedLock> afterRelease = lockDao.acquirePermits("test", 2, 3, distributedLockTimeOutOptions);
+    final List<?> holders = (List<?>) findLockDoc("test").get(LockDef.HOLDERS.lockField);
+
+    //THEN
+    assertThat(first).isPresent();
+    assertThat(overMaximum).isEmpty();
+    assertThat(last).isPresent();
+    assertThat(afterRelease).isPresent();
+    assertThat(holders).hasSize(2);
+  }
+
+  @Test
+  public void shouldTakePermitsOfAnExistingSemaphoreInOneRoundTrip() {
+
+    //GIVEN
+    final LockMetrics lockMetrics = new LockMetrics();
+    final LockDao lockDao = new LockDao(mongoClient, distributedLockServiceConfig, lockMetrics);
+    final DistributedLockTimeOutOptions distributedLockTimeOutOptions = new DistributedLockTimeOutOptions();
+    lockDao.acquirePermits("test", 1, 3, distributedLockTimeOutOptions);
+    final long roundTrips = lockMetrics.getAcquireRoundTrips();
+
+    //WHEN
+    final Optional<DistributedLock> permits = lockDao.acquirePermits("test", 1, 3, distributedLockTimeOutOptions);
+
+    //THEN
+    assertThat(permits).isPresent();
+    assertThat(roundTrips).isEqualTo(3);
+    assertThat(lockMetrics.getAcquireRoundTrips()).isEqualTo(roundTrips + 1);
+  }
+
+  private Document findLockDoc(final String key) {
+    return lockCollection().find(new Document(LockDef.ID.lockField, key)).first();
+  }
+
+  private MongoCollection<Document> lockCollection() {
+    return mongoClient.getDatabase(distributedLockServiceConfig.getDbName())
+            .getCollection(distributedLockServiceConfig.getCollectionName());
+  }
+
+  @AfterClass
+  public static void disconnect() {
+    mongoClient.close();
+  }
+
+  @Override
+  protected LockStore newLockStore() {
+    Assume.assumeTrue("no mongo server to test against", reachable);
+
+    // A collection per test, so tests don't see each other's locks.
+    distributedLockServiceConfig
+            = new DistributedLockServiceConfig(mongoClient, "mongo-distributed-locking-test", "locks-" + new ObjectId());
+    return new LockDao(mongoClient, distributedLockServiceConfig);
+  }
+
+  @After
+  public void dropCollection() {
+    if (distributedLockServiceConfig == null) return;
+    mongoClient.getDatabase(distributedLockServiceConfig.getDbName())
+            .getCollection(distributedLockServiceConfig.getCollectionName()).drop();
+  }
+}
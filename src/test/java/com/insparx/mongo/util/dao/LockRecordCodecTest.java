@@ -0,0 +1,61 @@
+package com.insparx.mongo.util.dao;
+
+
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class LockRecordCodecTest {
+
+  @Test
+  public void shouldWriteAGrantedLockAndReadItBack() {
+
+    //GIVEN
+    final DistributedLockTimeOutOptions timeOutOptions = new DistributedLockTimeOutOptions();
+    final ObjectId lockId = new ObjectId();
+    final LockRecord granted
+            = new LockRecord(new ObjectId(), lockId, 1000, new DistributedLockServiceConfig("mongodb://localhost"), timeOutOptions);
+
+    //WHEN
+    final BsonDocument document = new BsonDocument();
+    LockRecordCodec.INSTANCE.encode(new BsonDocumentWriter(document), granted, EncoderContext.builder().build());
+    final LockRecord read = LockRecordCodec.INSTANCE.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+
+    //THEN
+    assertThat(document.containsKey(LockDef.ID.lockField)).isFalse();
+    assertThat(document.getInt32(LockDef.LOCK_ATTEMPT_COUNT.lockField).getValue()).isEqualTo(0);
+    assertThat(document.getArray(LockDef.READERS.lockField).isEmpty()).isTrue();
+    assertThat(read.state).isEqualTo(LockState.LOCKED);
+    assertThat(read.lockId).isEqualTo(lockId);
+    assertThat(read.lockTimeoutTime).isEqualTo(1000L + timeOutOptions.getInactiveLockTimeout());
+  }
+
+  @Test
+  public void shouldReadAReleasedLockWithoutItsHolderFields() {
+
+    //GIVEN
+    final BsonDocument document = new BsonDocument(LockDef.ID.lockField, new BsonString("test"))
+            .append(LockDef.STATE.lockField, new BsonString(LockState.UNLOCKED.code()))
+            .append(LockDef.FENCING_TOKEN.lockField, new BsonInt64(3));
+
+    //WHEN
+    final LockRecord read = LockRecordCodec.INSTANCE.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+
+    //THEN
+    assertThat(read.key).isEqualTo("test");
+    assertThat(read.state).isEqualTo(LockState.UNLOCKED);
+    assertThat(read.lockId).isNull();
+    assertThat(read.isHeld(0)).isFalse();
+  }
+}
@@ -0,0 +1,190 @@
+package com.insparx.mongo.util.dao;
+
+
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.mongodb.MongoClient;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class LockReleaseWatcherTest {
+
+  private DistributedLockServiceConfig distributedLockServiceConfig;
+  private LockReleaseWatcher releaseWatcher;
+
+  @Before
+  public void setUp() {
+    distributedLockServiceConfig = new DistributedLockServiceConfig("mongodb://localhost");
+    distributedLockServiceConfig.setTimeoutFrequency(60000);
+    releaseWatcher = LockReleaseWatcher.inProcess(distributedLockServiceConfig);
+  }
+
+  @Test
+  public void shouldSignalTheWaitersOfTheReleasedKeyOnly() {
+
+    //GIVEN
+    List<String> releasedKeys = new CopyOnWriteArrayList<>();
+    releaseWatcher.addReleaseListener(releasedKeys::add);
+    CountDownLatch releaseSignal = releaseWatcher.releaseSignal("test");
+    CountDownLatch otherReleaseSignal = releaseWatcher.releaseSignal("other");
+
+    //WHEN
+    releaseWatcher.signalRelease("test");
+
+    //THEN
+    assertThat(releaseSignal.getCount()).isZero();
+    assertThat(otherReleaseSignal.getCount()).isEqualTo(1);
+    assertThat(releasedKeys).containsOnly("test");
+  }
+
+  @Test
+  public void shouldNotCallARemovedReleaseListener() {
+
+    //GIVEN
+    List<String> releasedKeys = new CopyOnWriteArrayList<>();
+    Consumer<String> releaseListener = releasedKeys::add;
+    releaseWatcher.addReleaseListener(releaseListener);
+
+    //WHEN
+    releaseWatcher.removeReleaseListener(releaseListener);
+    releaseWatcher.signalRelease("test");
+
+    //THEN
+    assertThat(releasedKeys).isEmpty();
+  }
+
+  @Test
+  public void shouldHandOutANewSignalAfterARelease() {
+
+    //GIVEN
+    CountDownLatch releaseSignal = releaseWatcher.releaseSignal("test");
+    CountDownLatch sameReleaseSignal = releaseWatcher.releaseSignal("test");
+
+    //WHEN
+    releaseWatcher.signalRelease("test");
+    CountDownLatch nextReleaseSignal = releaseWatcher.releaseSignal("test");
+
+    //THEN
+    assertThat(sameReleaseSignal).isSameAs(releaseSignal);
+    assertThat(nextReleaseSignal).isNotSameAs(releaseSignal);
+    assertThat(nextReleaseSignal.getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldDropTheSharedWatcherOnceEveryReferenceIsReleased() {
+
+    //GIVEN
+    MongoClient mongoClient = mongoClientOf(mock(MongoCollection.class));
+    LockReleaseWatcher sharedWatcher = LockReleaseWatcher.forCollection(mongoClient, distributedLockServiceConfig);
+    LockReleaseWatcher sameWatcher = LockReleaseWatcher.forCollection(mongoClient, distributedLockServiceConfig);
+
+    //WHEN
+    sharedWatcher.release();
+    LockReleaseWatcher stillShared = LockReleaseWatcher.forCollection(mongoClient, distributedLockServiceConfig);
+    stillShared.release();
+    sameWatcher.release();
+    LockReleaseWatcher newWatcher = LockReleaseWatcher.forCollection(mongoClient, distributedLockServiceConfig);
+    newWatcher.release();
+
+    //THEN
+    assertThat(sameWatcher).isSameAs(sharedWatcher);
+    assertThat(stillShared).isSameAs(sharedWatcher);
+    assertThat(newWatcher).isNotSameAs(sharedWatcher);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldStopTheChangeStreamOnceTheLastReferenceIsReleased() throws Exception {
+
+    //GIVEN
+    MongoCollection<Document> collection = mock(MongoCollection.class);
+    ChangeStreamIterable<Document> changeStream = mock(ChangeStreamIterable.class);
+    MongoCursor<ChangeStreamDocument<Document>> cursor = mock(MongoCursor.class);
+    CountDownLatch reading = new CountDownLatch(1);
+    CountDownLatch cursorClosed = new CountDownLatch(1);
+    AtomicReference<Thread> watchThread = new AtomicReference<>();
+    when(collection.watch(any())).thenReturn(changeStream);
+    when(changeStream.iterator()).thenReturn(cursor);
+    when(cursor.hasNext()).thenAnswer(invocation -> {
+      watchThread.set(Thread.currentThread());
+      reading.countDown();
+      awaitUninterruptibly(cursorClosed);
+      throw new IllegalStateException("Cursor has been closed");
+    });
+    doAnswer(invocation -> {
+      cursorClosed.countDown();
+      return null;
+    }).when(cursor).close();
+    LockReleaseWatcher sharedWatcher = LockReleaseWatcher.forCollection(mongoClientOf(collection), distributedLockServiceConfig);
+    sharedWatcher.addReleaseListener(key -> {
+    });
+    assertThat(reading.await(5, TimeUnit.SECONDS)).isTrue();
+
+    //WHEN
+    sharedWatcher.release();
+    watchThread.get().join(5000);
+
+    //THEN
+    assertThat(watchThread.get().isAlive()).isFalse();
+    assertThat(sharedWatcher.isWatching()).isFalse();
+  }
+
+  @SuppressWarnings("unchecked")
+  private MongoClient mongoClientOf(final MongoCollection<?> collection) {
+    MongoClient mongoClient = mock(MongoClient.class);
+    MongoDatabase database = mock(MongoDatabase.class);
+    when(mongoClient.getDatabase(distributedLockServiceConfig.getDbName())).thenReturn(database);
+    when(database.getCollection(distributedLockServiceConfig.getCollectionName())).thenReturn((MongoCollection<Document>) collection);
+    when(collection.getCodecRegistry()).thenReturn(MongoClient.getDefaultCodecRegistry());
+    return mongoClient;
+  }
+
+  /**
+   * Waits like a read of the driver, which an interrupt doesn't end.
+   */
+  private static void awaitUninterruptibly(final CountDownLatch latch) {
+    while (true) {
+      try {
+        latch.await();
+        return;
+      } catch (final InterruptedException e) {
+        // Keep reading.
+      }
+    }
+  }
+
+  @Test
+  public void shouldWaitNoLongerThanTheMaxWait() throws Exception {
+
+    //GIVEN
+    CountDownLatch releaseSignal = releaseWatcher.releaseSignal("test");
+
+    //WHEN
+    long start = System.nanoTime();
+    releaseWatcher.await("test", releaseSignal, 50);
+    long waited = (System.nanoTime() - start) / 1000000;
+
+    //THEN
+    assertThat(waited).isBetween(49L, 10000L);
+    assertThat(releaseSignal.getCount()).isEqualTo(1);
+  }
+}
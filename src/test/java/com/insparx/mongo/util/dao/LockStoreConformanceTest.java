@@ -0,0 +1,271 @@
+package com.insparx.mongo.util.dao;
+
+
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+/**
+ * The guarantees every {@link LockStore} must give. Subclasses provide the store under test.
+ */
+public abstract class LockStoreConformanceTest {
+
+  private static final int SHORT_TIMEOUT = 300;
+
+  private LockStore lockStore;
+  private DistributedLockTimeOutOptions timeOutOptions;
+  private DistributedLockTimeOutOptions shortTimeOutOptions;
+
+  /**
+   * Returns a new store without any lock.
+   */
+  protected abstract LockStore newLockStore();
+
+  @Before
+  public void setUpStore() {
+    lockStore = newLockStore();
+    timeOutOptions = new DistributedLockTimeOutOptions();
+    shortTimeOutOptions = new DistributedLockTimeOutOptions();
+    shortTimeOutOptions.setInactiveLockTimeout(SHORT_TIMEOUT);
+  }
+
+  @Test
+  public void shouldGrantAHeldLockToNoOneElse() {
+
+    //GIVEN
+    Optional<DistributedLock> lock = lockStore.lock("test", timeOutOptions);
+
+    //WHEN
+    Optional<DistributedLock> secondLock = lockStore.lock("test", timeOutOptions);
+
+    //THEN
+    assertThat(lock).isPresent();
+    assertThat(secondLock).isEmpty();
+  }
+
+  @Test
+  public void shouldGrantALockToOneOfConcurrentCallers() throws Exception {
+
+    //GIVEN
+    final int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+
+    //WHEN
+    List<Future<Boolean>> attempts = new ArrayList<>();
+    for (int thread = 0; thread < threads; thread++) {
+      attempts.add(executor.submit((Callable<Boolean>) () -> {
+        start.await();
+        return lockStore.lock("test", timeOutOptions).isPresent();
+      }));
+    }
+    start.countDown();
+
+    int granted = 0;
+    for (Future<Boolean> attempt : attempts) if (attempt.get(1, TimeUnit.MINUTES)) granted++;
+    executor.shutdown();
+
+    //THEN
+    assertThat(granted).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldReleaseOnlyWithTheLockId() {
+
+    //GIVEN
+    DistributedLock lock = lockStore.lock("test", timeOutOptions).get();
+
+    //WHEN
+    Optional<ObjectId> releasedWithOtherId = lockStore.unlock("test", new ObjectId());
+    Optional<ObjectId> released = lockStore.unlock("test", lock.getLockedId());
+    Optional<ObjectId> releasedAgain = lockStore.unlock("test", lock.getLockedId());
+
+    //THEN
+    assertThat(releasedWithOtherId).isEmpty();
+    assertThat(released).contains(lock.getLockedId());
+    assertThat(releasedAgain).isEmpty();
+  }
+
+  @Test
+  public void shouldGrantAReleasedLockWithAGreaterFencingToken() {
+
+    //GIVEN
+    DistributedLock lock = lockStore.lock("test", timeOutOptions).get();
+    lockStore.unlock("test", lock.getLockedId());
+
+    //WHEN
+    Optional<DistributedLock> nextLock = lockStore.lock("test", timeOutOptions);
+
+    //THEN
+    assertThat(nextLock).isPresent();
+    assertThat(nextLock.get().getFencingToken()).isGreaterThan(lock.getFencingToken());
+  }
+
+  @Test
+  public void shouldTakeOverAnExpiredLease() throws Exception {
+
+    //GIVEN
+    DistributedLock lock = lockStore.lock("test", shortTimeOutOptions).get();
+    Thread.sleep(SHORT_TIMEOUT * 2);
+
+    //WHEN
+    Optional<DistributedLock> nextLock = lockStore.lock("test", timeOutOptions);
+    Set<String> lostKeys = lockStore.renew(Collections.singletonMap("test", lock), timeOutOptions);
+    Optional<ObjectId> released = lockStore.unlock("test", lock.getLockedId());
+
+    //THEN
+    assertThat(nextLock).isPresent();
+    assertThat(nextLock.get().getFencingToken()).isGreaterThan(lock.getFencingToken());
+    assertThat(lostKeys).containsOnly("test");
+    assertThat(released).isEmpty();
+  }
+
+  @Test
+  public void shouldKeepARenewedLease() throws Exception {
+
+    //GIVEN
+    DistributedLock lock = lockStore.lock("test", shortTimeOutOptions).get();
+
+    //WHEN
+    Thread.sleep(SHORT_TIMEOUT / 2);
+    Set<String> lostKeys = lockStore.renew(Collections.singletonMap("test", lock), shortTimeOutOptions);
+    Thread.sleep(SHORT_TIMEOUT * 2 / 3);
+    Optional<DistributedLock> secondLock = lockStore.lock("test", timeOutOptions);
+
+    //THEN
+    assertThat(lostKeys).isEmpty();
+    assertThat(secondLock).isEmpty();
+  }
+
+  @Test
+  public void shouldGrantAllLocksOrNone() {
+
+    //GIVEN
+    lockStore.lock("b", timeOutOptions);
+
+    //WHEN
+    Optional<Map<String, DistributedLock>> locks = lockStore.lockAll(Arrays.asList("a", "b", "c"), timeOutOptions);
+    Optional<DistributedLock> lockOfA = lockStore.lock("a", timeOutOptions);
+    Optional<Map<String, DistributedLock>> otherLocks = lockStore.lockAll(Arrays.asList("c", "d"), timeOutOptions);
+
+    //THEN
+    assertThat(locks).isEmpty();
+    assertThat(lockOfA).isPresent();
+    assertThat(otherLocks).isPresent();
+    assertThat(otherLocks.get().keySet()).containsOnly("c", "d");
+  }
+
+  @Test
+  public void shouldUnlockTheProvidedLocksAtOnce() {
+
+    //GIVEN
+    DistributedLock lockOfA = lockStore.lock("a", timeOutOptions).get();
+    Map<String, DistributedLock> locksOfBAndC = lockStore.lockAll(Arrays.asList("b", "c"), timeOutOptions).get();
+    DistributedLock readLockOfD = lockStore.readLock("d", timeOutOptions).get();
+    lockStore.lock("e", timeOutOptions);
+    Map<String, ObjectId> releasing = new HashMap<>();
+    releasing.put("a", lockOfA.getLockedId());
+    locksOfBAndC.forEach((key, lock) -> releasing.put(key, lock.getLockedId()));
+    releasing.put("d", readLockOfD.getLockedId());
+
+    //WHEN
+    long released = lockStore.unlockAll(releasing);
+    Optional<Map<String, DistributedLock>> locks = lockStore.lockAll(Arrays.asList("a", "b", "c"), timeOutOptions);
+    Optional<DistributedLock> lockOfD = lockStore.lock("d", timeOutOptions);
+    Optional<DistributedLock> lockOfE = lockStore.lock("e", timeOutOptions);
+
+    //THEN
+    assertThat(released).isEqualTo(3);
+    assertThat(locks).isPresent();
+    assertThat(lockOfD).isEmpty();
+    assertThat(lockOfE).isEmpty();
+  }
+
+  @Test
+  public void shouldShareALockBetweenReadersOnly() {
+
+    //GIVEN
+    DistributedLock readLock = lockStore.readLock("test", timeOutOptions).get();
+    Optional<DistributedLock> secondReadLock = lockStore.readLock("test", timeOutOptions);
+
+    //WHEN
+    Optional<DistributedLock> lockWhileRead = lockStore.lock("test", timeOutOptions);
+    lockStore.readUnlock("test", readLock.getLockedId());
+    lockStore.readUnlock("test", secondReadLock.get().getLockedId());
+    Optional<DistributedLock> lock = lockStore.lock("test", timeOutOptions);
+    Optional<DistributedLock> readLockWhileLocked = lockStore.readLock("test", timeOutOptions);
+
+    //THEN
+    assertThat(secondReadLock).isPresent();
+    assertThat(lockWhileRead).isEmpty();
+    assertThat(lock).isPresent();
+    assertThat(readLockWhileLocked).isEmpty();
+  }
+
+  @Test
+  public void shouldGrantALockInTicketOrder() {
+
+    //GIVEN
+    ObjectId firstTicket = new ObjectId();
+    ObjectId secondTicket = new ObjectId();
+    DistributedLock lock = lockStore.lock("test", timeOutOptions).get();
+    long firstTicketNumber = lockStore.takeTicket("test", firstTicket, 10000);
+    long secondTicketNumber = lockStore.takeTicket("test", secondTicket, 10000);
+    lockStore.unlock("test", lock.getLockedId());
+
+    //WHEN
+    Optional<DistributedLock> lockOutOfTurn = lockStore.lockInTurn("test", secondTicket, timeOutOptions);
+    Optional<DistributedLock> lockWithoutTicket = lockStore.lock("test", timeOutOptions);
+    Optional<DistributedLock> firstLock = lockStore.lockInTurn("test", firstTicket, timeOutOptions);
+    lockStore.unlock("test", firstLock.get().getLockedId());
+    Optional<DistributedLock> secondLock = lockStore.lockInTurn("test", secondTicket, timeOutOptions);
+
+    //THEN
+    assertThat(secondTicketNumber).isGreaterThan(firstTicketNumber);
+    assertThat(lockOutOfTurn).isEmpty();
+    assertThat(lockWithoutTicket).isEmpty();
+    assertThat(secondLock).isPresent();
+    assertThat(secondLock.get().getFencingToken()).isGreaterThan(firstLock.get().getFencingToken());
+  }
+
+  @Test
+  public void shouldSkipAnExpiredTicket() throws Exception {
+
+    //GIVEN
+    ObjectId expiringTicket = new ObjectId();
+    ObjectId ticket = new ObjectId();
+    lockStore.takeTicket("test", expiringTicket, SHORT_TIMEOUT);
+    lockStore.takeTicket("test", ticket, 10000);
+
+    //WHEN
+    Optional<DistributedLock> lockBehindLiveTicket = lockStore.lockInTurn("test", ticket, timeOutOptions);
+    Thread.sleep(SHORT_TIMEOUT * 2);
+    boolean renewed = lockStore.renewTicket("test", ticket, 10000);
+    Optional<DistributedLock> lock = lockStore.lockInTurn("test", ticket, timeOutOptions);
+
+    //THEN
+    assertThat(lockBehindLiveTicket).isEmpty();
+    assertThat(renewed).isTrue();
+    assertThat(lock).isPresent();
+  }
+}
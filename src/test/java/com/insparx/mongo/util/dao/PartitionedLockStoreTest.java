@@ -0,0 +1,118 @@
+package com.insparx.mongo.util.dao;
+
+
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+
+public class PartitionedLockStoreTest extends LockStoreConformanceTest {
+
+  private static final int VIRTUAL_NODES = 16;
+
+  private final DistributedLockServiceConfig distributedLockServiceConfig = new DistributedLockServiceConfig("mongodb://localhost");
+  private final DistributedLockTimeOutOptions timeOutOptions = new DistributedLockTimeOutOptions();
+
+  @Override
+  protected LockStore newLockStore() {
+    return new PartitionedLockStore(partitions("p1", "p2", "p3"), VIRTUAL_NODES);
+  }
+
+  @Test
+  public void shouldKeepALockWhileItsKeyMovesToAnAddedPartition() {
+
+    //GIVEN
+    Map<String, LockStore> partitions = partitions("p1", "p2");
+    PartitionedLockStore node = new PartitionedLockStore(partitions, VIRTUAL_NODES);
+    PartitionedLockStore otherNode = new PartitionedLockStore(partitions, VIRTUAL_NODES);
+    String key = movingKey();
+    DistributedLock lock = node.lock(key, timeOutOptions).get();
+    LockStore addedPartition = new InMemoryLockStore(distributedLockServiceConfig);
+
+    //WHEN
+    node.addPartition("p3", addedPartition);
+    otherNode.addPartition("p3", addedPartition);
+    Optional<DistributedLock> lockWhileRebalancing = otherNode.lock(key, timeOutOptions);
+    Set<String> lostKeys = node.renew(Collections.singletonMap(key, lock), timeOutOptions);
+    node.finishRebalance();
+    otherNode.finishRebalance();
+    Optional<DistributedLock> lockAfterRebalance = otherNode.lock(key, timeOutOptions);
+    node.unlock(key, lock.getLockedId());
+    Optional<DistributedLock> lockAfterUnlock = otherNode.lock(key, timeOutOptions);
+
+    //THEN
+    assertThat(otherNode.getPartitionName(key)).isEqualTo("p3");
+    assertThat(lockWhileRebalancing).isEmpty();
+    assertThat(lostKeys).isEmpty();
+    assertThat(lockAfterRebalance).isEmpty();
+    assertThat(lockAfterUnlock).isPresent();
+  }
+
+  @Test
+  public void shouldNotFinishARebalanceBeforeHeldLocksMoved() {
+
+    //GIVEN
+    PartitionedLockStore node = new PartitionedLockStore(partitions("p1", "p2"), VIRTUAL_NODES);
+    node.lock(movingKey(), timeOutOptions);
+
+    //WHEN
+    node.addPartition("p3", new InMemoryLockStore(distributedLockServiceConfig));
+
+    //THEN
+    assertThat(node.isRebalancing()).isTrue();
+    assertThatThrownBy(node::finishRebalance).isInstanceOf(IllegalStateException.class);
+    assertThatThrownBy(() -> node.addPartition("p4", new InMemoryLockStore(distributedLockServiceConfig)))
+            .isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void shouldFinishARebalanceOnceTheLeaseOfAnUnrenewedLockRanOut() throws InterruptedException {
+
+    //GIVEN
+    PartitionedLockStore node = new PartitionedLockStore(partitions("p1", "p2"), VIRTUAL_NODES);
+    DistributedLockTimeOutOptions shortLease = new DistributedLockTimeOutOptions();
+    shortLease.setInactiveLockTimeout(10);
+    String key = movingKey();
+    node.lock(key, shortLease);
+    node.addPartition("p3", new InMemoryLockStore(distributedLockServiceConfig));
+
+    //WHEN
+    Thread.sleep(50);
+    node.finishRebalance();
+
+    //THEN
+    assertThat(node.isRebalancing()).isFalse();
+    assertThat(node.lock(key, timeOutOptions)).isPresent();
+  }
+
+  private Map<String, LockStore> partitions(final String... names) {
+    final Map<String, LockStore> partitions = new HashMap<>();
+    for (String name : names) partitions.put(name, new InMemoryLockStore(distributedLockServiceConfig));
+    return partitions;
+  }
+
+  /**
+   * Returns a key of p1 or p2 that belongs to p3 once it is added.
+   */
+  private static String movingKey() {
+    final Map<String, String> names = new HashMap<>();
+    names.put("p1", "p1");
+    names.put("p2", "p2");
+    names.put("p3", "p3");
+    final ConsistentHashRing<String> ring = new ConsistentHashRing<>(names, VIRTUAL_NODES);
+
+    int idx = 0;
+    while (!ring.get("key-" + idx).equals("p3")) idx++;
+    return "key-" + idx;
+  }
+}
@@ -0,0 +1,47 @@
+package com.insparx.mongo.util.dao;
+
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class ServerClockTest {
+
+  // Sampled by the tests only.
+  private final ServerClock serverClock = new ServerClock(Date::new, 3600000);
+
+  @Test
+  public void shouldTrustTheSampleWithTheLowestRoundTrip() {
+
+    //GIVEN
+    long now = System.currentTimeMillis();
+
+    //WHEN
+    serverClock.addSample(100, 50, now);
+    serverClock.addSample(10, 4, now);
+    serverClock.addSample(300, 80, now);
+
+    //THEN
+    assertThat(serverClock.getOffset()).isEqualTo(10);
+    // Half the round trip plus the server's resolution.
+    assertThat(serverClock.getErrorBound()).isEqualTo(3);
+  }
+
+  @Test
+  public void shouldForgetTheBestSampleOnceItLeavesTheWindow() {
+
+    //GIVEN
+    long now = System.currentTimeMillis();
+    serverClock.addSample(10, 4, now);
+
+    //WHEN
+    for (int idx = 0; idx < 8; idx++) serverClock.addSample(50, 20, now);
+
+    //THEN
+    assertThat(serverClock.getOffset()).isEqualTo(50);
+    assertThat(serverClock.getErrorBound()).isEqualTo(11);
+  }
+}
@@ -0,0 +1,83 @@
+package com.insparx.mongo.util.dao;
+
+
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class WaitSchedulerTest {
+
+  private static final long NOW = 1000000;
+
+  private final List<Set<String>> finds = new CopyOnWriteArrayList<>();
+  private final List<String> signalled = new CopyOnWriteArrayList<>();
+  private final List<LockRecord> lockRecords = new ArrayList<>();
+  private WaitScheduler waitScheduler;
+
+  @Before
+  public void setUp() {
+    DistributedLockServiceConfig distributedLockServiceConfig = new DistributedLockServiceConfig("mongodb://localhost");
+    // Ticked by the tests only.
+    distributedLockServiceConfig.setLockUnlockedFrequency(3600000);
+    waitScheduler = new WaitScheduler(distributedLockServiceConfig, keys -> {
+      finds.add(keys);
+      return lockRecords;
+    }, () -> NOW, signalled::add);
+  }
+
+  @Test
+  public void shouldCheckAllAwaitedKeysWithOneFindPerTick() throws Exception {
+
+    //GIVEN
+    lockRecords.add(new LockRecord("held", LockState.LOCKED, new ObjectId(), NOW + 5000));
+    lockRecords.add(new LockRecord("expired", LockState.LOCKED, new ObjectId(), NOW - 5000));
+    lockRecords.add(new LockRecord("released", LockState.UNLOCKED, null, 0));
+    ExecutorService waiters = Executors.newFixedThreadPool(5);
+    for (String key : Arrays.asList("held", "held", "expired", "released", "removed")) {
+      waiters.submit(() -> {
+        waitScheduler.await(key, new CountDownLatch(1), 500);
+        return null;
+      });
+    }
+    Thread.sleep(100);
+
+    //WHEN
+    waitScheduler.tick();
+    waiters.shutdown();
+    waiters.awaitTermination(1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(finds).hasSize(1);
+    assertThat(finds.get(0)).containsOnly("held", "expired", "released", "removed");
+    assertThat(new HashSet<>(signalled)).containsOnly("expired", "released", "removed");
+  }
+
+  @Test
+  public void shouldNotQueryWithoutWaiters() throws Exception {
+
+    //GIVEN
+    waitScheduler.await("test", new CountDownLatch(1), 10);
+
+    //WHEN
+    waitScheduler.tick();
+
+    //THEN
+    assertThat(finds).isEmpty();
+    assertThat(signalled).isEmpty();
+  }
+}
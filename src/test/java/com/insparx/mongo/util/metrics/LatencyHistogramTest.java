@@ -0,0 +1,27 @@
+package com.insparx.mongo.util.metrics;
+
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void shouldReportPercentilesWithinAFactorOfTwo() {
+
+    //GIVEN
+    LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+    //WHEN
+    for (int idx = 0; idx < 99; idx++) latencyHistogram.record(1_000);
+    latencyHistogram.record(1_000_000);
+
+    //THEN
+    assertThat(latencyHistogram.getCount()).isEqualTo(100);
+    assertThat(latencyHistogram.getPercentileNanos(0.5)).isBetween(1_000L, 2_000L);
+    assertThat(latencyHistogram.getPercentileNanos(1)).isBetween(1_000_000L, 2_000_000L);
+    assertThat(latencyHistogram.getMaxNanos()).isEqualTo(1_000_000);
+  }
+}
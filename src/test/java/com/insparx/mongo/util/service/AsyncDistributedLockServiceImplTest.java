@@ -0,0 +1,196 @@
+package com.insparx.mongo.util.service;
+
+
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.async.client.MongoDatabase;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class AsyncDistributedLockServiceImplTest {
+
+  private static final String DUPLICATE_KEY_ERROR = "E11000 duplicate key error";
+
+  @Mock
+  private MongoClient mongoClient;
+
+  @Mock
+  private MongoDatabase database;
+
+  @Mock
+  private MongoCollection<Document> collection;
+
+  private AsyncDistributedLockServiceImpl asyncDistributedLockService;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    when(mongoClient.getDatabase(anyString())).thenReturn(database);
+    when(database.getCollection(anyString())).thenReturn(collection);
+    when(collection.withCodecRegistry(any())).thenReturn(collection);
+    when(collection.withWriteConcern(any(WriteConcern.class))).thenReturn(collection);
+    doAnswer(invocation -> {
+      invocation.<SingleResultCallback<Document>>getArgument(1).onResult(new Document("localTime", new Date()), null);
+      return null;
+    }).when(database).runCommand(any(Bson.class), any());
+    doAnswer(invocation -> {
+      invocation.<SingleResultCallback<UpdateResult>>getArgument(2).onResult(UpdateResult.acknowledged(1, 1L, null), null);
+      return null;
+    }).when(collection).updateOne(any(Bson.class), any(Bson.class), any());
+
+    DistributedLockServiceConfig distributedLockServiceConfig = new DistributedLockServiceConfig("mongodb://localhost");
+    distributedLockServiceConfig.setLockUnlockedFrequency(10);
+    asyncDistributedLockService
+            = new AsyncDistributedLockServiceImpl(mongoClient, new DistributedLockTimeOutOptions(), distributedLockServiceConfig);
+  }
+
+  @After
+  public void tearDown() {
+    asyncDistributedLockService.close();
+  }
+
+  @Test
+  public void shouldAcquireAndReleaseAFreeLock() throws Exception {
+
+    //GIVEN
+    answerAcquire(0);
+
+    //WHEN
+    boolean isLocked = asyncDistributedLockService.tryLockAsync("test").get(1, TimeUnit.SECONDS);
+    boolean isReleased = asyncDistributedLockService.releaseLockAsync("test").get(1, TimeUnit.SECONDS);
+    boolean isReleasedAgain = asyncDistributedLockService.releaseLockAsync("test").get(1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(isLocked).isTrue();
+    assertThat(isReleased).isTrue();
+    assertThat(isReleasedAgain).isFalse();
+  }
+
+  @Test
+  public void shouldNotAcquireALockHeldElsewhere() throws Exception {
+
+    //GIVEN
+    answerAcquire(Integer.MAX_VALUE);
+
+    //WHEN
+    boolean isLocked = asyncDistributedLockService.tryLockAsync("test").get(1, TimeUnit.SECONDS);
+    boolean isReleased = asyncDistributedLockService.releaseLockAsync("test").get(1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(isLocked).isFalse();
+    assertThat(isReleased).isFalse();
+  }
+
+  @Test
+  public void shouldNotContendInMongoForALockItHolds() throws Exception {
+
+    //GIVEN
+    answerAcquire(0);
+    asyncDistributedLockService.tryLockAsync("test").get(1, TimeUnit.SECONDS);
+
+    //WHEN
+    boolean isLockedAgain = asyncDistributedLockService.tryLockAsync("test").get(1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(isLockedAgain).isFalse();
+    verify(collection, times(1)).findOneAndUpdate(any(Bson.class), any(Bson.class), any(FindOneAndUpdateOptions.class), any());
+  }
+
+  @Test
+  public void shouldRetryUntilTheLockIsReleased() throws Exception {
+
+    //GIVEN
+    answerAcquire(2);
+
+    //WHEN
+    boolean isLocked = asyncDistributedLockService.lockAsync("test", 1, TimeUnit.SECONDS).get(2, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(isLocked).isTrue();
+    verify(collection, times(3)).findOneAndUpdate(any(Bson.class), any(Bson.class), any(FindOneAndUpdateOptions.class), any());
+  }
+
+  @Test
+  public void shouldGiveUpOnceTheTimeoutElapsed() throws Exception {
+
+    //GIVEN
+    answerAcquire(Integer.MAX_VALUE);
+
+    //WHEN
+    boolean isLocked = asyncDistributedLockService.lockAsync("test", 50, TimeUnit.MILLISECONDS).get(1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(isLocked).isFalse();
+  }
+
+  @Test
+  public void shouldReportALockLostOnceRenewalsFailedForItsLease() throws Exception {
+
+    //GIVEN
+    answerAcquire(0);
+    doAnswer(invocation -> {
+      invocation.<SingleResultCallback<BulkWriteResult>>getArgument(2).onResult(null, new MongoException("mongo is unreachable"));
+      return null;
+    }).when(collection).bulkWrite(any(), any(BulkWriteOptions.class), any());
+    CountDownLatch lockLost = new CountDownLatch(1);
+    DistributedLockServiceConfig distributedLockServiceConfig = new DistributedLockServiceConfig("mongodb://localhost");
+    distributedLockServiceConfig.setHeartbeatFrequency(10);
+    DistributedLockTimeOutOptions distributedLockTimeOutOptions = new DistributedLockTimeOutOptions();
+    distributedLockTimeOutOptions.setInactiveLockTimeout(50);
+    AsyncDistributedLockServiceImpl beatingService
+            = new AsyncDistributedLockServiceImpl(mongoClient, distributedLockTimeOutOptions, distributedLockServiceConfig);
+    beatingService.addLockLostListener(lostKey -> lockLost.countDown());
+
+    //WHEN
+    boolean isLocked = beatingService.tryLockAsync("test").get(1, TimeUnit.SECONDS);
+    boolean isLost = lockLost.await(1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(isLocked).isTrue();
+    assertThat(isLost).isTrue();
+    assertThat(beatingService.releaseLockAsync("test").get(1, TimeUnit.SECONDS)).isFalse();
+    beatingService.close();
+  }
+
+  /**
+   * Answers the acquires with a duplicate key error, i.e. a lock held by another node, until the
+   * provided number of them failed, and grants the lock from then on.
+   */
+  private void answerAcquire(final int failures) {
+    final AtomicInteger attempts = new AtomicInteger();
+    doAnswer(invocation -> {
+      final SingleResultCallback<Document> callback = invocation.getArgument(3);
+      if (attempts.incrementAndGet() <= failures) callback.onResult(null, new MongoException(11000, DUPLICATE_KEY_ERROR));
+      else callback.onResult(new Document("fencingToken", (long) attempts.get()), null);
+      return null;
+    }).when(collection).findOneAndUpdate(any(Bson.class), any(Bson.class), any(FindOneAndUpdateOptions.class), any());
+  }
+}
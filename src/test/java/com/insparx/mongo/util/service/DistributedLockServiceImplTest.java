@@ -1,34 +1,47 @@
 package com.insparx.mongo.util.service;
 
 
-import com.insparx.mongo.util.dao.LockDao;
+import com.insparx.mongo.util.dao.LockReleaseWatcher;
+import com.insparx.mongo.util.dao.LockStore;
 import com.insparx.mongo.util.domain.DistributedLock;
 import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
 import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
-import com.mongodb.MongoClient;
+import com.insparx.mongo.util.metrics.LockMetrics;
+import com.mongodb.MongoException;
 import org.bson.types.ObjectId;
+import org.junit.Before;
 import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
-import org.powermock.api.mockito.PowerMockito;
-import org.powermock.core.classloader.annotations.PrepareForTest;
-import org.powermock.modules.junit4.PowerMockRunner;
+import org.mockito.MockitoAnnotations;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 
-@RunWith(PowerMockRunner.class)
-@PrepareForTest(LockDao.class)
 public class DistributedLockServiceImplTest {
 
 
   @Mock
-  private MongoClient mongoClient;
+  private LockStore lockStore;
 
   @Mock
   private DistributedLockTimeOutOptions distributedLockTimeOutOptions;
@@ -36,9 +49,17 @@ public class DistributedLockServiceImplTest {
   @Mock
   private DistributedLockServiceConfig distributedLockServiceConfig;
 
-  @InjectMocks
   private DistributedLockServiceImpl distributedLockService;
 
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    when(distributedLockServiceConfig.getHeartbeatFrequency()).thenReturn(5000L);
+    when(lockStore.getReleaseWatcher(anyString())).thenReturn(LockReleaseWatcher.inProcess(distributedLockServiceConfig));
+    when(lockStore.getMetrics()).thenReturn(new LockMetrics());
+    distributedLockService = new DistributedLockServiceImpl(lockStore, distributedLockTimeOutOptions, distributedLockServiceConfig);
+  }
+
   @Test
   public void shouldReturnTrueWhenAcquiredALock() {
 
@@ -47,8 +68,8 @@ public class DistributedLockServiceImplTest {
     ObjectId objectId = new ObjectId();
 
     //WHEN
-    PowerMockito.mockStatic(LockDao.class);
-    when(LockDao.lock(mongoClient, key, distributedLockServiceConfig, distributedLockTimeOutOptions)).thenReturn(Optional.of(objectId));
+    when(lockStore.lock(key, distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(objectId, new AtomicBoolean(true), 1)));
 
     Boolean isLocked = distributedLockService.tryLock(key);
 
@@ -56,6 +77,24 @@ public class DistributedLockServiceImplTest {
     assertThat(isLocked).isTrue();
   }
 
+  @Test
+  public void shouldReturnFencingTokenOfHeldLock() {
+
+    //GIVEN
+    String key = "test";
+    ObjectId objectId = new ObjectId();
+
+    //WHEN
+    when(lockStore.lock(key, distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(objectId, new AtomicBoolean(true), 42)));
+
+    distributedLockService.tryLock(key);
+    Optional<Long> fencingToken = distributedLockService.getFencingToken(key);
+
+    //THEN
+    assertThat(fencingToken).contains(42L);
+  }
+
   @Test
   public void shouldReturnFalseWhenAcquiredALockFails() {
 
@@ -63,8 +102,7 @@ public class DistributedLockServiceImplTest {
     String key = "test";
 
     //WHEN
-    PowerMockito.mockStatic(LockDao.class);
-    when(LockDao.lock(mongoClient, key, distributedLockServiceConfig, distributedLockTimeOutOptions)).thenReturn(Optional.empty());
+    when(lockStore.lock(key, distributedLockTimeOutOptions)).thenReturn(Optional.empty());
 
     Boolean isLocked = distributedLockService.tryLock(key);
 
@@ -93,11 +131,10 @@ public class DistributedLockServiceImplTest {
     String key = "test";
     ObjectId objectId = new ObjectId();
 
-    DistributedLock distributedLock = new DistributedLock(objectId, new AtomicBoolean(true));
+    DistributedLock distributedLock = new DistributedLock(objectId, new AtomicBoolean(true), 1);
     //WHEN
-    PowerMockito.mockStatic(LockDao.class);
-    when(LockDao.lock(mongoClient, key, distributedLockServiceConfig, distributedLockTimeOutOptions)).thenReturn(Optional.of(objectId));
-    when(LockDao.unlock(mongoClient, key, distributedLockServiceConfig, distributedLock.getLockedId()))
+    when(lockStore.lock(key, distributedLockTimeOutOptions)).thenReturn(Optional.of(distributedLock));
+    when(lockStore.unlock(key, distributedLock.getLockedId()))
             .thenReturn(Optional.of(objectId));
 
     distributedLockService.tryLock(key);
@@ -106,4 +143,448 @@ public class DistributedLockServiceImplTest {
     //THEN
     assertThat(isReleaseLocked).isTrue();
   }
+
+  @Test
+  public void shouldNotContendRemotelyWhileAnotherLocalThreadHoldsTheKey() throws Exception {
+
+    //GIVEN
+    String key = "test";
+    ObjectId objectId = new ObjectId();
+
+    //WHEN
+    when(lockStore.lock(key, distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(objectId, new AtomicBoolean(true), 1)));
+
+    distributedLockService.tryLock(key);
+    AtomicBoolean isLockedAgain = new AtomicBoolean();
+    Thread otherThread = new Thread(() -> isLockedAgain.set(distributedLockService.tryLock(key)));
+    otherThread.start();
+    otherThread.join();
+
+    //THEN
+    assertThat(isLockedAgain.get()).isFalse();
+    verify(lockStore, times(1)).lock(key, distributedLockTimeOutOptions);
+  }
+
+  @Test
+  public void shouldReenterALockOfTheSameThreadWithoutRoundTrips() throws Exception {
+
+    //GIVEN
+    String key = "test";
+    ObjectId objectId = new ObjectId();
+    DistributedLock distributedLock = new DistributedLock(objectId, new AtomicBoolean(true), 1);
+    when(lockStore.lock(key, distributedLockTimeOutOptions)).thenReturn(Optional.of(distributedLock));
+    when(lockStore.unlock(key, objectId)).thenReturn(Optional.of(objectId));
+
+    //WHEN
+    boolean isLocked = distributedLockService.tryLock(key);
+    boolean isLockedAgain = distributedLockService.tryLock(key);
+    boolean isLockedOnceMore = distributedLockService.lock(key, 1, TimeUnit.SECONDS);
+    boolean isReleased = distributedLockService.releaseLock(key);
+    boolean isReleasedAgain = distributedLockService.releaseLock(key);
+
+    //THEN
+    assertThat(isLocked).isTrue();
+    assertThat(isLockedAgain).isTrue();
+    assertThat(isLockedOnceMore).isTrue();
+    assertThat(isReleased).isTrue();
+    assertThat(isReleasedAgain).isTrue();
+    verify(lockStore, times(1)).lock(key, distributedLockTimeOutOptions);
+    verify(lockStore, never()).unlock(key, objectId);
+
+    distributedLockService.releaseLock(key);
+    verify(lockStore, times(1)).unlock(key, objectId);
+    assertThat(distributedLockService.releaseLock(key)).isFalse();
+  }
+
+  @Test
+  public void shouldNotReleaseALockOfAnotherThread() throws Exception {
+
+    //GIVEN
+    String key = "test";
+    ObjectId objectId = new ObjectId();
+    when(lockStore.lock(key, distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(objectId, new AtomicBoolean(true), 1)));
+    distributedLockService.tryLock(key);
+
+    //WHEN
+    AtomicBoolean isReleased = new AtomicBoolean(true);
+    Thread otherThread = new Thread(() -> isReleased.set(distributedLockService.releaseLock(key)));
+    otherThread.start();
+    otherThread.join();
+
+    //THEN
+    assertThat(isReleased.get()).isFalse();
+    assertThat(distributedLockService.getFencingToken(key)).contains(1L);
+    verify(lockStore, never()).unlock(anyString(), any(ObjectId.class));
+  }
+
+  @Test
+  public void shouldReleaseTheLockWhenTheHandleIsClosed() {
+
+    //GIVEN
+    String key = "test";
+    ObjectId objectId = new ObjectId();
+    when(lockStore.lock(key, distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(objectId, new AtomicBoolean(true), 7)));
+    when(lockStore.unlock(key, objectId)).thenReturn(Optional.of(objectId));
+
+    //WHEN
+    Optional<LockHandle> lockHandle = distributedLockService.tryAcquire(key);
+    try (LockHandle outer = lockHandle.get(); LockHandle inner = distributedLockService.tryAcquire(key).get()) {
+      assertThat(outer.getKey()).isEqualTo(key);
+      assertThat(outer.getFencingToken()).isEqualTo(7);
+      assertThat(inner.getFencingToken()).isEqualTo(outer.getFencingToken());
+    }
+
+    //THEN
+    assertThat(distributedLockService.getFencingToken(key)).isEmpty();
+    verify(lockStore, times(1)).lock(key, distributedLockTimeOutOptions);
+    verify(lockStore, times(1)).unlock(key, objectId);
+  }
+
+  @Test
+  public void shouldShareOneReadLeaseBetweenLocalReaders() {
+
+    //GIVEN
+    String key = "test";
+    ObjectId objectId = new ObjectId();
+
+    //WHEN
+    when(lockStore.readLock(key, distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(objectId, new AtomicBoolean(true), 1)));
+    when(lockStore.readUnlock(key, objectId)).thenReturn(Optional.of(objectId));
+
+    Boolean isReadLocked = distributedLockService.tryReadLock(key);
+    Boolean isReadLockedAgain = distributedLockService.tryReadLock(key);
+    distributedLockService.releaseReadLock(key);
+    distributedLockService.releaseReadLock(key);
+
+    //THEN
+    assertThat(isReadLocked).isTrue();
+    assertThat(isReadLockedAgain).isTrue();
+    verify(lockStore, times(1)).readLock(key, distributedLockTimeOutOptions);
+    verify(lockStore, times(1)).readUnlock(key, objectId);
+  }
+
+  @Test
+  public void shouldCountHeldLocks() {
+
+    //GIVEN
+    String key = "test";
+    ObjectId objectId = new ObjectId();
+
+    DistributedLock distributedLock = new DistributedLock(objectId, new AtomicBoolean(true), 1);
+    //WHEN
+    when(lockStore.lock(key, distributedLockTimeOutOptions)).thenReturn(Optional.of(distributedLock));
+    when(lockStore.unlock(key, objectId)).thenReturn(Optional.of(objectId));
+
+    distributedLockService.tryLock(key);
+    long heldLocks = distributedLockService.getMetrics().getHeldLocks();
+    distributedLockService.releaseLock(key);
+
+    //THEN
+    assertThat(heldLocks).isEqualTo(1);
+    assertThat(distributedLockService.getMetrics().getHeldLocks()).isZero();
+  }
+
+  @Test
+  public void shouldFailLocallyOnAKeyHeldByAnotherNodeUntilItIsReleased() {
+
+    //GIVEN
+    String key = "test";
+    when(distributedLockServiceConfig.getHolderCacheSize()).thenReturn(100);
+    when(distributedLockServiceConfig.getHolderCacheMaxStaleness()).thenReturn(60000L);
+    DistributedLockServiceImpl cachingLockService
+            = new DistributedLockServiceImpl(lockStore, distributedLockTimeOutOptions, distributedLockServiceConfig);
+
+    //WHEN
+    when(lockStore.lock(key, distributedLockTimeOutOptions)).thenReturn(Optional.empty());
+    when(lockStore.getRemainingLease(key)).thenReturn(Optional.of(60000L));
+
+    boolean isLocked = cachingLockService.tryLock(key);
+    boolean isLockedAgain = cachingLockService.tryLock(key);
+    lockStore.getReleaseWatcher(key).signalRelease(key);
+    boolean isLockedAfterRelease = cachingLockService.tryLock(key);
+
+    //THEN
+    assertThat(isLocked).isFalse();
+    assertThat(isLockedAgain).isFalse();
+    assertThat(isLockedAfterRelease).isFalse();
+    verify(lockStore, times(2)).lock(key, distributedLockTimeOutOptions);
+  }
+
+  @Test
+  public void shouldNotLookUpHoldersWithoutTheHolderCache() {
+
+    //GIVEN
+    String key = "test";
+
+    //WHEN
+    when(lockStore.lock(key, distributedLockTimeOutOptions)).thenReturn(Optional.empty());
+
+    distributedLockService.tryLock(key);
+    distributedLockService.tryLock(key);
+
+    //THEN
+    verify(lockStore, times(2)).lock(key, distributedLockTimeOutOptions);
+    verify(lockStore, never()).getRemainingLease(key);
+  }
+
+  @Test
+  public void shouldReleaseAllLocksWithOneCallToTheStore() {
+
+    //GIVEN
+    ObjectId objectId = new ObjectId();
+    when(lockStore.lock(anyString(), eq(distributedLockTimeOutOptions)))
+            .thenReturn(Optional.of(new DistributedLock(objectId, new AtomicBoolean(true), 1)))
+            .thenReturn(Optional.of(new DistributedLock(objectId, new AtomicBoolean(true), 2)));
+    Map<String, ObjectId> releasing = new HashMap<>();
+    releasing.put("a", objectId);
+    releasing.put("b", objectId);
+    when(lockStore.unlockAll(releasing)).thenReturn(2L);
+    distributedLockService.tryLock("a");
+    distributedLockService.tryLock("b");
+
+    //WHEN
+    long released = distributedLockService.releaseAll();
+    boolean isReleasedAgain = distributedLockService.releaseLock("a");
+
+    //THEN
+    assertThat(released).isEqualTo(2);
+    assertThat(isReleasedAgain).isFalse();
+    assertThat(distributedLockService.getMetrics().getHeldLocks()).isZero();
+    verify(lockStore, times(1)).unlockAll(releasing);
+    verify(lockStore, never()).unlock(anyString(), any(ObjectId.class));
+  }
+
+  @Test
+  public void shouldHoldNoneOfTheKeysWhenTheStoreGrantsNotAll() {
+
+    //GIVEN
+    when(lockStore.lockAll(any(), eq(distributedLockTimeOutOptions))).thenReturn(Optional.empty());
+    when(lockStore.lock("a", distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(new ObjectId(), new AtomicBoolean(true), 1)));
+
+    //WHEN
+    boolean isLocked = distributedLockService.tryLockAll(Arrays.asList("a", "b"));
+    boolean isLockedAlone = distributedLockService.tryLock("a");
+
+    //THEN
+    assertThat(isLocked).isFalse();
+    assertThat(distributedLockService.getFencingToken("b")).isEmpty();
+    assertThat(isLockedAlone).isTrue();
+    assertThat(distributedLockService.getMetrics().getHeldLocks()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldNotAskTheStoreWhileAnotherLocalThreadHoldsOneOfTheKeys() throws Exception {
+
+    //GIVEN
+    when(lockStore.lock(anyString(), eq(distributedLockTimeOutOptions)))
+            .thenReturn(Optional.of(new DistributedLock(new ObjectId(), new AtomicBoolean(true), 1)));
+    Thread otherThread = new Thread(() -> distributedLockService.tryLock("b"));
+    otherThread.start();
+    otherThread.join();
+
+    //WHEN
+    boolean isLocked = distributedLockService.tryLockAll(Arrays.asList("a", "b"));
+    boolean isLockedAlone = distributedLockService.tryLock("a");
+
+    //THEN
+    assertThat(isLocked).isFalse();
+    assertThat(isLockedAlone).isTrue();
+    verify(lockStore, never()).lockAll(any(), any());
+  }
+
+  @Test
+  public void shouldLeaveTheKeysLockableWhenTheStoreFailsToLockAll() {
+
+    //GIVEN
+    when(lockStore.lockAll(any(), eq(distributedLockTimeOutOptions))).thenThrow(new MongoException("down"));
+    when(lockStore.lock("a", distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(new ObjectId(), new AtomicBoolean(true), 1)));
+
+    //WHEN
+    assertThatThrownBy(() -> distributedLockService.tryLockAll(Arrays.asList("a", "b"))).isInstanceOf(MongoException.class);
+    boolean isLockedAlone = distributedLockService.tryLock("a");
+
+    //THEN
+    assertThat(isLockedAlone).isTrue();
+  }
+
+  @Test
+  public void shouldWaitInTurnWithFairLocking() throws Exception {
+
+    //GIVEN
+    String key = "test";
+    ObjectId objectId = new ObjectId();
+    when(distributedLockServiceConfig.isFairLocking()).thenReturn(true);
+    when(distributedLockServiceConfig.getTicketTimeout()).thenReturn(30L);
+
+    //WHEN
+    when(lockStore.renewTicket(eq(key), any(ObjectId.class), eq(30L))).thenReturn(true);
+    when(lockStore.lockInTurn(eq(key), any(ObjectId.class), eq(distributedLockTimeOutOptions)))
+            .thenReturn(Optional.empty())
+            .thenReturn(Optional.of(new DistributedLock(objectId, new AtomicBoolean(true), 1)));
+
+    boolean isLocked = distributedLockService.lock(key, 1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(isLocked).isTrue();
+    assertThat(distributedLockService.getFencingToken(key)).contains(1L);
+    verify(lockStore, times(1)).takeTicket(eq(key), any(ObjectId.class), eq(30L));
+    verify(lockStore, never()).lock(key, distributedLockTimeOutOptions);
+    verify(lockStore, never()).returnTicket(eq(key), any(ObjectId.class));
+  }
+
+  @Test
+  public void shouldReturnTheTicketWhenTheFairWaitTimesOut() throws Exception {
+
+    //GIVEN
+    String key = "test";
+    when(distributedLockServiceConfig.isFairLocking()).thenReturn(true);
+    when(distributedLockServiceConfig.getTicketTimeout()).thenReturn(30L);
+
+    //WHEN
+    when(lockStore.renewTicket(eq(key), any(ObjectId.class), eq(30L))).thenReturn(false);
+    when(lockStore.lockInTurn(eq(key), any(ObjectId.class), eq(distributedLockTimeOutOptions))).thenReturn(Optional.empty());
+
+    boolean isLocked = distributedLockService.lock(key, 100, TimeUnit.MILLISECONDS);
+
+    //THEN
+    assertThat(isLocked).isFalse();
+    verify(lockStore, atLeast(2)).takeTicket(eq(key), any(ObjectId.class), eq(30L));
+    verify(lockStore, times(1)).returnTicket(eq(key), any(ObjectId.class));
+  }
+
+  @Test
+  public void shouldWakeUpAWaiterWhenTheLockIsReleased() throws Exception {
+
+    //GIVEN
+    String key = "test";
+    when(distributedLockServiceConfig.getTimeoutFrequency()).thenReturn(60000L);
+    when(lockStore.lock(key, distributedLockTimeOutOptions))
+            .thenReturn(Optional.empty())
+            .thenReturn(Optional.of(new DistributedLock(new ObjectId(), new AtomicBoolean(true), 2)));
+    LockReleaseWatcher releaseWatcher = lockStore.getReleaseWatcher(key);
+    Thread releasingThread = new Thread(() -> {
+      try {
+        Thread.sleep(100);
+      } catch (final InterruptedException e) {
+        return;
+      }
+      releaseWatcher.signalRelease(key);
+    });
+
+    //WHEN
+    long start = System.nanoTime();
+    releasingThread.start();
+    boolean isLocked = distributedLockService.lock(key, 30, TimeUnit.SECONDS);
+    long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    //THEN
+    assertThat(isLocked).isTrue();
+    assertThat(waited).isLessThan(10000L);
+    assertThat(distributedLockService.getFencingToken(key)).contains(2L);
+    verify(lockStore, times(2)).lock(key, distributedLockTimeOutOptions);
+  }
+
+  @Test
+  public void shouldGiveUpWaitingOnceTheTimeoutElapsed() throws Exception {
+
+    //GIVEN
+    String key = "test";
+    when(distributedLockServiceConfig.getTimeoutFrequency()).thenReturn(60000L);
+    when(lockStore.lock(key, distributedLockTimeOutOptions)).thenReturn(Optional.empty());
+
+    //WHEN
+    long start = System.nanoTime();
+    boolean isLocked = distributedLockService.lock(key, 100, TimeUnit.MILLISECONDS);
+    long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    //THEN
+    assertThat(isLocked).isFalse();
+    assertThat(waited).isGreaterThanOrEqualTo(99L);
+    assertThat(distributedLockService.getFencingToken(key)).isEmpty();
+  }
+
+  @Test
+  public void shouldKeepALockWhileRenewalsFailWithinItsLease() throws Exception {
+
+    //GIVEN
+    String key = "test";
+    List<String> lostKeys = new CopyOnWriteArrayList<>();
+    DistributedLockServiceImpl beatingService = beatingService(60000);
+    beatingService.addLockLostListener(lostKeys::add);
+    when(lockStore.lock(key, distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(new ObjectId(), new AtomicBoolean(true), 1)));
+    when(lockStore.renew(any(), any())).thenThrow(new MongoException("mongo is unreachable"));
+
+    //WHEN
+    beatingService.tryLock(key);
+    Thread.sleep(100);
+
+    //THEN
+    assertThat(lostKeys).isEmpty();
+    assertThat(beatingService.getFencingToken(key)).contains(1L);
+    verify(lockStore, atLeast(2)).renew(any(), any());
+    beatingService.close();
+  }
+
+  @Test
+  public void shouldReportALockLostOnceRenewalsFailedForItsLease() throws Exception {
+
+    //GIVEN
+    String key = "test";
+    CountDownLatch lockLost = new CountDownLatch(1);
+    DistributedLockServiceImpl beatingService = beatingService(50);
+    beatingService.addLockLostListener(lostKey -> lockLost.countDown());
+    when(lockStore.lock(key, distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(new ObjectId(), new AtomicBoolean(true), 1)));
+    when(lockStore.renew(any(), any())).thenThrow(new MongoException("mongo is unreachable"));
+
+    //WHEN
+    beatingService.tryLock(key);
+    boolean isLost = lockLost.await(1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(isLost).isTrue();
+    assertThat(beatingService.getFencingToken(key)).isEmpty();
+    assertThat(beatingService.getMetrics().getHeldLocks()).isZero();
+    beatingService.close();
+  }
+
+  @Test
+  public void shouldTellTheListenersOfALockTheStoreNoLongerHas() throws Exception {
+
+    //GIVEN
+    String key = "test";
+    List<String> lostKeys = new CopyOnWriteArrayList<>();
+    CountDownLatch lockLost = new CountDownLatch(1);
+    DistributedLockServiceImpl beatingService = beatingService(60000);
+    beatingService.addLockLostListener(lostKeys::add);
+    beatingService.addLockLostListener(lostKey -> lockLost.countDown());
+    when(lockStore.lock(key, distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(new ObjectId(), new AtomicBoolean(true), 1)));
+    when(lockStore.renew(any(), any())).thenReturn(Collections.singleton(key));
+
+    //WHEN
+    beatingService.tryLock(key);
+    lockLost.await(1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(lostKeys).containsOnly(key);
+    assertThat(beatingService.releaseLock(key)).isFalse();
+    beatingService.close();
+  }
+
+  /**
+   * Returns a service on the store whose heartbeat runs every 10 ms.
+   */
+  private DistributedLockServiceImpl beatingService(final int inactiveLockTimeout) {
+    when(distributedLockServiceConfig.getHeartbeatFrequency()).thenReturn(10L);
+    when(distributedLockTimeOutOptions.getInactiveLockTimeout()).thenReturn(inactiveLockTimeout);
+    return new DistributedLockServiceImpl(lockStore, distributedLockTimeOutOptions, distributedLockServiceConfig);
+  }
 }
@@ -0,0 +1,132 @@
+package com.insparx.mongo.util.service;
+
+
+import com.insparx.mongo.util.dao.LockDao;
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import com.mongodb.MongoException;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LockDao.class)
+public class DistributedSemaphoreImplTest {
+
+
+  @Mock
+  private LockDao lockDao;
+
+  @Mock
+  private DistributedLockTimeOutOptions distributedLockTimeOutOptions;
+
+  @Mock
+  private DistributedLockServiceConfig distributedLockServiceConfig;
+
+  private DistributedSemaphoreImpl distributedSemaphore;
+
+  @Before
+  public void setUp() {
+    when(distributedLockServiceConfig.getHeartbeatFrequency()).thenReturn(5000L);
+    distributedSemaphore = new DistributedSemaphoreImpl(lockDao, distributedLockTimeOutOptions, distributedLockServiceConfig);
+  }
+
+  @Test
+  public void shouldAddPermitsToTheHeldLease() {
+
+    //GIVEN
+    String key = "test";
+    ObjectId objectId = new ObjectId();
+
+    //WHEN
+    when(lockDao.acquirePermits(key, 2, 5, distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(objectId, new AtomicBoolean(true))));
+    when(lockDao.addPermits(key, objectId, 3, 5)).thenReturn(true);
+
+    Boolean isAcquired = distributedSemaphore.tryAcquire(key, 2, 5);
+    Boolean isAcquiredAgain = distributedSemaphore.tryAcquire(key, 3, 5);
+
+    //THEN
+    assertThat(isAcquired).isTrue();
+    assertThat(isAcquiredAgain).isTrue();
+  }
+
+  @Test
+  public void shouldReturnFalseWhenNotEnoughPermitsAreLeft() {
+
+    //GIVEN
+    String key = "test";
+
+    //WHEN
+    when(lockDao.acquirePermits(key, 2, 5, distributedLockTimeOutOptions)).thenReturn(Optional.empty());
+
+    Boolean isAcquired = distributedSemaphore.tryAcquire(key, 2, 5);
+
+    //THEN
+    assertThat(isAcquired).isFalse();
+  }
+
+  @Test
+  public void shouldReleaseTheLeaseWithTheLastPermits() {
+
+    //GIVEN
+    String key = "test";
+    ObjectId objectId = new ObjectId();
+
+    //WHEN
+    when(lockDao.acquirePermits(key, 2, 5, distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(objectId, new AtomicBoolean(true))));
+    when(lockDao.returnPermits(key, objectId, 1)).thenReturn(true);
+    when(lockDao.releasePermits(key, objectId)).thenReturn(Optional.of(objectId));
+
+    distributedSemaphore.tryAcquire(key, 2, 5);
+    Boolean isPartlyReleased = distributedSemaphore.release(key, 1);
+    Boolean isReleased = distributedSemaphore.release(key, 1);
+    Boolean isReleasedAgain = distributedSemaphore.release(key, 1);
+
+    //THEN
+    assertThat(isPartlyReleased).isTrue();
+    assertThat(isReleased).isTrue();
+    assertThat(isReleasedAgain).isFalse();
+  }
+
+  @Test
+  public void shouldReportPermitsLostOnceRenewalsFailedForTheirLease() throws Exception {
+
+    //GIVEN
+    String key = "test";
+    CountDownLatch permitsLost = new CountDownLatch(1);
+    when(distributedLockServiceConfig.getHeartbeatFrequency()).thenReturn(10L);
+    when(distributedLockTimeOutOptions.getInactiveLockTimeout()).thenReturn(50);
+    DistributedSemaphoreImpl beatingSemaphore
+            = new DistributedSemaphoreImpl(lockDao, distributedLockTimeOutOptions, distributedLockServiceConfig);
+    beatingSemaphore.addLockLostListener(lostKey -> permitsLost.countDown());
+    when(lockDao.acquirePermits(key, 2, 5, distributedLockTimeOutOptions))
+            .thenReturn(Optional.of(new DistributedLock(new ObjectId(), new AtomicBoolean(true))));
+    when(lockDao.renewPermits(any(), any())).thenThrow(new MongoException("mongo is unreachable"));
+
+    //WHEN
+    beatingSemaphore.tryAcquire(key, 2, 5);
+    boolean isLost = permitsLost.await(1, TimeUnit.SECONDS);
+
+    //THEN
+    assertThat(isLost).isTrue();
+    assertThat(beatingSemaphore.release(key, 2)).isFalse();
+    beatingSemaphore.close();
+  }
+}
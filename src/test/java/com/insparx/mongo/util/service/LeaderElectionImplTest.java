@@ -0,0 +1,174 @@
+package com.insparx.mongo.util.service;
+
+
+import com.insparx.mongo.util.dao.InMemoryLockStore;
+import com.insparx.mongo.util.dao.LockStore;
+import com.insparx.mongo.util.domain.DistributedLock;
+import com.insparx.mongo.util.domain.DistributedLockServiceConfig;
+import com.insparx.mongo.util.domain.DistributedLockTimeOutOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class LeaderElectionImplTest {
+
+  private static final int LEASE = 500;
+
+  private LockStore lockStore;
+  private DistributedLockTimeOutOptions timeOutOptions;
+  private DistributedLockServiceConfig serviceConfig;
+  private final List<LeaderElectionImpl> elections = new ArrayList<>();
+  private final List<DistributedLock> leases = new CopyOnWriteArrayList<>();
+
+  @Before
+  public void setUp() {
+    serviceConfig = new DistributedLockServiceConfig("mongodb://localhost");
+    serviceConfig.setHeartbeatFrequency(50);
+    timeOutOptions = new DistributedLockTimeOutOptions();
+    timeOutOptions.setInactiveLockTimeout(LEASE);
+    lockStore = recordingLeases(new InMemoryLockStore(serviceConfig));
+  }
+
+  @After
+  public void tearDown() {
+    elections.forEach(LeaderElectionImpl::close);
+  }
+
+  @Test
+  public void shouldElectOneLeader() throws Exception {
+
+    //GIVEN
+    Listener firstListener = new Listener();
+    Listener secondListener = new Listener();
+    LeaderElectionImpl first = newElection(firstListener);
+    LeaderElectionImpl second = newElection(secondListener);
+
+    //WHEN
+    first.start();
+    firstListener.elected.await(1, TimeUnit.SECONDS);
+    second.start();
+    Thread.sleep(LEASE * 2);
+
+    //THEN
+    assertThat(first.isLeader()).isTrue();
+    assertThat(first.getFencingToken()).isPresent();
+    assertThat(second.isLeader()).isFalse();
+    assertThat(second.getFencingToken()).isEmpty();
+    assertThat(secondListener.elected.getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldHandOverRightAwayWhenTheLeaderStepsDown() throws Exception {
+
+    //GIVEN
+    Listener firstListener = new Listener();
+    Listener secondListener = new Listener();
+    LeaderElectionImpl first = newElection(firstListener);
+    LeaderElectionImpl second = newElection(secondListener);
+    first.start();
+    firstListener.elected.await(1, TimeUnit.SECONDS);
+    second.start();
+
+    //WHEN
+    first.stepDown();
+    boolean isSecondElected = secondListener.elected.await(LEASE / 2, TimeUnit.MILLISECONDS);
+
+    //THEN
+    assertThat(firstListener.revoked.getCount()).isZero();
+    assertThat(firstListener.revokedBy).isSameAs(Thread.currentThread());
+    assertThat(first.isLeader()).isFalse();
+    assertThat(isSecondElected).isTrue();
+    assertThat(second.getFencingToken().get()).isGreaterThan(firstListener.fencingToken);
+  }
+
+  @Test
+  public void shouldTakeOverFromALeaderWhoseLeaseExpired() throws Exception {
+
+    //GIVEN
+    DistributedLock deadLeaderLease = lockStore.lock("leader", timeOutOptions).get();
+    Listener listener = new Listener();
+    LeaderElectionImpl election = newElection(listener);
+
+    //WHEN
+    election.start();
+    boolean isElected = listener.elected.await(LEASE * 3, TimeUnit.MILLISECONDS);
+
+    //THEN
+    assertThat(isElected).isTrue();
+    assertThat(listener.fencingToken).isGreaterThan(deadLeaderLease.getFencingToken());
+  }
+
+  @Test
+  public void shouldRevokeTheLeaderWhenItsLeaseIsLost() throws Exception {
+
+    //GIVEN
+    Listener listener = new Listener();
+    LeaderElectionImpl election = newElection(listener);
+    election.start();
+    listener.elected.await(1, TimeUnit.SECONDS);
+
+    //WHEN
+    lockStore.unlock("leader", leases.get(leases.size() - 1).getLockedId());
+    lockStore.lock("leader", timeOutOptions);
+    boolean isRevoked = listener.revoked.await(LEASE, TimeUnit.MILLISECONDS);
+
+    //THEN
+    assertThat(isRevoked).isTrue();
+    assertThat(election.isLeader()).isFalse();
+  }
+
+  /**
+   * Records the leases the store grants, so a test can take the leader's lease away.
+   */
+  private LockStore recordingLeases(final LockStore recordedLockStore) {
+    return (LockStore) Proxy.newProxyInstance(LockStore.class.getClassLoader(), new Class<?>[] {LockStore.class},
+            (proxy, method, args) -> {
+              final Object result;
+              try {
+                result = method.invoke(recordedLockStore, args);
+              } catch (final InvocationTargetException e) {
+                throw e.getCause();
+              }
+              if ("lock".equals(method.getName())) ((Optional<?>) result).ifPresent(lease -> leases.add((DistributedLock) lease));
+              return result;
+            });
+  }
+
+  private LeaderElectionImpl newElection(final LeadershipListener listener) {
+    LeaderElectionImpl election = new LeaderElectionImpl(lockStore, "leader", timeOutOptions, serviceConfig);
+    election.addLeadershipListener(listener);
+    elections.add(election);
+    return election;
+  }
+
+  private static final class Listener implements LeadershipListener {
+    private final CountDownLatch elected = new CountDownLatch(1);
+    private final CountDownLatch revoked = new CountDownLatch(1);
+    private volatile long fencingToken;
+    private volatile Thread revokedBy;
+
+    @Override
+    public void onElected(final long fencingToken) {
+      this.fencingToken = fencingToken;
+      elected.countDown();
+    }
+
+    @Override
+    public void onRevoked() {
+      revokedBy = Thread.currentThread();
+      revoked.countDown();
+    }
+  }
+}